@@ -2,22 +2,38 @@ package org.example;
 
 // libraries for JSON Parser (Serialisation + Deserialisation)
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 // data structures
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 // socket programming
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 // Side packages
 import java.io.*;
+import java.net.URLDecoder;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 // For thread safe
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -25,19 +41,38 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class AggregationServer {
     // ----- config + identity -----
-    private final int port;
+    private final ServerConfig config;
     private volatile boolean running = true;
     private final AtomicLong arrival_seq = new AtomicLong(0);
-    private final ExecutorService connection_pool = Executors.newCachedThreadPool(); // for new connection to server socket
+    // Changes on every start: ETags ("<epoch>-<view version>") and delta watermarks from an earlier run never match
+    private final String boot_epoch = Long.toString(System.currentTimeMillis(), 36);
 
     // ----- in-memory/persistent storage -----
     // Use ConcurrentMap for thread safety
-    private final ConcurrentMap<String, WeatherRecord> memory_store = new ConcurrentHashMap();
-    private final ConcurrentMap<String, Long> last_update = new ConcurrentHashMap();
+    private final ConcurrentMap<String, Long> last_update = new ConcurrentHashMap<>();
+    // ---- content servers quiet for --expiry-ms lose their records; deadlines sit in a timing wheel ----
+    private static final long EXPIRY_TICK_MS = 1_000;
+    private final ExpiryWheel expiry_wheel = new ExpiryWheel(EXPIRY_TICK_MS, System.currentTimeMillis());
+    // tombstones queued per write lock hold, so a big sweep lets the writers in between
+    private static final int EXPIRY_CHUNK = 1_024;
+
+    // ---- one writer per shard, each with its own queue; a station id always maps to the same shard ----
+    // The in-memory store is the union of the shards' record maps
+    private static final int WRITER_BATCH = 256;       // most PUTs applied before publishing a new view
+    // ---- Overload: PUTs over the queue bound or past their deadline get 503, retried after this long ----
+    // GETs are never shed, they are answered off the published view and never wait behind PUTs
+    private static final int RETRY_AFTER_S = 1;
+    private final WriterShard[] shards;
+
+    // ---- Read side: GETs read the latest published view, never the queue or the lock ----
+    private final AtomicReference<FeedView> current_view;
 
-    // ---- single writer with queue for simplifying concurrency ----
-    private final PriorityBlockingQueue<PutRequest> request_queue = new PriorityBlockingQueue<>();
-    private Thread writer;
+    // ---- Counters served on GET /metrics + encoded GET bodies per view version ----
+    private final Metrics metrics = new Metrics();
+    private final ResponseCache response_cache = new ResponseCache(metrics);
+
+    // ---- SSE subscribers, pushed every published view ----
+    private final SubscriptionHub subscriptions;
 
     // ---- Serialisation + Deserialisation ----
     private final Gson gson = new Gson();
@@ -45,83 +80,310 @@ public class AggregationServer {
     // Persistent manager for WAL + snapshot
     private final LamportClock lp_clock;
     private final PersistenceManager persis_manager;
+    private final CheckpointManager checkpointer;
 
-    // For respecting order such as PUT -> GET -> PUT
+    // Shared (read) side: writer shards, which only touch their own ids
+    // Exclusive (write) side: anything that needs every shard standing still (checkpoint cut, expiry)
     private final ReentrantReadWriteLock reentrant_lock = new ReentrantReadWriteLock();
+    // Stations whose tombstones are logged but not synced yet, by id (changed under the write lock), see log_removal
+    private final ConcurrentMap<String, WeatherRecord> removing = new ConcurrentHashMap<>();
+
+    // ---- Replication: a backup (--backup-of) follows its primary's WAL and refuses PUTs until it is promoted ----
+    private volatile boolean read_only;
 
     /**
-     * Aggregation server (simple socket-based HTTP parsing).
+     * Aggregation server (HTTP over a NIO selector, or a platform/virtual thread per connection with --io=blocking/virtual).
      *
      * Key functionality:
      * - Accept PUT from content servers and GET from clients
      * - PUTs must include lamport clock and node id headers for tracking
-     * - Enqueue PUTs into a PriorityBlockingQueue ordered by for handling multiple PUTs
-     * - Single writer applies data updates: WAL + in-memory store + write snapshot
-     * - Writer completes per-request CompletableFuture so the connection thread can send 201/200
+     * - Enqueue PUTs into the PriorityBlockingQueue of the shard owning the station id
+     * - Each shard's writer applies data updates: WAL + its part of the store, then publishes its slot of the FeedView
+     * - GETs are answered from the current FeedView on the connection thread
+     * - Checkpointer writes snapshots in the background and drops the WAL they cover
+     * - Writer completes per-request CompletableFuture, the front end sends 201/200 when it completes
      * - Expiry checker removes content server out of contact after 30s
+     * - With --replication-port the synced WAL is streamed to backups; with --backup-of this server is one
      */
     public AggregationServer(int port, String persistent_dir) throws IOException {
-        this.port = port;
+        this(ServerConfig.with(port, persistent_dir));
+    }
+
+    public AggregationServer(ServerConfig config) throws IOException {
+        this.config = config;
         this.lp_clock = new LamportClock();
-        this.persis_manager = new PersistenceManager(persistent_dir);
-        load_snapshot_WAL();
+        this.persis_manager = new PersistenceManager(config.persis_dir);
+        this.shards = new WriterShard[config.shards];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new WriterShard(i, config.history_size);
+        }
+        this.current_view = new AtomicReference<>(FeedView.empty(shards.length));
+        this.subscriptions = new SubscriptionHub(current_view::get, boot_epoch, metrics);
+        long checkpoint_seq = load_snapshot_WAL();
+        // Recovered records are the first changes in the logs, so ?since=0 still returns everything
+        // (and the first entry of each station's history)
+        for (WriterShard shard : shards) {
+            shard.unpublished.addAll(shard.records.values());
+            for (WeatherRecord record : shard.records.values()) shard.append_history(record);
+        }
+        publish_all();
+
+        // Recovered sources expire like any other, a whole period from now unless they send again
+        schedule_sources();
+
+        // Background snapshots instead of one per PUT
+        this.checkpointer = new CheckpointManager(persis_manager, reentrant_lock, this::all_records, checkpoint_seq);
+        checkpointer.start();
 
-        // Starting writer thread waiting for upcoming PUT requests
-        start_worker();
+        // Starting one writer thread per shard waiting for upcoming PUT requests
+        for (WriterShard shard : shards) {
+            start_worker(shard);
+        }
+        metrics.gauge("writer_queue_depth", () -> {
+            long depth = 0;
+            for (WriterShard shard : shards) depth += shard.request_queue.size();
+            return depth;
+        });
+        metrics.gauge("stations_expiring", removing::size);
 
         // Check for any expired content server
         start_expiry_checker();
+
+        // Push published views to SSE subscribers
+        subscriptions.start();
+
+        // Ship the WAL to backups / follow a primary's
+        if (config.replication_port > 0 || config.backup_of != null) {
+            ReplicationTerm term = new ReplicationTerm(Paths.get(config.persis_dir), config.backup_of == null);
+            read_only = config.backup_of != null;
+            metrics.gauge("replication_read_only", () -> read_only ? 1 : 0);
+            metrics.gauge("replication_term", term::get);
+            if (config.replication_port > 0) {
+                new WalShipper(config.replication_port, persis_manager, reentrant_lock, this::all_records, term, this::step_down, metrics).start();
+            }
+            if (config.backup_of != null) {
+                new WalFollower(config.backup_of, config.failover_ms, this::apply_replicated, this::promote, term, metrics).start();
+            }
+        }
     }
 
-    // Load snapshot + WAL on startup in case of recovery after crash
-    private void load_snapshot_WAL() {
+    // ---- Backup: one record off the primary's WAL, queued like a PUT from its content server ----
+    // So the writer applies the same Lamport rules and logs it to this server's own WAL
+    // A tombstone is applied right away instead (WalFollower only sends it once everything before it is applied)
+    private CompletableFuture<int[]> apply_replicated(WalCodec.Record replicated) {
         try {
-            String snapshot = persis_manager.read_snapshot();
-            // We got a snapshot (its a JSON array of records)
-            if (snapshot != null && !snapshot.trim().isEmpty()) {
-                // ---- Warning: this is deceprecated for newer version of Gson -> fix later ----
-                JsonArray arr = new JsonParser().parse(snapshot).getAsJsonArray();
-                // For each Json object
-                for (int i = 0; i < arr.size(); i++) {
-                    JsonObject o = arr.get(i).getAsJsonObject();
-                    // if object has an id
-                    if (o.has("id")) {
-                        String id = o.get("id").getAsString();
-                        long lamport = o.has("lamport") ? o.get("lamport").getAsLong() : 0;
-                        String source = o.has("source_id") ? o.get("source_id").getAsString() : "unknown";   // for identifying source content server
-
-                        memory_store.put(id, new WeatherRecord(id, o.deepCopy(), lamport, source));
-                    } else {
-                        continue;
+            if (replicated.tombstone()) {
+                return CompletableFuture.completedFuture(new int[]{remove_replicated(replicated) ? 200 : 500});
+            }
+            WeatherRecord record = WeatherRecord.from_json(replicated.payload(), replicated.lamport, replicated.source_id);
+            if (record.id == null) return CompletableFuture.completedFuture(new int[]{500});
+            return enqueue(shard_for(record.id), replicated.lamport, List.of(record), replicated.source_id, Long.MAX_VALUE).result_future;
+        } catch (IOException e) {
+            System.err.println("Replication: unreadable record seq " + replicated.seq + " " + e.getMessage());
+            return CompletableFuture.completedFuture(new int[]{500});
+        }
+    }
+
+    // ---- Backup: a station the primary's expiry removed, removed here the same way ----
+    private boolean remove_replicated(WalCodec.Record tombstone) throws IOException {
+        String id = tombstone.payload().get("id").getAsString();
+        WriterShard shard = shard_for(id);
+        Map<WriterShard, List<WeatherRecord>> removed = new HashMap<>();
+        reentrant_lock.writeLock().lock();
+        try {
+            WeatherRecord existing = shard.records.get(id);
+            if (existing == null || existing.lamport > tombstone.lamport) return true;     // gone already, or newer
+            removed.put(shard, List.of(existing));
+        } finally {
+            reentrant_lock.writeLock().unlock();
+        }
+        return finish_removal(removed, log_removal(removed));
+    }
+
+    // ---- Remove stations for good, step 1: queue their tombstones for the WAL ----
+    // Under the write lock, EXPIRY_CHUNK at a time, so a PUT for one of them is logged after its tombstone
+    // (replay keeps that PUT) and the writers get in between chunks. A station a PUT replaced since it was
+    // picked keeps its new record: it gets no tombstone and is dropped from removed.
+    // Until finish_removal they still serve GETs, but a checkpoint or a backup's cut leaves them out (all_records):
+    // its seq already covers their tombstones
+    private CompletableFuture<Void> log_removal(Map<WriterShard, List<WeatherRecord>> removed) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        for (Iterator<Map.Entry<WriterShard, List<WeatherRecord>>> it = removed.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<WriterShard, List<WeatherRecord>> entry = it.next();
+            WriterShard shard = entry.getKey();
+            List<WeatherRecord> picked = entry.getValue();
+            List<WeatherRecord> logged = new ArrayList<>(picked.size());
+            for (int from = 0; from < picked.size(); from += EXPIRY_CHUNK) {
+                List<WeatherRecord> chunk = new ArrayList<>(EXPIRY_CHUNK);
+                reentrant_lock.writeLock().lock();
+                try {
+                    for (WeatherRecord record : picked.subList(from, Math.min(from + EXPIRY_CHUNK, picked.size()))) {
+                        if (shard.records.get(record.id) != record) continue;
+                        removing.put(record.id, record);
+                        chunk.add(record);
                     }
+                    if (!chunk.isEmpty()) durable.add(persis_manager.append_tombstones(chunk));
+                } finally {
+                    reentrant_lock.writeLock().unlock();
                 }
+                logged.addAll(chunk);
+            }
+            if (logged.isEmpty()) it.remove(); else entry.setValue(logged);
+        }
+        return CompletableFuture.allOf(durable.toArray(CompletableFuture<?>[]::new));
+    }
 
-                // replay WAL for any update not in snapshot
-                for (JsonObject new_o : persis_manager.replay_WAL()) {
-                    if (new_o.has("id")) {
-                        String id = new_o.get("id").getAsString();
-                        long lamport = new_o.has("lamport") ? new_o.get("lamport").getAsLong() : 0;
-                        String source = new_o.has("source_id") ? new_o.get("source_id").getAsString() : "unknown";       // for identifying source content server
-
-                        // overwrite old record -> larger lamport means new
-                        WeatherRecord existing = memory_store.get(id);
-                        if (existing == null || lamport >= existing.lamport) {
-                            memory_store.put(id, new WeatherRecord(id, new_o.deepCopy(), lamport, source));
-                        }
-                    } else {
-                        continue;
+    // ---- Step 2, without the lock: wait for the tombstones to sync, then they leave the store and the view ----
+    // The writers keep going during the sync; the write lock is only taken for the removal itself, which skips
+    // a station a PUT replaced meanwhile (that PUT was logged after the tombstone, so replay keeps it too)
+    // Returns false, with nothing removed, if the tombstones could not be synced
+    private boolean finish_removal(Map<WriterShard, List<WeatherRecord>> removed, CompletableFuture<Void> durable) {
+        boolean synced = true;
+        try {
+            durable.join();
+        } catch (CompletionException e) {
+            int count = 0;
+            for (List<WeatherRecord> records : removed.values()) count += records.size();
+            System.err.println("WAL: cannot log the removal of " + count + " stations " + e.getMessage());
+            synced = false;
+        }
+        int expired = 0;
+        reentrant_lock.writeLock().lock();
+        try {
+            // the removed ids become tombstones for delta GETs, only the shards that lost records publish
+            // (an unchanged feed keeps its version (ETag) and stamp)
+            for (Map.Entry<WriterShard, List<WeatherRecord>> entry : removed.entrySet()) {
+                WriterShard shard = entry.getKey();
+                List<String> ids = new ArrayList<>(entry.getValue().size());
+                for (WeatherRecord record : entry.getValue()) {
+                    removing.remove(record.id, record);
+                    if (synced && shard.records.get(record.id) == record) {
+                        shard.remove(record.id);
+                        ids.add(record.id);
                     }
                 }
+                if (!ids.isEmpty()) publish_view(shard, ids);
+                expired += ids.size();
+            }
+        } finally {
+            reentrant_lock.writeLock().unlock();
+        }
+        metrics.counter("stations_expired").addAndGet(expired);
+        return synced;
+    }
+
+    // ---- Every source with records in the store and no deadline yet gets one (after recovery) ----
+    // When it last sent a PUT is not known, so it gets a whole expiry period from now, as if it had just sent one
+    private void schedule_sources() {
+        long now = System.currentTimeMillis();
+        for (WriterShard shard : shards) {
+            for (String source : shard.sources()) {
+                if (last_update.putIfAbsent(source, now) == null) {
+                    expiry_wheel.schedule(source, now + config.expiry_ms);
+                }
+            }
+        }
+    }
+
+    // ---- Backup: the primary is gone, take PUTs from now on ----
+    // Expiry starts over: last_update here says when a source's records were replicated, not when the old primary
+    // last heard from it, and its content servers could not reach anyone while we failed over. So every source
+    // holding records gets a whole period from now, as after recovery (one already in the wheel keeps its entry)
+    private void promote() {
+        reentrant_lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            for (WriterShard shard : shards) {
+                for (String source : shard.sources()) {
+                    if (last_update.put(source, now) == null) {
+                        expiry_wheel.schedule(source, now + config.expiry_ms);
+                    }
+                }
+            }
+            read_only = false;
+        } finally {
+            reentrant_lock.writeLock().unlock();
+        }
+        System.out.println("Aggregation Server on port " + config.port + " is now the primary");
+    }
+
+    // ---- Primary: a backup was promoted in our place (a later term), only serve GETs from now on ----
+    private void step_down() {
+        read_only = true;
+        metrics.counter("replication_step_downs").incrementAndGet();
+        System.err.println("Aggregation Server on port " + config.port + " was replaced by a promoted backup, now read only");
+    }
+
+    // Load snapshot + WAL on startup in case of recovery after crash
+    // Returns the last WAL seq the snapshot on disk already covers
+    private long load_snapshot_WAL() {
+        long covered_seq = 0;
+        long started = System.nanoTime();
+        try {
+            // Stream the snapshot (a checkpoint object, or a plain JSON array of records from older versions)
+            int[] snapshot_records = {0};
+            covered_seq = persis_manager.read_snapshot(o -> {
+                // if object has an id
+                if (o.has("id")) {
+                    String id = o.get("id").getAsString();
+                    long lamport = o.has("lamport") ? o.get("lamport").getAsLong() : 0;
+                    String source = o.has("source_id") ? o.get("source_id").getAsString() : "unknown";   // for identifying source content server
+
+                    shard_for(id).put(WeatherRecord.from_json(o, lamport, source));
+                    snapshot_records[0]++;
+                }
+            });
+
+            // replay WAL for any update not in snapshot
+            // (always, the WAL alone may hold everything if we crashed before the first checkpoint)
+            PersistenceManager.Replay replay = persis_manager.replay_WAL(covered_seq);
+            // stations expired after the snapshot was taken; whatever the WAL has after their tombstone replaces them
+            for (String id : replay.reset) {
+                shard_for(id).remove(id);
+            }
+            int applied = 0;
+            for (JsonObject new_o : replay.latest) {
+                String id = new_o.get("id").getAsString();
+                long lamport = new_o.has("lamport") ? new_o.get("lamport").getAsLong() : 0;
+                String source = new_o.has("source_id") ? new_o.get("source_id").getAsString() : "unknown";       // for identifying source content server
+
+                // overwrite old record -> larger lamport means new
+                WriterShard shard = shard_for(id);
+                WeatherRecord existing = shard.records.get(id);
+                if (existing == null || lamport >= existing.lamport || replay.reset.contains(id)) {
+                    shard.put(WeatherRecord.from_json(new_o, lamport, source));
+                    applied++;
+                }
             }
+
+            System.out.println("Recovery: " + snapshot_records[0] + " snapshot records, " + replay.records_read
+                    + " WAL records read from " + replay.segments + " segments (" + applied + " applied, "
+                    + replay.reset.size() + " expired), "
+                    + all_records().size() + " stations in " + (System.nanoTime() - started) / 1_000_000 + " ms");
         } catch (Exception e) {
             System.err.println("Failed to load snapshot/WAL" + e.getMessage());
         }
+        return covered_seq;
     }
 
     // Starting the aggregation server and start accepting request
     private void start() throws IOException {
-        try (ServerSocket server = new ServerSocket(port)) {
-            System.out.println("Aggregation Server listening on port " + port);
+        ServerConfig.IoMode io_mode = config.io_mode;
+        if (io_mode == ServerConfig.IoMode.NIO) {
+            // One selector thread for every connection, PUTs answered when their future completes
+            new NioFrontEnd(config, this::dispatch, lp_clock::get).run();
+            return;
+        }
+
+        // for new connection to server socket
+        // Virtual threads park cheaply on socket reads and on the PUT's result future,
+        // so one per connection costs a small heap object instead of a platform stack
+        ExecutorService connection_pool = io_mode == ServerConfig.IoMode.VIRTUAL
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+
+        try (ServerSocket server = new ServerSocket(config.port, config.connect_backlog)) {
+            System.out.println("Aggregation Server listening on port " + config.port + " (" + io_mode.name().toLowerCase() + ")");
             // Accpeting requests while on
             while (running) {
                 Socket s = server.accept();
@@ -132,49 +394,83 @@ public class AggregationServer {
         }
     }
 
-    // ---- HTTP Request Handling -----
+    // ---- Blocking front end: one pooled thread per connection ----
+    /**
+     * Serves requests on the socket until the client asks to close, the connection
+     * sits idle for idle_timeout_ms, or max_requests have been answered.
+     * Pipelined requests are already waiting in buffer_input and are answered in order;
+     * their responses are only flushed once nothing more is buffered.
+     */
     private void handle_connection(Socket s) {
-        try(BufferedInputStream buffer_input = new BufferedInputStream(s.getInputStream());
-            OutputStream out_stream = s.getOutputStream()){
-            BufferedReader reader = new BufferedReader(new InputStreamReader(buffer_input, StandardCharsets.UTF_8));
-
-            // read each line from the request
-            String request_line = reader.readLine();
-            if (request_line == null) return;
+        try(Socket socket = s;
+            BufferedInputStream buffer_input = new BufferedInputStream(socket.getInputStream());
+            OutputStream out_stream = new BufferedOutputStream(socket.getOutputStream())){
+            socket.setSoTimeout(config.idle_timeout_ms);
+            int served = 0;
+            boolean keep_alive = true;
+            while (keep_alive) {
+                HttpResponse response;
+                boolean head_only;
+                try {
+                    HttpRequest request = HttpRequest.read(buffer_input);
+                    if (request == null) return;
+                    served++;
+                    keep_alive = running && request.keep_alive() && served < config.max_requests;
+                    head_only = request.head();
+                    response = dispatch(request).get();
+                } catch (HttpRequest.BadRequestException e) {
+                    response = new HttpResponse(400, e.getMessage());
+                    keep_alive = false;
+                    head_only = e.head();
+                }
+                write_response(out_stream, response, keep_alive, head_only);
+                if (response.stream != null) {
+                    stream_events(out_stream, response.stream);
+                    return;
+                }
+                if (!keep_alive || buffer_input.available() == 0) {
+                    out_stream.flush();         // immediate print out
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // idle keep-alive connection, just close it
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            String[] parts = request_line.split(" ");
-            String method = parts[0];
-            String path = parts[1];
+    // ---- SSE on the blocking front end: this thread writes the subscriber's events until either side closes ----
+    private void stream_events(OutputStream out_stream, Subscriber subscriber) {
+        try {
+            out_stream.flush();
+            while (!subscriber.closed()) {
+                byte[] event = subscriber.take(1000);
+                if (event == null) continue;
+                out_stream.write(event);
+                out_stream.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // subscriber went away
+        } finally {
+            subscriber.close();
+        }
+    }
 
+    // ---- HTTP Request Handling -----
+    /**
+     * Function: route one parsed request, shared by both front ends
+     *
+     * GETs and errors complete straight away; a PUT completes once the writer has
+     * applied it and its WAL record is durable, so no thread has to wait for it.
+     */
+    private CompletableFuture<HttpResponse> dispatch(HttpRequest request) {
+        try {
             // 400 - Requests are not either GET or PUT
-            if (!method.equals("GET") && !method.equals("PUT")) {
-                write_response(out_stream, 400, "Bad Request", lp_clock.get());
+            if (!request.method.equals("GET") && !request.method.equals("PUT")) {
+                return done(400, "Bad Request");
             }
 
-            // read header
-            long content_length = 0;
-            long remote_lamport = -1;
-            String content_type = "";
-            String source_id = "unknown";       // content server initial default
-            String line;
-            while ((line = reader.readLine()) != null && !line.isEmpty()) {
-                int index = line.indexOf(":");
-
-                if (index > 0) {
-                    String key = line.substring(0, index).trim();
-                    String value = line.substring(index + 1).trim();
-
-                    if (key.equalsIgnoreCase("Content-Length")){
-                        content_length = Long.parseLong(value);
-                    } else if (key.equalsIgnoreCase("Content-Type")){
-                        content_type = value;
-                    } else if (key.equalsIgnoreCase("X-Lamport-Clock")){
-                        remote_lamport = Long.parseLong(value);
-                    } else if (key.equalsIgnoreCase("X-Source-ID")) {
-                        source_id = value;
-                    }
-                }
-            }
+            long remote_lamport = request.header_long("X-Lamport-Clock", -1);
 
             // Update Aggregation Server Lamport Clock when receive request
             //if (remote_lamport >= 0){
@@ -182,221 +478,683 @@ public class AggregationServer {
             //}
 
             // ----- Handling PUT Request -----
-            if ("PUT".equalsIgnoreCase(method) && "/weather.json".equals(path)){
-                if (content_length == 0) {
-                    write_response(out_stream, 204, "No Content", lp_clock.get());
-                    return;
+            if ("PUT".equalsIgnoreCase(request.method) && "/weather.json".equals(request.path)){
+                // 503 - a backup (or a primary that stepped down) only serves GETs, content servers move on to the next server in their list
+                if (read_only) {
+                    return done(503, "Read only (a backup, or a replaced primary), send PUTs to the primary");
                 }
-
-                // reading the request body
-                char[] body_buffer = new char[(int) content_length];
-                int actual_read = 0;
-                // parse character buffer into body
-                while (actual_read < content_length) {
-                    int read_len = reader.read(body_buffer, actual_read, (int) (content_length - actual_read));
-                    if (read_len < 0) break;
-                    actual_read += read_len;
+                if (!request.body.hasRemaining()) {
+                    return done(204, "");
                 }
-                // example: body = "{\"id\":\"123\",\"temp\":25,\"humidity\":80}"
-                String body = new String(body_buffer, 0, Math.max(0, actual_read));
 
-                // Convert body into JSON object
-                JsonObject payload;
-                try {
-                    payload = new JsonParser().parse(body).getAsJsonObject();
+                long lamport_header = remote_lamport >= 0 ? remote_lamport : lp_clock.get();
+                String source_id = request.header("X-Source-ID", "unknown");       // content server initial default
+
+                // example: body = "{\"id\":\"123\",\"temp\":25,\"humidity\":80}"
+                // Read straight into records, or many for a batch (JSON array or NDJSON), in one pass over the body
+                List<WeatherRecord> records;
+                boolean batch;
+                try (JsonReader in = new JsonReader(request.body_reader())) {
+                    in.setStrictness(Strictness.LENIENT);           // as JsonParser was: NDJSON is many top-level values
+                    boolean ndjson = request.header("Content-Type", "").contains("ndjson");
+                    batch = ndjson || in.peek() == JsonToken.BEGIN_ARRAY;
+                    records = read_records(in, ndjson, lamport_header, source_id);
                 } catch (Exception e){
-                    write_response(out_stream, 500, "Invalid JSON!", lp_clock.get());
-                    return;
+                    return done(500, "Invalid JSON!");
                 }
-
-                // 500 - Missing id
-                String id = payload.has("id") ? payload.get("id").getAsString() : null;
-                if (id == null || id.isEmpty()) {
-                    write_response(out_stream, 500, "Missing id in payload!", lp_clock.get());
-                    return;
+                if (records.isEmpty()) {
+                    return done(204, "");
                 }
 
-                // Prepare PUT request for writer to update
-                long lamport_header = remote_lamport >= 0 ? remote_lamport : lp_clock.get();
-                PutRequest req = new PutRequest(lamport_header, arrival_seq.incrementAndGet(), payload.deepCopy(), source_id);
-                request_queue.put(req);
+                // 500 - Missing id (for a batch only that record fails, see enqueue_put)
+                if (!batch && records.get(0).id == null) {
+                    return done(500, "Missing id in payload!");
+                }
 
-                int result = req.result_future.get();
+                // Prepare PUT request for writer to update (503 straight away if its shard is full)
+                CompletableFuture<int[]> statuses = enqueue_put(lamport_header, source_id, records);
 
-                // update last_update table as we got a new PUT from a content server
-                // ------ Reetrant Lock ------
-                // This is needed because expiry_checker might be checking while we have a new PUT
-                reentrant_lock.writeLock().lock();
-                try{
-                    last_update.put(req.source_id, System.currentTimeMillis());
-                } finally {
-                    reentrant_lock.writeLock().unlock();
+                // Send 201 or 200 to content server once the writer completes it
+                // Only the writer decides on a 503 (a unit still queued at its deadline), so a PUT that was applied is never told to retry
+                if (!batch) {
+                    return statuses.thenApply(result -> result[0] == 503 ? overloaded()
+                            : new HttpResponse(result[0], result[0] == 201 ? "Created" : result[0] == 200 ? "OK" : "Internal Server Error"));
                 }
-
-                // Send 201 or 200 to content server
-                write_response(out_stream,result, result == 201? "Created" : "OK", lp_clock.get());
-            } else if ("GET".equalsIgnoreCase(method) && "/weather.json".equals(path)){
+                // Batch: 200 with the status of every record, in request order (503 if none of them could be queued)
+                return statuses.thenApply(result -> {
+                    JsonArray results = new JsonArray();
+                    int shed = 0;
+                    for (int i = 0; i < result.length; i++) {
+                        JsonObject r = new JsonObject();
+                        r.addProperty("id", records.get(i).id);
+                        r.addProperty("status", result[i]);
+                        results.add(r);
+                        if (result[i] == 503) shed++;
+                    }
+                    if (shed == result.length) return overloaded();
+                    JsonObject response = new JsonObject();
+                    response.add("results", results);
+                    return new HttpResponse(200, gson.toJson(response).getBytes(StandardCharsets.UTF_8),
+                            shed > 0 ? "Retry-After: " + RETRY_AFTER_S + "\r\n" : "");
+                });
+            } else if ("GET".equalsIgnoreCase(request.method) && "/weather.json".equals(request.path)){
                 // Update agg server lamport to reflect we've seen the GET
                 lp_clock.on_receive(remote_lamport);
 
-                // Send to queue
-                PutRequest req = new PutRequest(remote_lamport, arrival_seq.incrementAndGet());
-                request_queue.put(req);
+                // Read the latest published view directly, no queue and no lock
+                // A PUT is only acknowledged after a view containing it was published, so PUT -> GET -> PUT still holds
+                FeedView view = current_view.get();
 
-                // Wait until writer processes GET
-                JsonArray arr = req.get_future.get();
-                write_response(out_stream, 200, gson.toJson(arr), lp_clock.get());
+                // ---- Subscription: the same deltas, pushed as Server-Sent Events ----
+                if (request.header("Accept", "").contains("text/event-stream")) {
+                    return CompletableFuture.completedFuture(HttpResponse.stream(subscribe(request)));
+                }
 
-            } else {
-                write_response(out_stream, 400, "Only accept GET or PUT", lp_clock.get());
+                // ---- Delta GET: only what changed after the client's last watermark ----
+                if (request.param("since") != null) {
+                    return CompletableFuture.completedFuture(delta_response(view, request));
+                }
+
+                // Filtered GETs are small and built per request, only the whole feed is cached (and gzip'ed)
+                boolean filtered = request.param("state") != null || request.param("source_id") != null
+                        || request.param("fields") != null;
+                boolean gzip = !filtered && request.header("Accept-Encoding", "").contains("gzip");
+                String etag = etag(view, gzip);
+                String view_headers = "X-Lamport-Watermark: " + view.watermark + "\r\nETag: " + etag + "\r\n";
+                // the whole feed comes plain or gzip'ed (cached, chunked, 304) by Accept-Encoding, caches must key on it
+                if (!filtered) view_headers += "Vary: Accept-Encoding\r\n";
+
+                // 304 - the client already has this version, nothing is encoded or sent
+                if (etag_matches(request.header("If-None-Match"), etag)) {
+                    metrics.counter("get_not_modified").incrementAndGet();
+                    return CompletableFuture.completedFuture(new HttpResponse(304, new byte[0], view_headers));
+                }
+
+                // ---- ?state= / ?source_id= read off the indexes, ?fields= applied while writing ----
+                if (filtered) {
+                    return CompletableFuture.completedFuture(query_response(view, request, view_headers));
+                }
+
+                // A big feed is encoded as it is written out, a chunk at a time, so a GET never holds all of it
+                // (HTTP/1.0 clients cannot take chunked bodies, they get the cached bytes)
+                if (view.size() > config.stream_get_records && !request.version.equals("HTTP/1.0")) {
+                    metrics.counter("get_streamed").incrementAndGet();
+                    return CompletableFuture.completedFuture(HttpResponse.chunked(new ChunkedBody(view.record_iterator(), null, gzip),
+                            view_headers + (gzip ? "Content-Encoding: gzip\r\n" : "")));
+                }
+
+                // Same bytes for every GET until the view version changes
+                if (gzip) {
+                    return CompletableFuture.completedFuture(new HttpResponse(200, response_cache.gzip_body(view), view_headers + "Content-Encoding: gzip\r\n"));
+                }
+                return CompletableFuture.completedFuture(new HttpResponse(200, response_cache.body(view), view_headers));
+            } else if ("GET".equalsIgnoreCase(request.method) && request.path.startsWith("/weather/") && request.path.endsWith("/history")){
+                // ---- Recent observations of one station: GET /weather/{id}/history?from=&to= ----
+                lp_clock.on_receive(remote_lamport);
+                return CompletableFuture.completedFuture(history_response(request));
+            } else if ("GET".equalsIgnoreCase(request.method) && request.path.startsWith("/weather/")){
+                // ---- Point lookup: GET /weather/{id}, one probe in the owning shard's slot ----
+                lp_clock.on_receive(remote_lamport);
+                FeedView view = current_view.get();
+                String etag = etag(view, false);
+                String view_headers = "X-Lamport-Watermark: " + view.watermark + "\r\nETag: " + etag + "\r\n";
+                if (etag_matches(request.header("If-None-Match"), etag)) {
+                    metrics.counter("get_not_modified").incrementAndGet();
+                    return CompletableFuture.completedFuture(new HttpResponse(304, new byte[0], view_headers));
+                }
+                return CompletableFuture.completedFuture(lookup_response(view, request, view_headers));
+            } else if ("GET".equalsIgnoreCase(request.method) && "/aggregates".equals(request.path)){
+                // ---- Per state / per source_id stats, kept up to date by the writers, merged over the shards ----
+                lp_clock.on_receive(remote_lamport);
+                FeedView view = current_view.get();
+                String etag = etag(view, false);
+                String view_headers = "X-Lamport-Watermark: " + view.watermark + "\r\nETag: " + etag + "\r\n";
+                if (etag_matches(request.header("If-None-Match"), etag)) {
+                    metrics.counter("get_not_modified").incrementAndGet();
+                    return CompletableFuture.completedFuture(new HttpResponse(304, new byte[0], view_headers));
+                }
+                metrics.counter("get_aggregates").incrementAndGet();
+                return CompletableFuture.completedFuture(new HttpResponse(200, view.aggregates_json(), view_headers));
+            } else if ("GET".equalsIgnoreCase(request.method) && "/metrics".equals(request.path)){
+                return done(200, gson.toJson(metrics.to_json()));
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return done(400, "Only accept GET or PUT");
+        } catch (HttpRequest.BadRequestException e) {
+            return done(400, e.getMessage());
         }
     }
 
-    // ----- Helper function for processing GET request ------
-    private void process_get(PutRequest req){
-        // GET is locked to prevent later PUT interleave
-        reentrant_lock.readLock().lock();
-        try{
-            // Sending multiple weather records back
-            JsonArray arr = new JsonArray();
-            for (Map.Entry<String, WeatherRecord> e : memory_store.entrySet()) {
-                arr.add(e.getValue().data);
+    // ---- Queue a PUT: one unit per shard its records belong to ----
+    // The returned statuses are in request order; records without an id get 500 and are not queued
+    private CompletableFuture<int[]> enqueue_put(long lamport, String source_id, List<WeatherRecord> records) {
+        long deadline = System.currentTimeMillis() + config.put_deadline_ms;
+        if (records.size() == 1) {
+            WriterShard shard = shard_for(records.get(0).id);
+            if (!admit(shard)) return CompletableFuture.completedFuture(new int[]{503});
+            return enqueue(shard, lamport, records, source_id, deadline).result_future;
+        }
+
+        int[] statuses = new int[records.size()];
+        Map<WriterShard, List<Integer>> by_shard = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            String id = records.get(i).id;
+            if (id == null) {
+                statuses[i] = 500;
+                continue;
+            }
+            by_shard.computeIfAbsent(shard_for(id), shard -> new ArrayList<>()).add(i);
+        }
+
+        // All or nothing: a batch is only queued if every shard it touches has room
+        for (WriterShard shard : by_shard.keySet()) {
+            if (admit(shard)) continue;
+            for (List<Integer> indices : by_shard.values()) {
+                for (int i : indices) statuses[i] = 503;
             }
-            req.get_future.complete(arr);
+            return CompletableFuture.completedFuture(statuses);
+        }
+
+        List<CompletableFuture<Void>> units = new ArrayList<>();
+        for (Map.Entry<WriterShard, List<Integer>> entry : by_shard.entrySet()) {
+            List<Integer> indices = entry.getValue();
+            List<WeatherRecord> unit = new ArrayList<>(indices.size());
+            for (int i : indices) unit.add(records.get(i));
+
+            PutRequest req = enqueue(entry.getKey(), lamport, unit, source_id, deadline);
+            units.add(req.result_future.thenAccept(result -> {
+                for (int j = 0; j < result.length; j++) statuses[indices.get(j)] = result[j];
+            }));
+        }
+        return CompletableFuture.allOf(units.toArray(CompletableFuture<?>[]::new)).thenApply(ignored -> statuses);
+    }
+
+    // ---- Hand a unit to its shard's writer ----
+    // The arrival seq is taken and the unit queued under the shard's enqueue_lock, so a queue receives its units
+    // in arrival order and a drain never leaves behind a unit that arrived before an equal-lamport one it took:
+    // a station's records reach the store and its history in (lamport, arrival_seq) order across drains too
+    private PutRequest enqueue(WriterShard shard, long lamport, List<WeatherRecord> records, String source_id, long deadline) {
+        shard.enqueue_lock.lock();
+        try {
+            PutRequest req = new PutRequest(lamport, arrival_seq.incrementAndGet(), records, source_id, deadline);
+            shard.request_queue.put(req);
+            return req;
         } finally {
-            reentrant_lock.readLock().unlock();
+            shard.enqueue_lock.unlock();
         }
     }
 
+    // ---- Admission: room in the shard's queue for one more unit (the bound is soft, a few racing PUTs may pass) ----
+    private boolean admit(WriterShard shard) {
+        if (config.max_queued_puts == 0 || shard.request_queue.size() < config.max_queued_puts) return true;
+        metrics.counter("puts_shed_queue_full").incrementAndGet();
+        return false;
+    }
+
+    // 503 for a PUT the server cannot take now, with how long to wait before sending it again
+    private static HttpResponse overloaded() {
+        return new HttpResponse(503, "Server busy, retry later".getBytes(StandardCharsets.UTF_8), "Retry-After: " + RETRY_AFTER_S + "\r\n");
+    }
+
+    // ---- Delta GET body for ?since=<watermark>[&epoch=<epoch>] ----
+    // Falls back to a full resync ("full": true, every record) when the change logs no longer reach back to since,
+    // or the watermark came from an earlier run of the server (epoch differs, stamps started again)
+    private HttpResponse delta_response(FeedView view, HttpRequest request) throws HttpRequest.BadRequestException {
+        long since = request.param_long("since", 0);
+        String epoch = request.param("epoch");
+        String delta = epoch == null || epoch.equals(boot_epoch) ? view.delta_json(since, boot_epoch) : null;
+        if (delta == null) {
+            metrics.counter("get_delta_full_resyncs").incrementAndGet();
+            delta = view.resync_json(boot_epoch);
+        } else {
+            metrics.counter("get_deltas").incrementAndGet();
+        }
+        return new HttpResponse(200, delta.getBytes(StandardCharsets.UTF_8), "X-Lamport-Watermark: " + view.watermark + "\r\n");
+    }
+
+    // ---- New SSE subscriber, starting after ?since= (&epoch=) or a reconnect's Last-Event-ID ("<epoch>:<watermark>") ----
+    // Without either it starts from 0, so the first event carries every station
+    private Subscriber subscribe(HttpRequest request) throws HttpRequest.BadRequestException {
+        long since = request.param_long("since", 0);
+        String epoch = request.param("epoch");
+        String last_event = request.header("Last-Event-ID");
+        if (last_event != null) {
+            int colon = last_event.indexOf(':');
+            epoch = colon < 0 ? "" : last_event.substring(0, colon);
+            try {
+                since = Long.parseLong(last_event.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new HttpRequest.BadRequestException("bad Last-Event-ID");
+            }
+        }
+        // -1: from an earlier run of the server, the first event is a full resync
+        Subscriber subscriber = new Subscriber(epoch == null || epoch.equals(boot_epoch) ? since : -1);
+        subscriptions.add(subscriber);
+        return subscriber;
+    }
+
+    // ---- ETag of anything answered from this view: "<epoch>-<view version>", every body of a version stays the same ----
+    private String etag(FeedView view, boolean gzip) {
+        return "\"" + boot_epoch + "-" + view.version + (gzip ? "-gz" : "") + "\"";
+    }
+
+    // ---- Filtered GET: ?state=, ?source_id= (both: records matching both) and ?fields=a,b projection ----
+    // Only the matching records are read, through the state / source_id indexes of each slot
+    private HttpResponse query_response(FeedView view, HttpRequest request, String view_headers) {
+        String state = request.param("state");
+        String source_id = request.param("source_id");
+        Set<String> fields = fields(request);
+        metrics.counter("get_filtered").incrementAndGet();
+
+        if (state == null && source_id == null) {
+            // a projection of the whole feed, too big to build in one piece once the feed is big
+            if (view.size() > config.stream_get_records && !request.version.equals("HTTP/1.0")) {
+                metrics.counter("get_streamed").incrementAndGet();
+                return HttpResponse.chunked(new ChunkedBody(view.record_iterator(), fields, false), view_headers);
+            }
+            return new HttpResponse(200, FeedView.json_bytes(view.records(), fields), view_headers);
+        }
+        return new HttpResponse(200, FeedView.json_bytes(view.matching(state, source_id), fields), view_headers);
+    }
+
+    // ---- GET /weather/{id}: the station's record (projected by ?fields=), 404 if there is none ----
+    private HttpResponse lookup_response(FeedView view, HttpRequest request, String view_headers) {
+        String id = URLDecoder.decode(request.path.substring("/weather/".length()), StandardCharsets.UTF_8);
+        WeatherRecord record = id.isEmpty() ? null : view.get(id);
+        metrics.counter("get_lookups").incrementAndGet();
+        if (record == null) {
+            return new HttpResponse(404, "No such station".getBytes(StandardCharsets.UTF_8), view_headers);
+        }
+        return new HttpResponse(200, record.to_json_string(fields(request)).getBytes(StandardCharsets.UTF_8), view_headers);
+    }
+
+    // ---- GET /weather/{id}/history: the station's kept observations, oldest first, 404 if it has none ----
+    // from / to bound local_date_time_full (eg. 20230715160000), both inclusive and optional
+    // Read from the shard's live rings, not the view, so it may already hold a write whose view is not published yet
+    private HttpResponse history_response(HttpRequest request) throws HttpRequest.BadRequestException {
+        String path = request.path;
+        String id = URLDecoder.decode(path.substring("/weather/".length(), path.length() - "/history".length()), StandardCharsets.UTF_8);
+        long from = request.param_long("from", Long.MIN_VALUE);
+        long to = request.param_long("to", Long.MAX_VALUE);
+        StationHistory history = id.isEmpty() ? null : shard_for(id).history(id);
+        metrics.counter("get_history").incrementAndGet();
+        if (history == null) {
+            return new HttpResponse(404, "No history for this station");
+        }
+        StringWriter text = new StringWriter(1024);
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            out.name("id").value(id);
+            out.name("history");
+            history.write_json(out, from, to);
+            out.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);       // in-memory writer, cannot happen
+        }
+        return new HttpResponse(200, text.toString().getBytes(StandardCharsets.UTF_8), "X-Lamport-Watermark: " + current_view.get().watermark + "\r\n");
+    }
+
+    // ?fields=id,air_temp -> the keys to keep, null (every key) without the parameter
+    private static Set<String> fields(HttpRequest request) {
+        String fields = request.param("fields");
+        if (fields == null) return null;
+        Set<String> keys = new HashSet<>();
+        for (String key : fields.split(",")) {
+            if (!key.isBlank()) keys.add(key.trim());
+        }
+        return keys;
+    }
+
+    // ---- If-None-Match: "*" or a comma separated list of tags, weak (W/) tags compare the same ----
+    private static boolean etag_matches(String if_none_match, String etag) {
+        if (if_none_match == null) return false;
+        for (String tag : if_none_match.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    // ---- PUT body to records: NDJSON (one object per line), a JSON array, or one object ----
+    // Parsed where the body lies with a streaming JsonReader, each object straight into a WeatherRecord,
+    // so there is no String copy of the body and no JsonObject tree; a record without an id has id == null
+    private static List<WeatherRecord> read_records(JsonReader in, boolean ndjson, long lamport, String source_id) throws IOException {
+        List<WeatherRecord> records = new ArrayList<>();
+        if (ndjson) {
+            while (in.peek() != JsonToken.END_DOCUMENT) records.add(WeatherRecord.read_json(in, lamport, source_id));
+        } else if (in.peek() == JsonToken.BEGIN_ARRAY) {
+            in.beginArray();
+            while (in.hasNext()) records.add(WeatherRecord.read_json(in, lamport, source_id));
+            in.endArray();
+        } else {
+            records.add(WeatherRecord.read_json(in, lamport, source_id));
+        }
+        if (in.peek() != JsonToken.END_DOCUMENT) throw new IOException("trailing data after JSON body");
+        return records;
+    }
+
+    private static CompletableFuture<HttpResponse> done(int status, String body) {
+        return CompletableFuture.completedFuture(new HttpResponse(status, body));
+    }
+
+    // ----- Helpers for the sharded store ------
+    private WriterShard shard_for(String id) {
+        return shards[WriterShard.shard_of(id, shards.length)];
+    }
+
+    // Every record in the store, less the ones whose tombstones are already logged (see log_removal)
+    private List<WeatherRecord> all_records() {
+        List<WeatherRecord> all = new ArrayList<>();
+        for (WriterShard shard : shards) {
+            for (WeatherRecord record : shard.records.values()) {
+                if (removing.get(record.id) != record) all.add(record);
+            }
+        }
+        return all;
+    }
+
+    // ----- Helper function for publishing what GETs see ------
+    // Swap in a view with this shard's slot replaced; other shards may publish at the same time, hence the CAS loop
+    // The shard's unpublished writes and the given tombstones go into its change log under a fresh
+    // server Lamport stamp, taken inside the CAS so stamps only grow in publish order
+    private void publish_view(WriterShard shard, List<String> deletes) {
+        FeedView.Slot slot = shard.slot();
+        List<WeatherRecord> upserts = List.copyOf(shard.unpublished);
+        shard.unpublished.clear();
+        current_view.updateAndGet(view -> view.with_shard(shard.index, shard.applied_watermark, slot, lp_clock.tick(), upserts, deletes));
+        subscriptions.published();
+    }
+
+    // Every shard's slot, nothing deleted since its last publish; caller holds the write lock (or is still in the constructor)
+    private void publish_all() {
+        for (WriterShard shard : shards) publish_view(shard, List.of());
+    }
+
     // ---- Helper function for outputing ----
-    private void write_response(OutputStream out_stream, int status, String body, long lamport) throws IOException {
-        // Store char as byte and prepare header
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-        String headers = "HTTP/1.1 " + status + " OK\r\n" +
-                "Content-Length: " + bytes.length + "\r\n" +
-                "Content-Type: application/json\r\n" +
-                "X-Lamport-Clock: " + lp_clock.get() + "\r\n\r\n";           // everything we send back is JSON (Serialisation)
-        out_stream.write(headers.getBytes(StandardCharsets.UTF_8));
-        out_stream.write(bytes);
-        out_stream.flush();         // immediate print out
-    }
-
-    // ---- writer for processing PUT with queue ----
-    private void start_worker() {
-        // writer takes requests from PUT queue and call apply_put()
+    // A HEAD is only ever answered 400, but like any answer to a HEAD it is the head alone
+    private void write_response(OutputStream out_stream, HttpResponse response, boolean keep_alive, boolean head_only) throws IOException {
+        out_stream.write(response.head(lp_clock.get(), keep_alive));
+        if (head_only) return;
+        out_stream.write(response.body);
+        if (response.chunked != null) {
+            // one chunk at a time through the buffered stream, it blocks while the client is slow to read
+            byte[] chunk;
+            while ((chunk = response.chunked.next()) != null) {
+                out_stream.write(chunk);
+            }
+        }
+    }
+
+    // ---- writer for processing PUT with queue (one per shard) ----
+    private void start_worker(WriterShard shard) {
+        // writer takes requests from its shard's PUT queue and call log_put() / apply_logged()
+        // Everything already queued is applied as one batch, then one view is published for all of it
+        // Within a batch only the last PUT per station is written, the ones it overwrites are collapsed
         Thread writer = new Thread(() -> {
+            List<PutRequest> batch = new ArrayList<>();
+            List<LoggedPut> logged = new ArrayList<>();
+            Map<String, WeatherRecord> latest = new HashMap<>();
+            Set<String> seen = new HashSet<>();
             while (true) {
                 try {
-                    PutRequest req = request_queue.take();
+                    // Drain in (lamport, arrival) order, the queue hands them out by priority
+                    PutRequest req = shard.request_queue.take();
+                    do {
+                        batch.add(req);
+                    } while (batch.size() < WRITER_BATCH && (req = shard.request_queue.poll()) != null);
+
+                    // A unit that waited past its deadline is answered 503 and not applied, the client retries it
+                    long now = System.currentTimeMillis();
+                    batch.removeIf(queued -> {
+                        if (!queued.expired(now)) return false;
+                        int[] shed = new int[queued.records.size()];
+                        Arrays.fill(shed, 503);
+                        queued.result_future.complete(shed);
+                        metrics.counter("puts_shed_expired").incrementAndGet();
+                        return true;
+                    });
+                    if (batch.isEmpty()) continue;
 
-                    // Process PUT or GET based on type
-                    if (req.type == PutRequest.Type.PUT) {
-                        apply_put(req);
-                    } else if (req.type == PutRequest.Type.GET) {
-                        process_get(req);
+                    // A unit that arrived while we drained can come out after one it sorts before,
+                    // so put the batch back in (lamport, arrival) order before anything is applied
+                    Collections.sort(batch);
+
+                    // Last record per station in this batch, that is the one that would be left standing
+                    latest.putAll(PutRequest.latest_per_station(batch));
+
+                    // ------ Reetrant lock (shared with the other shards) --------
+                    // Held from the WAL appends to the publish, so a checkpoint or a backup's cut (write lock)
+                    // never falls between a record being logged and it being in the store
+                    reentrant_lock.readLock().lock();
+                    try {
+                        for (PutRequest queued : batch) {
+                            logged.add(log_put(shard, queued, latest, seen));
+                        }
+
+                        // Nothing reaches the store, the view (GETs, SSE) or the change log before the WAL
+                        // holds it, the group commit syncs the whole batch together
+                        boolean batch_durable = true;
+                        for (LoggedPut unit : logged) {
+                            try {
+                                unit.durable.join();
+                            } catch (CompletionException e) {
+                                unit.failed = true;
+                                batch_durable = false;
+                            }
+                        }
+                        for (LoggedPut unit : logged) {
+                            apply_logged(shard, unit, batch_durable);
+                        }
+                        publish_view(shard, List.of());
+                    } finally {
+                        reentrant_lock.readLock().unlock();
+                    }
+
+                    // Only acknowledge once GETs can see the batch
+                    for (LoggedPut unit : logged) {
+                        unit.req.result_future.complete(unit.statuses);
                     }
                 } catch(Exception e) {
-                    System.err.println("Writer: cannot process PUT or GET" + e.getMessage());
+                    System.err.println("Writer: cannot process PUT " + e.getMessage());
+                    // every unit of the batch not answered yet gets a 500, so no client waits on it forever
+                    for (PutRequest queued : batch) {
+                        int[] failed = new int[queued.records.size()];
+                        Arrays.fill(failed, 500);
+                        queued.result_future.complete(failed);
+                    }
+                } finally {
+                    batch.clear();
+                    logged.clear();
+                    latest.clear();
+                    seen.clear();
                 }
             }
-        },"Put Worker");
+        },"Put Worker-" + shard.index);
         writer.start();
     }
 
-    // ---- Function for processing the PUT request ----
-    private void apply_put(PutRequest req) {
+    // ---- One unit of a writer batch between its WAL append and its store update ----
+    private static final class LoggedPut {
+        final PutRequest req;
+        final int[] statuses;
+        final List<Integer> logged = new ArrayList<>();         // which records went into the WAL
+        final List<Integer> collapsed = new ArrayList<>();      // which records were overwritten later in the batch
+        CompletableFuture<Void> durable;
+        boolean failed = false;                                 // its WAL append did not sync
 
-        // ------ Reetrant lock --------
-        // Lock this to prevent GET to interleave
-        reentrant_lock.writeLock().lock();
-        try {
-            // If an existing record exists and its lamport is greater than incoming, ignore.
-            String id = req.payload.get("id").getAsString(); // use payload id
-            WeatherRecord existing = memory_store.get(id);
-            if (existing != null && req.lamport < existing.lamport) {
-                // return 200 "OK" but do not overwrite.
-                req.result_future.complete(200);
-                // Update agg server lamport even if we dont use the new PUT
-                lp_clock.on_receive(req.lamport);
-                return;
-            }
+        LoggedPut(PutRequest req) {
+            this.req = req;
+            this.statuses = new int[req.records.size()];
+        }
+    }
 
-            // ---- prepare for write-ahead-log (wal) ----
-            JsonObject wal_payload = req.payload.deepCopy();
-            wal_payload.addProperty("lamport", req.lamport);
-            persis_manager.append_wal(req.lamport, req.source_id, wal_payload);
+    // ---- Function for processing the PUT request, step 1: decide and log ----
+    // Called by the shard's writer with the read lock held; works out the 201/200 per record and queues
+    // the records that will be stored for the WAL, the store itself is not touched yet (see apply_logged)
+    // latest - last record per station in the writer's batch, any other record for that station is collapsed:
+    //          not stored or logged, but answered as if it had been applied in order
+    // seen   - stations earlier in the batch already touched, so a later PUT for one is a 200, not a 201
+    private LoggedPut log_put(WriterShard shard, PutRequest req, Map<String, WeatherRecord> latest, Set<String> seen) {
+        // update last_update table as we got a new PUT from a content server
+        // Done here under the writers' lock, since expiry_checker might be checking while we have a new PUT
+        // A source seen for the first time (or again after expiring) gets its deadline in the wheel
+        long now = System.currentTimeMillis();
+        if (last_update.put(req.source_id, now) == null) {
+            expiry_wheel.schedule(req.source_id, now + config.expiry_ms);
+        }
 
-            // ---- Write to in-memory -----
-            boolean created = !memory_store.containsKey(id);
-            // update the memory_store with new lamport
-            req.payload.addProperty("lamport", req.lamport);
-            memory_store.put(id, new WeatherRecord(id, req.payload.deepCopy(), req.lamport, req.source_id));
+        LoggedPut unit = new LoggedPut(req);
+        List<WeatherRecord> wal_records = new ArrayList<>();
+        for (int i = 0; i < req.records.size(); i++) {
+            WeatherRecord record = req.records.get(i);
+            try {
+                // If an existing record exists and its lamport is greater than incoming, ignore.
+                String id = record.id; // use payload id
+                WeatherRecord existing = shard.records.get(id);
+                boolean first = existing == null && seen.add(id);
+                if (existing != null && req.lamport < existing.lamport) {
+                    // return 200 "OK" but do not overwrite.
+                    unit.statuses[i] = 200;
+                    continue;
+                }
 
-            // Update agg server lamport
-            lp_clock.on_receive(req.lamport);
+                // 201 - first time created
+                // 200 - sucessful
+                unit.statuses[i] = first ? 201 : 200;
 
-            // ---- Write snapshot ----
-            persis_manager.write_snapshot(memory_store);
+                // A later PUT in this batch overwrites this one anyway, skip the write
+                // (it is still an observation, so it goes into the station's history)
+                if (latest.get(id) != record) {
+                    unit.collapsed.add(i);
+                    continue;
+                }
 
-            // 201 - first time created
-            // 200 - sucessful
-            req.result_future.complete(created ? 201: 200);
-        } catch (Exception e) {
-            // 500 - internal server error
-            req.result_future.complete(500);
-        } finally {
-            reentrant_lock.writeLock().unlock();
+                // ---- The record read off the request body, shared by the store, the WAL and the views (never copied) ----
+                // ---- prepare for write-ahead-log (wal) ----
+                wal_records.add(record);
+                unit.logged.add(i);
+            } catch (Exception e) {
+                // 500 - internal server error
+                unit.statuses[i] = 500;
+            }
+        }
+
+        // Update agg server lamport even if we dont use the new PUT
+        lp_clock.on_receive(req.lamport);
+
+        // ---- One WAL append for the whole unit ----
+        // Only queued here, the WAL committer syncs it together with other PUTs
+        // No snapshot here, the checkpointer picks this up from the WAL size/time trigger
+        unit.durable = wal_records.isEmpty()
+                ? CompletableFuture.completedFuture(null)
+                : persis_manager.append_wal(req.lamport, req.source_id, wal_records);
+        if (!unit.collapsed.isEmpty()) {
+            metrics.counter("collapsed_writes").addAndGet(unit.collapsed.size());
+        }
+        return unit;
+    }
+
+    // ---- Step 2: the unit's WAL append has synced (or failed), store what it logged ----
+    // A collapsed record lives on in a later record of the batch, so it only counts if the whole batch synced
+    // Records go into the history in batch order, which is (lamport, arrival) order
+    private void apply_logged(WriterShard shard, LoggedPut unit, boolean batch_durable) {
+        PutRequest req = unit.req;
+        for (int i : unit.collapsed) {
+            if (batch_durable) shard.append_history(req.records.get(i));
+            else unit.statuses[i] = 500;
+        }
+        for (int i : unit.logged) {
+            if (unit.failed) {
+                unit.statuses[i] = 500;
+                continue;
+            }
+            // ---- Write to in-memory -----
+            WeatherRecord record = req.records.get(i);
+            shard.put(record);
+            shard.append_history(record);
+            shard.unpublished.add(record);
+        }
+        if (!unit.failed && !unit.logged.isEmpty()) {
+            shard.applied_watermark = Math.max(shard.applied_watermark, req.lamport);
         }
     }
 
     // ---- Function for checking out of contact Content Server ----
+    // Only sources whose deadline came round in the wheel are looked at, and only the records of the ones
+    // still quiet are removed (via the per-shard source index), so a sweep costs O(expired records)
+    // Removals are logged to the WAL as tombstones before they are applied, so a restart does not bring them back
     private void start_expiry_checker() {
         // Initialising thread for disconnecting content servers
         ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
-        // Run periodically every 5 seconds
+        // Run every wheel tick
         executor.scheduleAtFixedRate(()->{
+            // a backup removes what its primary removes (replicated tombstones), deadlines stay in the wheel till it is promoted
+            if (read_only) return;
             long current_time = System.currentTimeMillis();
 
-            // ------ Reetrant lock --------
+            // Due sources that sent a PUT since go back in the wheel, without any lock
+            List<String> stale = new ArrayList<>();
+            for (String source : expiry_wheel.due(current_time)) {
+                Long last_seen = last_update.get(source);
+                if (last_seen == null) continue;
+                if (current_time - last_seen > config.expiry_ms) stale.add(source);
+                else expiry_wheel.schedule(source, last_seen + config.expiry_ms);
+            }
+            if (stale.isEmpty()) return;
+
+            // ------ Reetrant lock, held to pick the records, then per chunk of tombstones, not for the sync --------
+            Map<String, Long> expired = new HashMap<>();
+            Map<WriterShard, List<WeatherRecord>> records = new HashMap<>();
             reentrant_lock.writeLock().lock();
             try{
-                for (Map.Entry<String, Long> it : last_update.entrySet()) {
-                    // Check if server is inactive
-                    if (current_time - it.getValue() > 30_000) {
-                        String source = it.getKey();        // key (source_id of content server) : value (time when it last sent PUT)
-                        // remove this record of this content server
-                        // each weather record has a source_id because it was sent with the content server
-                        memory_store.entrySet().removeIf(content_server_iter -> source.equals(content_server_iter.getValue().source_id));
-                        last_update.remove(source);     // we can add the source back to last_seen if it send a PUT again
-
-                        // update the snapshot by persis_manager
-                        try { persis_manager.write_snapshot(memory_store); } catch (IOException e) { /* ignore this */ }
+                for (String source : stale) {
+                    // a PUT may have come in before we got the lock
+                    Long last_seen = last_update.get(source);
+                    if (last_seen == null) continue;
+                    if (current_time - last_seen <= config.expiry_ms) {
+                        expiry_wheel.schedule(source, last_seen + config.expiry_ms);
+                        continue;
+                    }
+                    // the records of this content server, in each shard
+                    for (WriterShard shard : shards) {
+                        List<WeatherRecord> sent = shard.records_of(source);
+                        if (!sent.isEmpty()) records.computeIfAbsent(shard, k -> new ArrayList<>()).addAll(sent);
                     }
+                    expired.put(source, last_seen);
                 }
             } finally {
                 reentrant_lock.writeLock().unlock();
             }
-        }, 5, 5, TimeUnit.SECONDS);
+
+            boolean removed = false;
+            if (finish_removal(records, log_removal(records))) {
+                // we can add the source back to last_seen if it send a PUT again; one that did during the sync
+                // already had an entry, so log_put did not put it in the wheel: it goes in here
+                for (Map.Entry<String, Long> source : expired.entrySet()) {
+                    if (!last_update.remove(source.getKey(), source.getValue())) {
+                        Long last_seen = last_update.get(source.getKey());
+                        if (last_seen != null) expiry_wheel.schedule(source.getKey(), last_seen + config.expiry_ms);
+                    }
+                }
+                removed = !records.isEmpty();
+            } else {
+                // try again next tick
+                for (String source : expired.keySet()) expiry_wheel.schedule(source, current_time);
+            }
+
+            // the tombstones already make removals stick, a checkpoint lets the WAL holding them go
+            // (one per sweep, written by the checkpointer thread outside the lock)
+            if (removed) checkpointer.request_checkpoint();
+        }, EXPIRY_TICK_MS, EXPIRY_TICK_MS, TimeUnit.MILLISECONDS);
     }
 
     // ---- main function ----
     public static void main(String[] args) throws Exception {
-        int port = 4567;                    // default port -> can be changed
-        String persis_dir = "./data";       // store in data for now
-
-        // Parse in port num or persistent directory if provided
-        if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
-        }
-        if (args.length > 1) {
-            persis_dir = args[1];
-        }
+        // Parse in port num, persistent directory and front end if provided
+        ServerConfig config = ServerConfig.parse(args);
 
         // Starting the Aggregation Server
-        new AggregationServer(port, persis_dir).start();
+        new AggregationServer(config).start();
     }
-}
\ No newline at end of file
+}
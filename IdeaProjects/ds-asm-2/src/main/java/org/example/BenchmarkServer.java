@@ -0,0 +1,79 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Function: an AggregationServer in a child process, for the benchmark programs
+ *
+ * Runs from the benchmark's own classpath with a fresh temp data directory,
+ * waits until the port accepts connections, and removes the directory on close.
+ */
+public class BenchmarkServer implements AutoCloseable {
+    public final int port;
+    private final Path dir;
+    private final Process process;
+
+    public BenchmarkServer(int port, String... options) throws IOException, InterruptedException {
+        this.port = port;
+        this.dir = Files.createTempDirectory("agg-bench");
+
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "org.example.AggregationServer", String.valueOf(port), dir.toString()));
+        command.addAll(List.of(options));
+        this.process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server.log").toFile())
+                .start();
+        wait_for_port();
+    }
+
+    private void wait_for_port() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + port);
+    }
+
+    // Resident set size of the server in KB, -1 where /proc is not available
+    public long rss_kb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(process.pid()), "status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException ignored) {}
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            process.destroyForcibly().waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    // ---- Shared helper: the value at fraction p of sorted nanosecond samples, in ms ----
+    public static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return Double.NaN;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
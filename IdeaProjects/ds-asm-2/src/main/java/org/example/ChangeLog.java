@@ -0,0 +1,88 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Function: what changed in one shard, newest publish first, for delta GETs (?since=)
+ *
+ * Every publish of a shard's slot adds one entry stamped with the server Lamport time it was
+ * published at: the records that batch wrote, and the ids the expiry checker removed (tombstones).
+ * Entries are immutable and shared between views, like the record lists.
+ * Only about the newest RETENTION changes are kept. horizon is the stamp of the newest dropped
+ * entry: a client asking for changes since before it needs a full resync.
+ */
+public final class ChangeLog {
+    public static final int RETENTION = 65_536;     // records + tombstones kept per shard
+
+    // ---- One publish of the shard ----
+    private static final class Entry {
+        final long stamp;
+        final List<WeatherRecord> upserts;
+        final List<String> deletes;
+        final Entry older;
+
+        Entry(long stamp, List<WeatherRecord> upserts, List<String> deletes, Entry older) {
+            this.stamp = stamp;
+            this.upserts = upserts;
+            this.deletes = deletes;
+            this.older = older;
+        }
+
+        int size() {
+            return upserts.size() + deletes.size();
+        }
+    }
+
+    public final long horizon;
+    private final Entry newest;
+    private final int size;
+
+    public static final ChangeLog EMPTY = new ChangeLog(0, null, 0);
+
+    private ChangeLog(long horizon, Entry newest, int size) {
+        this.horizon = horizon;
+        this.newest = newest;
+        this.size = size;
+    }
+
+    // ---- New log with one more publish on top ----
+    public ChangeLog append(long stamp, List<WeatherRecord> upserts, List<String> deletes) {
+        if (upserts.isEmpty() && deletes.isEmpty()) return this;
+        Entry entry = new Entry(stamp, upserts, deletes, newest);
+        int total = size + entry.size();
+        if (total <= 2 * RETENTION) {
+            return new ChangeLog(horizon, entry, total);
+        }
+
+        // Over twice the retention: rebuild the chain with the newest RETENTION changes (so this runs once per RETENTION changes)
+        List<Entry> kept = new ArrayList<>();
+        int kept_size = 0;
+        Entry at = entry;
+        while (at != null && (kept.isEmpty() || kept_size + at.size() <= RETENTION)) {
+            kept.add(at);
+            kept_size += at.size();
+            at = at.older;
+        }
+        Entry chain = null;
+        for (int i = kept.size() - 1; i >= 0; i--) {
+            Entry k = kept.get(i);
+            chain = new Entry(k.stamp, k.upserts, k.deletes, chain);
+        }
+        // at is the newest entry dropped
+        return new ChangeLog(at != null ? at.stamp : horizon, chain, kept_size);
+    }
+
+    // ---- Changes published after since, newest wins: id -> record, or id -> null for a tombstone ----
+    public void collect(long since, Map<String, WeatherRecord> changes) {
+        for (Entry e = newest; e != null && e.stamp > since; e = e.older) {
+            for (WeatherRecord record : e.upserts) {
+                if (!changes.containsKey(record.id)) changes.put(record.id, record);
+            }
+            for (String id : e.deletes) {
+                if (!changes.containsKey(id)) changes.put(id, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Function: take snapshots in the background so PUTs never rewrite feed.json themselves
+ *
+ * A checkpoint runs when the active WAL grows past CHECKPOINT_WAL_BYTES, when
+ * CHECKPOINT_INTERVAL_MS has passed with new records, or when someone asks for one.
+ * Steps:
+ *  1. Under the write lock: copy the record references and seal the active WAL segment at the current seq
+ *  2. Without any lock: stream the copy into feed.json (tagged with that seq)
+ *  3. Only after the snapshot is on disk: delete the sealed WAL segments it covers
+ */
+public class CheckpointManager {
+    private static final long CHECKPOINT_WAL_BYTES = 4L * 1024 * 1024;     // 4MB of WAL since last checkpoint
+    private static final long CHECKPOINT_INTERVAL_MS = 30_000;             // or every 30s if anything changed
+
+    private final PersistenceManager persis_manager;
+    private final ReentrantReadWriteLock reentrant_lock;
+    private final Supplier<List<WeatherRecord>> all_records;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Checkpointer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean requested = new AtomicBoolean(false);
+    private volatile long last_checkpoint_seq;
+    private volatile long last_checkpoint_time = System.currentTimeMillis();
+
+    public CheckpointManager(PersistenceManager persis_manager, ReentrantReadWriteLock reentrant_lock,
+                             Supplier<List<WeatherRecord>> all_records, long checkpoint_seq) {
+        this.persis_manager = persis_manager;
+        this.reentrant_lock = reentrant_lock;
+        this.all_records = all_records;
+        this.last_checkpoint_seq = checkpoint_seq;
+    }
+
+    // ---- Check the triggers once a second ----
+    public void start() {
+        executor.scheduleWithFixedDelay(() -> {
+            boolean has_new_records = persis_manager.last_appended_seq() > last_checkpoint_seq;
+            boolean size_due = persis_manager.wal_bytes_since_seal() >= CHECKPOINT_WAL_BYTES;
+            boolean time_due = has_new_records && System.currentTimeMillis() - last_checkpoint_time >= CHECKPOINT_INTERVAL_MS;
+
+            if (requested.getAndSet(false) || size_due || time_due) {
+                checkpoint();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Ask for a checkpoint on the next tick (eg. after the expiry checker removed records)
+    public void request_checkpoint() {
+        requested.set(true);
+    }
+
+    // ---- Take one checkpoint ----
+    private void checkpoint() {
+        List<WeatherRecord> records;
+        long covered_seq;
+        CompletableFuture<Void> sealed = new CompletableFuture<>();
+
+        // Step 1: consistent cut, records are replaced rather than mutated so copying references is enough
+        // (write lock: the writer shards share the read lock, this waits for all of them)
+        reentrant_lock.writeLock().lock();
+        try {
+            records = all_records.get();
+            covered_seq = persis_manager.seal_WAL(sealed);
+        } finally {
+            reentrant_lock.writeLock().unlock();
+        }
+
+        try {
+            // Step 2: the sealed segment must be closed before we can drop it later
+            sealed.get();
+            persis_manager.write_snapshot(records, covered_seq);
+
+            // Step 3: snapshot is durable, the WAL it covers is no longer needed
+            persis_manager.delete_WAL_upto(covered_seq);
+            last_checkpoint_seq = covered_seq;
+            last_checkpoint_time = System.currentTimeMillis();
+        } catch (Exception e) {
+            // sealed WAL segments are kept, so recovery still replays them
+            System.err.println("Checkpointer: failed to write checkpoint " + e.getMessage());
+        }
+    }
+}
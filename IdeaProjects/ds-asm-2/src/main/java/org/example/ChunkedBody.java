@@ -0,0 +1,90 @@
+package org.example;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Function: a full GET body encoded one HTTP chunk at a time (Transfer-Encoding: chunked)
+ *
+ * For feeds too big to keep encoded in the ResponseCache. A view is immutable, so its
+ * records can be written out lazily: each next() encodes just enough records for one chunk,
+ * so a GET holds one chunk and the writer buffers, however many stations the store has.
+ * The front end pulls the next chunk only once the socket took the previous ones.
+ * The bytes are the same as FeedView.json_bytes(records, fields), gzip'ed when asked for.
+ */
+public final class ChunkedBody {
+    static final int CHUNK_BYTES = 16 * 1024;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Iterator<WeatherRecord> records;
+    private final Set<String> fields;           // ?fields= projection, null for every key
+    private final Sink sink = new Sink();
+    private final JsonWriter out;
+    private boolean started = false;
+    private boolean closed = false;         // JSON (and gzip trailer) fully written to the sink
+    private boolean finished = false;       // last chunk handed out
+
+    // ---- Encoded bytes waiting to become the next chunk ----
+    private static final class Sink extends ByteArrayOutputStream {
+        Sink() {
+            super(CHUNK_BYTES + 1024);
+        }
+
+        // "<size hex>\r\n<data>\r\n", and empty again
+        byte[] frame() {
+            byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            byte[] chunk = new byte[size.length + count + 2];
+            System.arraycopy(size, 0, chunk, 0, size.length);
+            System.arraycopy(buf, 0, chunk, size.length, count);
+            chunk[chunk.length - 2] = '\r';
+            chunk[chunk.length - 1] = '\n';
+            reset();
+            return chunk;
+        }
+    }
+
+    public ChunkedBody(Iterator<WeatherRecord> records, Set<String> fields, boolean gzip) {
+        this.records = records;
+        this.fields = fields;
+        try {
+            OutputStream encoded = gzip ? new GZIPOutputStream(sink, 8192) : sink;
+            this.out = new JsonWriter(new OutputStreamWriter(encoded, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);       // in-memory stream, cannot happen
+        }
+    }
+
+    // ---- Next framed chunk, the zero-length last chunk at the end, then null ----
+    public byte[] next() {
+        if (finished) return null;
+        try {
+            if (!started) {
+                out.beginArray();
+                started = true;
+            }
+            while (sink.size() < CHUNK_BYTES && records.hasNext()) {
+                records.next().write_json(out, fields);
+                out.flush();
+            }
+            if (!records.hasNext() && !closed) {
+                out.endArray();
+                out.close();
+                closed = true;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);       // in-memory stream, cannot happen
+        }
+        if (sink.size() > 0) return sink.frame();
+        finished = true;
+        return LAST_CHUNK;
+    }
+}
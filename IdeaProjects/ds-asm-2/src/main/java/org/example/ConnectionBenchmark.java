@@ -0,0 +1,111 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Function: compare the server's connection handling modes under many concurrent GETs
+ *
+ * For each mode an AggregationServer is started as a separate process (BenchmarkServer), then:
+ * 1. N clients connect and send only the first half of a GET, so every connection
+ *    stays open on the server side (a parked thread, or a selector key for nio)
+ * 2. Server RSS is sampled: (RSS - idle RSS) / N is the memory per open connection
+ * 3. All clients finish their request at once; the time until the full response is
+ *    read gives the latency distribution (p50 / p99 / max)
+ *
+ * Usage: ConnectionBenchmark [connections] [modes...]     eg. 10000 blocking virtual nio
+ * RSS comes from /proc, so memory figures are only reported on Linux.
+ */
+public class ConnectionBenchmark {
+    private static final int PORT = 4690;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        List<String> modes = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : List.of("blocking", "virtual", "nio");
+
+        System.out.printf("%-9s %12s %14s %10s %10s %10s %8s%n", "mode", "connections", "KB/connection", "p50 ms", "p99 ms", "max ms", "failed");
+        for (String mode : modes) {
+            run(mode, connections);
+        }
+    }
+
+    private static void run(String mode, int connections) throws Exception {
+        try (BenchmarkServer server = new BenchmarkServer(PORT, "--io=" + mode)) {
+            // warm up the GET path and the response cache before measuring
+            for (int i = 0; i < 200; i++) {
+                one_get();
+            }
+            Thread.sleep(500);
+            long idle_rss = server.rss_kb();
+
+            long[] latencies = new long[connections];
+            AtomicInteger failed = new AtomicInteger();
+            CountDownLatch connected = new CountDownLatch(connections);
+            CountDownLatch go = new CountDownLatch(1);
+
+            // One virtual thread per client, so the client side does not cap the concurrency
+            try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < connections; i++) {
+                    int index = i;
+                    clients.submit(() -> {
+                        latencies[index] = -1;
+                        try (Socket s = new Socket()) {
+                            s.connect(new InetSocketAddress("localhost", PORT), 30_000);
+                            s.setSoTimeout(60_000);
+                            OutputStream out = s.getOutputStream();
+                            out.write("GET /weather.json HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n".getBytes(StandardCharsets.UTF_8));
+                            out.flush();
+                            connected.countDown();
+                            go.await();
+
+                            long started = System.nanoTime();
+                            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+                            out.flush();
+                            InputStream in = s.getInputStream();
+                            byte[] buf = new byte[4096];
+                            int total = 0;
+                            int n;
+                            while ((n = in.read(buf)) > 0) total += n;
+                            if (total == 0) throw new IOException("empty response");
+                            latencies[index] = System.nanoTime() - started;
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            connected.countDown();
+                        }
+                    });
+                }
+
+                connected.await(120, TimeUnit.SECONDS);
+                Thread.sleep(1000);         // let the server settle with every connection open
+                long loaded_rss = server.rss_kb();
+                go.countDown();
+                clients.shutdown();
+                clients.awaitTermination(120, TimeUnit.SECONDS);
+
+                long[] ok = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+                int open = connections - failed.get();
+                String per_connection = idle_rss < 0 || open == 0 ? "n/a" : String.format("%.1f", (loaded_rss - idle_rss) / (double) open);
+                System.out.printf("%-9s %12d %14s %10.2f %10.2f %10.2f %8d%n", mode, connections, per_connection,
+                        BenchmarkServer.percentile(ok, 0.50), BenchmarkServer.percentile(ok, 0.99), BenchmarkServer.percentile(ok, 1.0), failed.get());
+            }
+        }
+    }
+
+    private static void one_get() throws IOException {
+        try (Socket s = new Socket("localhost", PORT)) {
+            s.getOutputStream().write("GET /weather.json HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            s.getInputStream().readAllBytes();
+        }
+    }
+}
@@ -5,12 +5,15 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -19,15 +22,22 @@ import java.util.Scanner;
  * Read 2 parameters from command line for: ServerName/PortNum + FileLocation
  * When a content server started, its initial Lamport Clock is 0, which is
  * then incremented when it tries to send a new PUT request
+ * A file with one station is sent as a single JSON object; a file with several
+ * stations (each starting at its "id:" line) is sent as one NDJSON batch PUT.
+ * ServerName may list several servers separated by commas (a primary and its backups):
+ * a PUT that fails on one is sent to the next, and the one that took it is tried first next time.
+ * A 503 with Retry-After (the server is up but shedding load) is retried on the same server
+ * after the time it asks for, instead of the exponential backoff.
  */
 public class ContentServer {
     private static int lamport = 0;                // initially start at 0
+    private static int current_server = 0;         // index of the server that took the last PUT
     public static void main (String[] args) throws Exception {
         String server = args[0];
         String file = args[1];
         String source_id = args[2];     // content server identification
 
-        JsonObject payload = text_to_json(file, source_id);
+        List<JsonObject> payload = text_to_records(file, source_id);
 
         // Convert payload body to JSON format
         //JsonObject payload = new JsonParser().parse(body).getAsJsonObject();
@@ -62,7 +72,7 @@ public class ContentServer {
                     // Ask user for new file path
                     System.out.println("Enter the new file path (eg. cs-data/sample2.txt): ");
                     file = scanner.nextLine().trim();
-                    payload = text_to_json(file, source_id);
+                    payload = text_to_records(file, source_id);
                     System.out.println("File switched to: " + file);
                     break;
 
@@ -78,8 +88,10 @@ public class ContentServer {
         scanner.close();
     }
 
-    // helper function for converting from plaintext -> json
-    private static JsonObject text_to_json(String file_path, String source_id) {
+    // helper function for converting from plaintext -> json, one object per station
+    // A new station starts at every "id:" line after the first
+    private static List<JsonObject> text_to_records(String file_path, String source_id) {
+        List<JsonObject> records = new ArrayList<>();
         try {
             // Read the whole BOM plaintext file
             String content = Files.readString(Paths.get(file_path), StandardCharsets.UTF_8);
@@ -91,43 +103,67 @@ public class ContentServer {
             for (String line : lines) {
                 String[] parts = line.split(":", 2);
                 if (parts.length == 2) {
-                    obj.addProperty(parts[0].trim(), parts[1].trim());
+                    String key = parts[0].trim();
+                    if (key.equals("id") && obj.has("id")) {
+                        records.add(obj);
+                        obj = new JsonObject();
+                    }
+                    obj.addProperty(key, parts[1].trim());
                 }
             }
+            records.add(obj);
 
             // Add lamport + source_id explicitly
-            obj.addProperty("lamport", lamport);
-            obj.addProperty("source_id", source_id);
-
-            return obj;
+            for (JsonObject record : records) {
+                record.addProperty("lamport", lamport);
+                record.addProperty("source_id", source_id);
+            }
+            return records;
         } catch (IOException e) {
             System.err.println("Failed to read file: " + e.getMessage());
-            return new JsonObject();  // empty payload if error
+            records.add(new JsonObject());  // empty payload if error
+            return records;
         }
     }
 
     // helper function for sending + retry
-    private static boolean send_with_retry(String server, JsonObject payload, String source_id){
+    private static boolean send_with_retry(String server, List<JsonObject> payload, String source_id){
         // Set up
         int max_retries = 5;
         int attempt = 0;
         int expo_backoff = 2000;    // 2 seconds
 
+        String[] servers = server.split(",");
+        int failed_in_a_row = 0;
+
         // only retry within max number of times
         while (attempt < max_retries) {
             try {
                 // Get a new URL for this content server using the provided address
-                URL url = new URL(server);
+                URL url = new URL(servers[current_server].trim());
 
                 // Setup connection
                 HttpURLConnection connection = (HttpURLConnection) url.openConnection();
                 connection.setDoOutput(true);
                 connection.setRequestMethod("PUT");
-                connection.setRequestProperty("Content-Type", "application/json");
-
-                // Convert payload as string to bytes
-                byte[] body_byte = payload.toString().getBytes(StandardCharsets.UTF_8);
-                connection.setRequestProperty("Content-Length", String.valueOf(body_byte.length));
+                boolean batch = payload.size() > 1;
+
+                byte[] body_byte;
+                if (batch) {
+                    // Several stations: one NDJSON line each, streamed chunked so the body is not sized up front
+                    StringBuilder ndjson = new StringBuilder();
+                    for (JsonObject record : payload) {
+                        ndjson.append(record).append('\n');
+                    }
+                    body_byte = ndjson.toString().getBytes(StandardCharsets.UTF_8);
+                    connection.setRequestProperty("Content-Type", "application/x-ndjson");
+                    connection.setChunkedStreamingMode(8192);
+                } else {
+                    // Convert payload as string to bytes
+                    body_byte = payload.get(0).toString().getBytes(StandardCharsets.UTF_8);
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    connection.setRequestProperty("Content-Length", String.valueOf(body_byte.length));
+                }
                 connection.setRequestProperty("X-Lamport-Clock", Integer.toString(lamport));
                 connection.setRequestProperty("X-Source-ID", source_id);
 
@@ -142,6 +178,16 @@ public class ContentServer {
                 // Check the response from Agg Sv
                 int status = connection.getResponseCode();
 
+                // Read the (small) body to the end so the socket goes back to the keep-alive
+                // pool and the next PUT to this server reuses it
+                // A batch answers with the status of every station, print it
+                try (InputStream in_stream = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+                    if (in_stream != null) {
+                        byte[] response = in_stream.readAllBytes();
+                        if (batch) System.out.println("Batch results: " + new String(response, StandardCharsets.UTF_8));
+                    }
+                }
+
                 // Update Content Server Lamport Clock
                 String agg_lamport_header = connection.getHeaderField("X-Lamport-Clock");
                 if (agg_lamport_header != null) {
@@ -156,10 +202,27 @@ public class ContentServer {
                 if (status >= 200 && status < 300) {
                     return true;
                 }
+
+                // Busy, not down: wait as long as it asks and send it to the same server again
+                long retry_after_ms = retry_after_ms(connection.getHeaderField("Retry-After"));
+                if (status == 503 && retry_after_ms >= 0) {
+                    System.out.println("Server busy, retrying in " + retry_after_ms + " ms");
+                    attempt++;
+                    Thread.sleep(retry_after_ms);
+                    continue;
+                }
             } catch (Exception e) {
                 System.err.println("Content Server attempt: " + (attempt + 1 ) + e.getMessage());
             }
 
+            // Fail over: try the next server straight away, back off once every one of them failed
+            current_server = (current_server + 1) % servers.length;
+            if (++failed_in_a_row < servers.length) {
+                System.out.println("Failing over to " + servers[current_server].trim());
+                continue;
+            }
+            failed_in_a_row = 0;
+
             // Implementing retry
             attempt++;
             try {
@@ -174,4 +237,14 @@ public class ContentServer {
         // Cannot send after the above retries
         return false;
     }
+
+    // Retry-After in seconds -> ms (at most a minute), -1 if absent or not a number of seconds
+    private static long retry_after_ms(String header) {
+        if (header == null) return -1;
+        try {
+            return Math.min(60, Math.max(0, Long.parseLong(header.trim()))) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;          // an HTTP date, fall back to our own backoff
+        }
+    }
 }
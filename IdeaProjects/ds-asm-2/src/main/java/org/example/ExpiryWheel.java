@@ -0,0 +1,62 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Function: hashed timing wheel of content server deadlines, for the expiry checker
+ *
+ * A source goes in once, at its last-seen time + the expiry timeout; later PUTs only move
+ * its last_update time, so a PUT costs nothing here. When its slot comes round the checker
+ * looks at last_update: still quiet means expired, otherwise the source goes back in at its
+ * new deadline. A sweep only touches the slots of the ticks that passed since the last one.
+ * Slots are tick_ms wide and the wheel turns every SLOTS ticks; a deadline further away
+ * than one turn stays in its slot until the turn it is due.
+ */
+public final class ExpiryWheel {
+    private static final int SLOTS = 64;            // power of two
+
+    private static final class Entry {
+        final String source;
+        final long deadline;
+
+        Entry(String source, long deadline) {
+            this.source = source;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tick_ms;
+    private final List<List<Entry>> slots;
+    private long next_tick;                         // first tick not swept yet
+
+    public ExpiryWheel(long tick_ms, long now) {
+        this.tick_ms = tick_ms;
+        this.slots = new ArrayList<>(SLOTS);
+        for (int i = 0; i < SLOTS; i++) slots.add(new ArrayList<>());
+        this.next_tick = now / tick_ms;
+    }
+
+    // ---- Put a source in at its deadline (shard writers and the expiry checker) ----
+    public synchronized void schedule(String source, long deadline) {
+        // a deadline in a tick already swept goes in the next one, not a whole turn later
+        long tick = Math.max(deadline / tick_ms, next_tick);
+        slots.get((int) (tick & (SLOTS - 1))).add(new Entry(source, deadline));
+    }
+
+    // ---- Take out every source whose deadline is in a tick that has fully passed ----
+    public synchronized List<String> due(long now) {
+        List<String> due = new ArrayList<>();
+        long last = now / tick_ms - 1;
+        // after a long pause one turn is enough, it visits every slot
+        for (long tick = Math.max(next_tick, last - SLOTS + 1); tick <= last; tick++) {
+            slots.get((int) (tick & (SLOTS - 1))).removeIf(e -> {
+                if (e.deadline > now) return false;     // a later turn
+                due.add(e.source);
+                return true;
+            });
+        }
+        next_tick = Math.max(next_tick, last + 1);
+        return due;
+    }
+}
@@ -0,0 +1,272 @@
+package org.example;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Function: immutable, versioned copy of the store that GETs read without any lock
+ *
+ * The store is split over writer shards, so the view keeps one slot per shard.
+ * A shard's writer builds a new slot after each batch of PUTs and swaps in a new view
+ * with only that slot replaced (a CAS in AggregationServer); the expiry checker replaces
+ * every slot at once. Records are replaced, never mutated, and a slot's maps are persistent, so a new
+ * slot shares everything but the changed ids with the one it replaces.
+ * A slot also carries the shard's secondary indexes (by state, by source_id), so a filtered GET
+ * reads only the matching records and a point lookup is one hash probe.
+ * Every view is a consistent cut: it holds exactly the batches published before it.
+ * version   - bumped on every publish
+ * watermark - lowest of the shards' watermarks (the highest lamport each has applied) in this view:
+ *             every shard has applied PUTs up to at least this lamport, whereas the highest across
+ *             shards would claim lamports a slower shard has not reached yet
+ * stamp     - server Lamport time of the publish, only grows from view to view; delta GETs
+ *             (?since=stamp) are answered from each shard's ChangeLog
+ */
+public final class FeedView {
+    public final long version;
+    public final long watermark;
+    public final long stamp;
+    private final long[] shard_watermarks;     // per shard, indexed like the slots
+    private final Slot[] shards;
+    private final ChangeLog[] logs;
+
+    // ---- One shard's records, indexes and per-group stats, built by its writer (see WriterShard.slot) ----
+    // Persistent maps: whatever did not change is shared with the shard's previous slot
+    // by_state / by_source - group key -> the group's records by id
+    public static final class Slot {
+        public static final Slot EMPTY = new Slot(PersistentMap.empty(), PersistentMap.empty(), PersistentMap.empty(),
+                PersistentMap.empty(), PersistentMap.empty());
+
+        final PersistentMap<WeatherRecord> by_id;
+        final PersistentMap<PersistentMap<WeatherRecord>> by_state;
+        final PersistentMap<PersistentMap<WeatherRecord>> by_source;
+        final PersistentMap<GroupStats> stats_by_state;
+        final PersistentMap<GroupStats> stats_by_source;
+
+        public Slot(PersistentMap<WeatherRecord> by_id, PersistentMap<PersistentMap<WeatherRecord>> by_state,
+                    PersistentMap<PersistentMap<WeatherRecord>> by_source,
+                    PersistentMap<GroupStats> stats_by_state, PersistentMap<GroupStats> stats_by_source) {
+            this.by_id = by_id;
+            this.by_state = by_state;
+            this.by_source = by_source;
+            this.stats_by_state = stats_by_state;
+            this.stats_by_source = stats_by_source;
+        }
+    }
+
+    public static FeedView empty(int shard_count) {
+        Slot[] shards = new Slot[shard_count];
+        Arrays.fill(shards, Slot.EMPTY);
+        ChangeLog[] logs = new ChangeLog[shard_count];
+        Arrays.fill(logs, ChangeLog.EMPTY);
+        return new FeedView(0, new long[shard_count], 0, shards, logs);
+    }
+
+    private FeedView(long version, long[] shard_watermarks, long stamp, Slot[] shards, ChangeLog[] logs) {
+        this.version = version;
+        this.shard_watermarks = shard_watermarks;
+        long lowest = Long.MAX_VALUE;
+        for (long shard_watermark : shard_watermarks) lowest = Math.min(lowest, shard_watermark);
+        this.watermark = shard_watermarks.length == 0 ? 0 : lowest;
+        this.stamp = stamp;
+        this.shards = shards;
+        this.logs = logs;
+    }
+
+    // ---- New view with one shard's slot replaced ----
+    // upserts/deletes are what changed in the shard since its last publish, logged under stamp
+    public FeedView with_shard(int shard, long shard_watermark, Slot slot,
+                               long stamp, List<WeatherRecord> upserts, List<String> deletes) {
+        Slot[] next = shards.clone();
+        next[shard] = slot;
+        ChangeLog[] next_logs = logs.clone();
+        next_logs[shard] = logs[shard].append(stamp, upserts, deletes);
+        long[] next_watermarks = shard_watermarks.clone();
+        next_watermarks[shard] = shard_watermark;
+        return new FeedView(version + 1, next_watermarks, stamp, next, next_logs);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Slot shard : shards) size += shard.by_id.size();
+        return size;
+    }
+
+    public List<WeatherRecord> records() {
+        List<WeatherRecord> all = new ArrayList<>(size());
+        for (Slot shard : shards) all.addAll(shard.by_id.values());
+        return all;
+    }
+
+    // ---- Point lookup: one probe in the shard that owns the id, null if there is no such station ----
+    public WeatherRecord get(String id) {
+        return shards[WriterShard.shard_of(id, shards.length)].by_id.get(id);
+    }
+
+    // ---- Records of a state and/or a source_id (null = any), read off the indexes ----
+    public List<WeatherRecord> matching(String state, String source_id) {
+        List<WeatherRecord> found = new ArrayList<>();
+        for (Slot shard : shards) {
+            PersistentMap<WeatherRecord> group = state != null ? shard.by_state.get(state) : shard.by_source.get(source_id);
+            if (group == null) continue;
+            if (state == null || source_id == null) {
+                found.addAll(group.values());
+            } else {
+                for (WeatherRecord record : group.values()) {
+                    if (record.source_id.equals(source_id)) found.add(record);
+                }
+            }
+        }
+        return found;
+    }
+
+    // Every record, shard after shard, without collecting them into one list first
+    // (a flatMap stream would buffer a whole shard per step)
+    public Iterator<WeatherRecord> record_iterator() {
+        return new Iterator<>() {
+            private int shard = 0;
+            private Iterator<WeatherRecord> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shard < shards.length) current = shards[shard++].by_id.values().iterator();
+                return current.hasNext();
+            }
+
+            @Override
+            public WeatherRecord next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return current.next();
+            }
+        };
+    }
+
+    // ---- GET body: one JSON object per station, written straight from the records ----
+    public byte[] json_bytes() {
+        return json_bytes(records(), null);
+    }
+
+    // A filtered GET body, only the keys in fields (every key if null)
+    public static byte[] json_bytes(Collection<WeatherRecord> records, Set<String> fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 384 + 16);
+        // buffered: JsonWriter writes in small pieces, each one an encoder call on a bare OutputStreamWriter
+        try (JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), 1 << 16))) {
+            out.beginArray();
+            for (WeatherRecord record : records) {
+                record.write_json(out, fields);
+            }
+            out.endArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);       // in-memory stream, cannot happen
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write_records(JsonWriter out, Iterable<WeatherRecord> records) throws IOException {
+        out.beginArray();
+        for (WeatherRecord record : records) {
+            record.write_json(out);
+        }
+        out.endArray();
+    }
+
+    // ---- GET /aggregates body: every group's stats, merged over the shards ----
+    // {"by_state":{"SA":{"air_temp":{"count":..,"sum":..,"min":..,"max":..,"avg":..},..},..},"by_source_id":{..}}
+    public byte[] aggregates_json() {
+        StringWriter text = new StringWriter(4096);
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            out.name("by_state");
+            write_stats(out, true);
+            out.name("by_source_id");
+            write_stats(out, false);
+            out.name("stations").value(size());
+            out.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write_stats(JsonWriter out, boolean by_state) throws IOException {
+        Map<String, GroupStats> merged = new TreeMap<>();
+        for (Slot shard : shards) {
+            (by_state ? shard.stats_by_state : shard.stats_by_source).forEach((key, stats) -> merged.merge(key, stats, GroupStats::merge));
+        }
+        out.beginObject();
+        for (Map.Entry<String, GroupStats> group : merged.entrySet()) {
+            out.name(group.getKey());
+            group.getValue().write_json(out);
+        }
+        out.endObject();
+    }
+
+    // ---- Delta GET body: records changed after since plus tombstones, null if a full resync is needed ----
+    // (since is from the future, or older than what some shard's log still holds)
+    public String delta_json(long since, String epoch) {
+        if (since > stamp) return null;
+        Map<String, WeatherRecord> changes = new HashMap<>();
+        for (ChangeLog log : logs) {
+            if (since < log.horizon) return null;
+            log.collect(since, changes);
+        }
+
+        List<WeatherRecord> records = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        changes.forEach((id, record) -> {
+            if (record == null) deleted.add(id);
+            else records.add(record);
+        });
+        StringWriter text = new StringWriter();
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            out.name("full").value(false);
+            out.name("since").value(since);
+            out.name("watermark").value(stamp);
+            out.name("records");
+            write_records(out, records);
+            out.name("deleted").beginArray();
+            for (String id : deleted) out.value(id);
+            out.endArray();
+            out.name("epoch").value(epoch);
+            out.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return text.toString();
+    }
+
+    // ---- Full resync body, when a delta cannot be given: every record ----
+    public String resync_json(String epoch) {
+        StringWriter text = new StringWriter(size() * 384 + 64);
+        try (JsonWriter out = new JsonWriter(text)) {
+            out.beginObject();
+            out.name("full").value(true);
+            out.name("watermark").value(stamp);
+            out.name("records");
+            write_records(out, records());
+            out.name("epoch").value(epoch);
+            out.endObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return text.toString();
+    }
+}
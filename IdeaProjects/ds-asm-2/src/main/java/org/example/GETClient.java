@@ -1,12 +1,36 @@
 package org.example;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Function: fetches the weather feed from AggregationServer
+ *
+ * Read up to 3 parameters from command line: ServerName/PortNum + optional poll interval in seconds
+ * + optional "delta".
+ * With an interval the client keeps polling; the ETag of the last feed is sent back as
+ * If-None-Match, so an unchanged feed comes back as 304 with no body.
+ * With "delta" the client keeps its own copy of the feed and only asks for what changed
+ * since the last watermark (?since=), applying updated records and tombstones to it.
+ */
 public class GETClient {
     private static int lamport = 0; // initially starts at 0
+    private static String etag = null; // ETag of the last feed we printed
+
+    // ---- Incremental (delta) mode ----
+    private static boolean incremental = false;
+    private static long watermark = 0;          // "watermark" of the last delta, sent back as since
+    private static String epoch = null;         // server run the watermark belongs to
+    private static final Map<String, JsonObject> replica = new TreeMap<>();
 
     public static void main(String[] args) throws Exception {
         // Get serverName + portNumber if provided from command line
@@ -16,17 +40,32 @@ public class GETClient {
         } else {
             server = "http://localhost:4567/weather.json";
         }
+        long poll_seconds = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        incremental = args.length > 2 && args[2].equals("delta");
+
+        fetch(server);
+        while (poll_seconds > 0) {
+            Thread.sleep(poll_seconds * 1000);
+            fetch(server);
+        }
+    }
 
+    // ---- One GET, printed unless the server says it has not changed ----
+    private static void fetch(String server) throws Exception {
         // Increment Lamport Clock before sending
         lamport++;
 
-        // Set up connection
-        URL url = new URL(server);
+        // Set up connection (delta mode asks only for changes after our watermark)
+        URL url = URI.create(incremental ? delta_url(server) : server).toURL();
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("GET");
 
         // Attach the lamport header
         connection.setRequestProperty("X-Lamport-Clock", Integer.toString(lamport));
+        // Ask for the body only if it changed since our last copy
+        if (etag != null && !incremental) {
+            connection.setRequestProperty("If-None-Match", etag);
+        }
 
         // Receive server status code
         int status = connection.getResponseCode();
@@ -41,8 +80,22 @@ public class GETClient {
         }
         System.out.println("Client Updated Lamport: " + lamport);
 
+        // 304 - our copy is still current, nothing to read
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            System.out.println("Feed not modified since last GET");
+            return;
+        }
+        String new_etag = connection.getHeaderField("ETag");
+        if (new_etag != null) {
+            etag = new_etag;
+        }
+
         // Printing out the result
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+            if (incremental) {
+                apply_delta(JsonParser.parseReader(reader).getAsJsonObject());
+                return;
+            }
             String line;
             while ((line = reader.readLine()) != null) {
                 System.out.println(line);
@@ -50,4 +103,35 @@ public class GETClient {
             }
         }
     }
+
+    private static String delta_url(String server) {
+        return server + (server.contains("?") ? "&" : "?") + "since=" + watermark + (epoch != null ? "&epoch=" + epoch : "");
+    }
+
+    // ---- Apply a delta (or full resync) to our copy and print what changed ----
+    private static void apply_delta(JsonObject delta) {
+        boolean full = delta.get("full").getAsBoolean();
+        if (full) {
+            replica.clear();
+        }
+        int updated = 0;
+        for (JsonElement e : delta.getAsJsonArray("records")) {
+            JsonObject record = e.getAsJsonObject();
+            replica.put(record.get("id").getAsString(), record);
+            System.out.println(record);
+            updated++;
+        }
+        int deleted = 0;
+        if (delta.has("deleted")) {
+            for (JsonElement id : delta.getAsJsonArray("deleted")) {
+                replica.remove(id.getAsString());
+                System.out.println("Removed: " + id.getAsString());
+                deleted++;
+            }
+        }
+        watermark = delta.get("watermark").getAsLong();
+        epoch = delta.get("epoch").getAsString();
+        System.out.println((full ? "Full resync: " : "Delta: ") + updated + " updated, " + deleted + " removed, "
+                + replica.size() + " stations held (watermark " + watermark + ")");
+    }
 }
@@ -0,0 +1,137 @@
+package org.example;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Function: count, sum, min and max of every numeric BOM field over one group of records
+ * (the stations of a state, or of a source_id), for GET /aggregates
+ *
+ * GroupStats is the immutable summary a published slot carries; Running is the writer's side,
+ * updated as records are stored, replaced and expired:
+ * - sums are kept in fixed point (1e-7, the most decimals a typed number has), so adding and
+ *   later removing a reading leaves the sum exactly as it was; 128 bits (high:low longs), so no
+ *   number of readings can overflow it. A reading too big for fixed point (|v| > MAX_READING)
+ *   is left out of the stats, like a non-numeric one
+ * - min/max come from a sorted multiset of the readings (value -> how many records have it),
+ *   so removing the current minimum is a tree update, not a rescan of the group
+ */
+public final class GroupStats {
+    private static final int SCALE = 7;
+    private static final double UNIT = 1e7;
+    private static final double MAX_READING = 9e11;     // * UNIT still fits in a long
+
+    private final long[] count = new long[WeatherRecord.NUMBER_FIELDS];
+    private final long[] sum = new long[WeatherRecord.NUMBER_FIELDS];        // in units of 1e-7, low 64 bits
+    private final long[] sum_high = new long[WeatherRecord.NUMBER_FIELDS];   // high 64 bits
+    private final double[] min = new double[WeatherRecord.NUMBER_FIELDS];
+    private final double[] max = new double[WeatherRecord.NUMBER_FIELDS];
+
+    private GroupStats() {
+    }
+
+    // ---- The same group over several shards ----
+    public static GroupStats merge(GroupStats a, GroupStats b) {
+        if (a == null) return b;
+        GroupStats merged = new GroupStats();
+        for (int i = 0; i < WeatherRecord.NUMBER_FIELDS; i++) {
+            merged.count[i] = a.count[i] + b.count[i];
+            merged.sum[i] = a.sum[i] + b.sum[i];
+            merged.sum_high[i] = a.sum_high[i] + b.sum_high[i] + (Long.compareUnsigned(merged.sum[i], a.sum[i]) < 0 ? 1 : 0);
+            merged.min[i] = a.count[i] == 0 ? b.min[i] : b.count[i] == 0 ? a.min[i] : Math.min(a.min[i], b.min[i]);
+            merged.max[i] = a.count[i] == 0 ? b.max[i] : b.count[i] == 0 ? a.max[i] : Math.max(a.max[i], b.max[i]);
+        }
+        return merged;
+    }
+
+    // {"air_temp":{"count":2,"sum":25.6,"min":12.3,"max":13.3,"avg":12.8}, ...}, fields nobody sent are left out
+    public void write_json(JsonWriter out) throws IOException {
+        out.beginObject();
+        for (int i = 0; i < WeatherRecord.NUMBER_FIELDS; i++) {
+            if (count[i] == 0) continue;
+            out.name(WeatherRecord.number_key(i)).beginObject();
+            out.name("count").value(count[i]);
+            BigDecimal total = decimal(sum_high[i], sum[i]);
+            out.name("sum").jsonValue(total.toPlainString());
+            out.name("min").jsonValue(decimal(Math.round(min[i] * UNIT)).toPlainString());
+            out.name("max").jsonValue(decimal(Math.round(max[i] * UNIT)).toPlainString());
+            out.name("avg").value(total.doubleValue() / count[i]);
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private static BigDecimal decimal(long units) {
+        return decimal(units >> 63, units);
+    }
+
+    private static BigDecimal decimal(long high, long low) {
+        BigInteger units = BigInteger.valueOf(high).shiftLeft(64).add(new BigInteger(Long.toUnsignedString(low)));
+        BigDecimal value = new BigDecimal(units, SCALE).stripTrailingZeros();
+        return value.scale() < 0 ? value.setScale(0) : value;
+    }
+
+    // Whether a reading goes into the stats at all
+    private static boolean fits(double v) {
+        return Math.abs(v) <= MAX_READING;
+    }
+
+    // ---- Writer side: the readings of a group as records come and go (shard writer, or under the write lock) ----
+    public static final class Running {
+        private final long[] sum = new long[WeatherRecord.NUMBER_FIELDS];
+        private final long[] sum_high = new long[WeatherRecord.NUMBER_FIELDS];
+        private final List<TreeMap<Double, Integer>> values = new ArrayList<>(Collections.nCopies(WeatherRecord.NUMBER_FIELDS, null));
+        private final long[] count = new long[WeatherRecord.NUMBER_FIELDS];
+
+        public void add(WeatherRecord record) {
+            for (int i = 0; i < WeatherRecord.NUMBER_FIELDS; i++) {
+                if (!record.has(i)) continue;
+                double v = record.number(i);
+                if (!fits(v)) continue;
+                if (values.get(i) == null) values.set(i, new TreeMap<>());
+                values.get(i).merge(v, 1, Integer::sum);
+                add(i, Math.round(v * UNIT));
+                count[i]++;
+            }
+        }
+
+        public void remove(WeatherRecord record) {
+            for (int i = 0; i < WeatherRecord.NUMBER_FIELDS; i++) {
+                if (!record.has(i)) continue;
+                double v = record.number(i);
+                if (!fits(v)) continue;
+                values.get(i).computeIfPresent(v, (k, n) -> n == 1 ? null : n - 1);
+                add(i, -Math.round(v * UNIT));
+                count[i]--;
+            }
+        }
+
+        // sum_high:sum += units, carrying out of the low long
+        private void add(int i, long units) {
+            long low = sum[i] + units;
+            sum_high[i] += (units >> 63) + (Long.compareUnsigned(low, sum[i]) < 0 ? 1 : 0);
+            sum[i] = low;
+        }
+
+        // Summary for a publish, min/max read off the ends of each tree
+        public GroupStats summary() {
+            GroupStats stats = new GroupStats();
+            for (int i = 0; i < WeatherRecord.NUMBER_FIELDS; i++) {
+                if (count[i] == 0) continue;
+                stats.count[i] = count[i];
+                stats.sum[i] = sum[i];
+                stats.sum_high[i] = sum_high[i];
+                stats.min[i] = values.get(i).firstKey();
+                stats.max[i] = values.get(i).lastKey();
+            }
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Function: one parsed HTTP/1.1 request (request line + headers + body)
+ *
+ * Shared by both front ends:
+ * - read()  pulls a request off a blocking socket stream
+ * - parse() takes a request out of a NIO read buffer once all of it has arrived
+ * Bodies come with Content-Length or "Transfer-Encoding: chunked" (decoded here, trailers dropped).
+ * Header names are stored in lower case, so lookups are case-insensitive.
+ */
+public class HttpRequest {
+    public static final int MAX_HEADER_BYTES = 64 * 1024;
+    public static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    public final String method;
+    public final String version;    // eg. "HTTP/1.1"
+    public final String path;       // without the query string
+    public final String query;      // "" if none
+    // NIO: a read-only view into the connection's pooled read buffer, only valid while the handler runs
+    // (it is compacted right after), so a handler must read the body before it returns - see body_reader()
+    public final ByteBuffer body;
+    private final Map<String, String> headers;
+
+    // ---- Thrown for requests we cannot make sense of (answered with 400) ----
+    // method is what the request line started with, if that much was read: a HEAD gets its 400 without a body too
+    public static class BadRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public final String method;
+
+        public BadRequestException(String reason) {
+            this(reason, null);
+        }
+
+        public BadRequestException(String reason, String method) {
+            super(reason);
+            this.method = method;
+        }
+
+        public boolean head() {
+            return "HEAD".equals(method);
+        }
+    }
+
+    private HttpRequest(String method, String target, String version, Map<String, String> headers, ByteBuffer body) {
+        this.method = method;
+        this.version = version;
+        int q = target.indexOf('?');
+        this.path = q < 0 ? target : target.substring(0, q);
+        this.query = q < 0 ? "" : target.substring(q + 1);
+        this.headers = headers;
+        this.body = body;
+    }
+
+    public String header(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    public String header(String name, String fallback) {
+        String value = headers.get(name.toLowerCase());
+        return value != null ? value : fallback;
+    }
+
+    public long header_long(String name, long fallback) throws BadRequestException {
+        String value = header(name);
+        if (value == null) return fallback;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("bad " + name + " header");
+        }
+    }
+
+    // ---- The body as characters, decoded where it lies ----
+    public Reader body_reader() {
+        return new Utf8Reader(body.duplicate());
+    }
+
+    // ---- Query string parameter (URL-decoded), null if absent ----
+    public String param(String name) {
+        if (query.isEmpty()) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            if (key.equals(name)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    public long param_long(String name, long fallback) throws BadRequestException {
+        String value = param(name);
+        if (value == null) return fallback;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("bad " + name + " parameter");
+        }
+    }
+
+    // ---- Whatever the status, the answer to a HEAD is its status line and headers only ----
+    public boolean head() {
+        return method.equals("HEAD");
+    }
+
+    // ---- Should the connection stay open after this request? ----
+    // HTTP/1.1 keeps it open unless told "close", HTTP/1.0 only when asked for "keep-alive"
+    public boolean keep_alive() {
+        String connection = header("Connection", "").toLowerCase();
+        if (connection.contains("close")) return false;
+        return !version.equals("HTTP/1.0") || connection.contains("keep-alive");
+    }
+
+    // ---- Blocking front end: read one request, null if the client closed before sending one ----
+    public static HttpRequest read(InputStream in) throws IOException {
+        // read header bytes up to and including the blank line
+        ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        try {
+            return read(in, head);
+        } catch (BadRequestException e) {
+            throw with_method(e, head.toByteArray());
+        }
+    }
+
+    private static HttpRequest read(InputStream in, ByteArrayOutputStream head) throws IOException {
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                if (head.size() == 0) return null;
+                throw new BadRequestException("connection closed inside headers");
+            }
+            head.write(b);
+            matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+            if (head.size() > MAX_HEADER_BYTES) throw new BadRequestException("headers too large");
+        }
+
+        String[] method_target = new String[3];
+        Map<String, String> headers = parse_head(head.toString(StandardCharsets.UTF_8), method_target);
+        ByteBuffer body;
+        if (chunked(headers)) {
+            body = ByteBuffer.wrap(read_chunked(in));
+        } else {
+            int length = content_length(headers);
+            body = ByteBuffer.wrap(in.readNBytes(length));
+        }
+        return new HttpRequest(method_target[0], method_target[1], method_target[2], headers, body);
+    }
+
+    // ---- NIO front end: take a complete request out of buf (in read mode), or null if more bytes are needed ----
+    public static HttpRequest parse(ByteBuffer buf) throws BadRequestException {
+        int start = buf.position();
+        try {
+            return parse(buf, start);
+        } catch (BadRequestException e) {
+            byte[] seen = new byte[Math.min(buf.limit() - start, 16)];
+            buf.get(start, seen);
+            throw with_method(e, seen);
+        }
+    }
+
+    private static HttpRequest parse(ByteBuffer buf, int start) throws BadRequestException {
+        int head_end = -1;
+        for (int i = start; i + 3 < buf.limit(); i++) {
+            if (buf.get(i) == '\r' && buf.get(i + 1) == '\n' && buf.get(i + 2) == '\r' && buf.get(i + 3) == '\n') {
+                head_end = i + 4;
+                break;
+            }
+        }
+        if (head_end < 0) {
+            if (buf.remaining() > MAX_HEADER_BYTES) throw new BadRequestException("headers too large");
+            return null;
+        }
+
+        byte[] head = new byte[head_end - start];
+        buf.get(start, head);
+        String[] method_target = new String[3];
+        Map<String, String> headers = parse_head(new String(head, StandardCharsets.UTF_8), method_target);
+        ByteBuffer body;
+        if (chunked(headers)) {
+            // walk the chunk sizes first, only copy once the last chunk has arrived
+            long[] total = new long[1];
+            int end = chunked_end(buf, head_end, total);
+            if (end < 0) return null;
+            byte[] data = new byte[(int) total[0]];
+            int at = head_end;
+            int copied = 0;
+            while (true) {
+                int line_end = find_crlf(buf, at);
+                int size = chunk_size(buf, at, line_end);
+                if (size == 0) break;
+                buf.get(line_end + 2, data, copied, size);
+                copied += size;
+                at = line_end + 2 + size + 2;
+            }
+            buf.position(end);
+            body = ByteBuffer.wrap(data);
+        } else {
+            int length = content_length(headers);
+            if (buf.limit() - head_end < length) return null;         // body still on its way
+
+            // no copy: the body is read where it arrived
+            body = buf.slice(head_end, length).asReadOnlyBuffer();
+            buf.position(head_end + length);
+        }
+        return new HttpRequest(method_target[0], method_target[1], method_target[2], headers, body);
+    }
+
+    // The same exception, with the method the request line starts with (if a space already ended it)
+    private static BadRequestException with_method(BadRequestException e, byte[] head) {
+        if (e.method != null) return e;
+        for (int i = 0; i < Math.min(head.length, 16); i++) {
+            if (head[i] == ' ') {
+                BadRequestException named = new BadRequestException(e.getMessage(), new String(head, 0, i, StandardCharsets.US_ASCII));
+                named.setStackTrace(e.getStackTrace());
+                return named;
+            }
+        }
+        return e;
+    }
+
+    // Request line into method_target (method, target, version), header lines into the returned map
+    private static Map<String, String> parse_head(String head, String[] method_target) throws BadRequestException {
+        String[] lines = head.split("\r\n");
+        String[] parts = lines[0].split(" ");
+        if (parts.length < 2) throw new BadRequestException("bad request line");
+        method_target[0] = parts[0];
+        method_target[1] = parts[1];
+        method_target[2] = parts.length > 2 ? parts[2] : "HTTP/1.0";
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int index = lines[i].indexOf(':');
+            if (index > 0) {
+                headers.put(lines[i].substring(0, index).trim().toLowerCase(), lines[i].substring(index + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static boolean chunked(Map<String, String> headers) {
+        return headers.getOrDefault("transfer-encoding", "").toLowerCase().contains("chunked");
+    }
+
+    // ---- Chunked body from a blocking stream: "<hex size>\r\n<data>\r\n" ... "0\r\n" [trailers] "\r\n" ----
+    private static byte[] read_chunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String line = read_line(in);
+            int size = parse_chunk_size(line);
+            if (size == 0) break;
+            if (body.size() + (long) size > MAX_BODY_BYTES) throw new BadRequestException("body too large");
+            byte[] data = in.readNBytes(size);
+            if (data.length < size) throw new BadRequestException("connection closed inside body");
+            body.write(data);
+            if (!read_line(in).isEmpty()) throw new BadRequestException("bad chunk");
+        }
+        // trailer lines up to the blank line, not used
+        while (!read_line(in).isEmpty()) {}
+        return body.toByteArray();
+    }
+
+    private static String read_line(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) throw new BadRequestException("connection closed inside body");
+            if (b != '\r') line.append((char) b);
+            if (line.length() > MAX_HEADER_BYTES) throw new BadRequestException("line too long");
+        }
+        return line.toString();
+    }
+
+    // ---- Chunked body in a NIO buffer: index just past the body, or -1 if it has not all arrived ----
+    // total receives the decoded length
+    private static int chunked_end(ByteBuffer buf, int at, long[] total) throws BadRequestException {
+        while (true) {
+            int line_end = find_crlf(buf, at);
+            if (line_end < 0) {
+                if (buf.limit() - at > MAX_HEADER_BYTES) throw new BadRequestException("line too long");
+                return -1;
+            }
+            int size = chunk_size(buf, at, line_end);
+            at = line_end + 2;
+            if (size == 0) break;
+            total[0] += size;
+            if (total[0] > MAX_BODY_BYTES) throw new BadRequestException("body too large");
+            if (buf.limit() - at < size + 2) return -1;
+            if (buf.get(at + size) != '\r' || buf.get(at + size + 1) != '\n') throw new BadRequestException("bad chunk");
+            at += size + 2;
+        }
+        // trailer lines up to the blank line
+        while (true) {
+            int line_end = find_crlf(buf, at);
+            if (line_end < 0) return -1;
+            if (line_end == at) return at + 2;
+            at = line_end + 2;
+        }
+    }
+
+    // Index of the next "\r\n" at or after from, -1 if none yet
+    private static int find_crlf(ByteBuffer buf, int from) {
+        for (int i = from; i + 1 < buf.limit(); i++) {
+            if (buf.get(i) == '\r' && buf.get(i + 1) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static int chunk_size(ByteBuffer buf, int from, int to) throws BadRequestException {
+        byte[] line = new byte[to - from];
+        buf.get(from, line);
+        return parse_chunk_size(new String(line, StandardCharsets.US_ASCII));
+    }
+
+    // Hex size at the start of a chunk line, extensions after ';' are ignored
+    private static int parse_chunk_size(String line) throws BadRequestException {
+        int semi = line.indexOf(';');
+        String hex = (semi < 0 ? line : line.substring(0, semi)).trim();
+        try {
+            long size = Long.parseLong(hex, 16);
+            if (size < 0 || size > MAX_BODY_BYTES) throw new BadRequestException("bad chunk size");
+            return (int) size;
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("bad chunk size");
+        }
+    }
+
+    private static int content_length(Map<String, String> headers) throws BadRequestException {
+        String value = headers.get("content-length");
+        if (value == null) return 0;
+        try {
+            long length = Long.parseLong(value);
+            if (length < 0 || length > MAX_BODY_BYTES) throw new BadRequestException("bad Content-Length");
+            return (int) length;
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("bad Content-Length");
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Function: a response waiting to be written by either front end
+ *
+ * The X-Lamport-Clock header is filled in when the head is encoded,
+ * so it reflects the server clock at send time.
+ * extra_headers are already formatted "Name: value\r\n" lines.
+ * A 304 carries no body and no Content-Length/Content-Type (they would describe the cached copy).
+ * A stream response (SSE) has no length either: its events follow the head until the connection closes.
+ * A chunked response (a big GET) has no body bytes here: the front end pulls its chunks after the head.
+ * To a HEAD (refused with 400, malformed or not) the front end writes the head alone: the
+ * Content-Length still describes the body, which does not follow (RFC 9110 9.3.2).
+ */
+public class HttpResponse {
+    public final int status;
+    public final byte[] body;
+    public final String extra_headers;
+    public final Subscriber stream;     // non-null for an SSE subscription
+    public final ChunkedBody chunked;   // non-null for a Transfer-Encoding: chunked body
+
+    public HttpResponse(int status, byte[] body, String extra_headers) {
+        this(status, body, extra_headers, null, null);
+    }
+
+    private HttpResponse(int status, byte[] body, String extra_headers, Subscriber stream, ChunkedBody chunked) {
+        this.status = status;
+        this.body = body;
+        this.extra_headers = extra_headers;
+        this.stream = stream;
+        this.chunked = chunked;
+    }
+
+    // ---- 200 text/event-stream, the front end then writes the subscriber's events ----
+    public static HttpResponse stream(Subscriber subscriber) {
+        return new HttpResponse(200, new byte[0], "", subscriber, null);
+    }
+
+    // ---- 200 application/json, the front end then writes the body's chunks ----
+    public static HttpResponse chunked(ChunkedBody body, String extra_headers) {
+        return new HttpResponse(200, new byte[0], extra_headers, null, body);
+    }
+
+    public HttpResponse(int status, String body) {
+        this(status, body.getBytes(StandardCharsets.UTF_8), "");
+    }
+
+    // ---- Status line + headers ----
+    // keep_alive: whether the server keeps reading requests on this connection afterwards (never after a stream)
+    public byte[] head(long lamport, boolean keep_alive) {
+        String entity = stream != null ? "Content-Type: text/event-stream\r\nCache-Control: no-cache\r\n" :
+                status == 304 ? "" :
+                chunked != null ? "Transfer-Encoding: chunked\r\nContent-Type: application/json\r\n" :
+                "Content-Length: " + body.length + "\r\n" +
+                "Content-Type: application/json\r\n";           // everything we send back is JSON (Serialisation)
+        String headers = "HTTP/1.1 " + status + " " + reason(status) + "\r\n" +
+                entity +
+                "Connection: " + (keep_alive && stream == null ? "keep-alive" : "close") + "\r\n" +
+                extra_headers +
+                "X-Lamport-Clock: " + lamport + "\r\n\r\n";
+        return headers.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default:  return "Status";
+        }
+    }
+}
@@ -10,10 +10,9 @@ public class LamportClock {
     }
 
     // On receiving a message
+    // (atomic, several writer shards and connection threads call this at once)
     public long on_receive(long remote_lp){
-        long updated = Math.max(time.get(), remote_lp) + 1;
-        time.set(updated);
-        return updated;
+        return time.updateAndGet(current -> Math.max(current, remote_lp) + 1);
     }
 
     // getter for current logic time
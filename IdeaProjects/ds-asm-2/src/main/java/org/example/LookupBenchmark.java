@@ -0,0 +1,106 @@
+package org.example;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Function: point lookups and filtered reads off a FeedView's indexes, against feed size, in-process
+ *
+ * For each feed size a view is built the way the writers build it (WriterShard.put, then one slot
+ * per shard) and then timed:
+ * - lookup   GET /weather/{id}: view.get + encoding the one record
+ * - scan     what a consumer did before: encode the whole feed, then find the station in it
+ * - state    GET ?state=: the records of one of 8 states, off the state index
+ * - fields   GET ?fields=id,air_temp: the whole feed, two keys per record
+ * Each timing is the best of several rounds after a warm-up, so JIT and GC noise stay out.
+ *
+ * Usage: LookupBenchmark [shards] [stations...]     eg. LookupBenchmark 4 1000 10000 100000 1000000
+ */
+public class LookupBenchmark {
+    private static final int ROUNDS = 7;
+    private static final int LOOKUPS = 100_000;         // point lookups per timed round
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+
+    public static void main(String[] args) {
+        int shard_count = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int[] sizes = {1_000, 10_000, 100_000, 1_000_000};
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.printf("%10s %12s %12s %12s %12s%n", "stations", "lookup us", "scan ms", "state ms", "fields ms");
+        for (int stations : sizes) {
+            FeedView view = build(shard_count, stations);
+            String[] ids = new String[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) ids[i] = id((int) ((i * 7919L) % stations));
+
+            double lookup_us = best(() -> {
+                long bytes = 0;
+                for (String id : ids) bytes += view.get(id).to_json_string(null).length();
+                return bytes;
+            }) * 1000 / LOOKUPS;
+            double scan_ms = best(() -> scan(view, ids[0]));
+            double state_ms = best(() -> FeedView.json_bytes(view.matching("SA", null), null));
+            double fields_ms = best(() -> FeedView.json_bytes(view.records(), Set.of("id", "air_temp")));
+            System.out.printf("%10d %12.3f %12.1f %12.1f %12.1f%n", stations, lookup_us, scan_ms, state_ms, fields_ms);
+        }
+    }
+
+    // ---- A view of N stations, spread over the shards like the server does ----
+    private static FeedView build(int shard_count, int stations) {
+        WriterShard[] shards = new WriterShard[shard_count];
+        for (int i = 0; i < shard_count; i++) shards[i] = new WriterShard(i, 0);
+        for (int i = 0; i < stations; i++) {
+            JsonObject o = new JsonObject();
+            o.addProperty("id", id(i));
+            o.addProperty("name", "Station " + i);
+            o.addProperty("state", STATES[i % STATES.length]);
+            o.addProperty("air_temp", "1" + (i % 10) + ".3");
+            o.addProperty("rel_hum", "" + (i % 100));
+            WeatherRecord record = WeatherRecord.from_json(o, 1, "CS" + (i % 16));
+            shards[WriterShard.shard_of(record.id, shard_count)].put(record);
+        }
+        FeedView view = FeedView.empty(shard_count);
+        for (WriterShard shard : shards) {
+            view = view.with_shard(shard.index, 1, shard.slot(), view.stamp + 1, List.of(), List.of());
+        }
+        return view;
+    }
+
+    private static String id(int i) {
+        return "IDS" + (60000 + i);
+    }
+
+    // The client side of a lookup without the endpoint: the whole feed, parsed, searched
+    private static Object scan(FeedView view, String id) {
+        for (JsonElement e : JsonParser.parseString(new String(view.json_bytes(), StandardCharsets.UTF_8)).getAsJsonArray()) {
+            if (e.getAsJsonObject().get("id").getAsString().equals(id)) return e;
+        }
+        return null;
+    }
+
+    // ---- Best wall time in ms over ROUNDS runs, after a warm-up run ----
+    private interface Run {
+        Object run();
+    }
+
+    private static volatile Object sink;
+
+    private static double best(Run run) {
+        sink = run.run();
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long t = System.nanoTime();
+            sink = run.run();
+            best = Math.min(best, (System.nanoTime() - t) / 1e6);
+        }
+        sink = null;
+        return best;
+    }
+}
@@ -0,0 +1,39 @@
+package org.example;
+
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Function: named counters and gauges, served as JSON from GET /metrics
+ *
+ * counter - a number that only goes up (eg. get_cache_hits)
+ * gauge   - read on demand from whoever owns the value (eg. request_queue_depth)
+ */
+public class Metrics {
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public AtomicLong counter(String name) {
+        return counters.computeIfAbsent(name, k -> new AtomicLong());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // ---- Everything in one JSON object, sorted by name ----
+    public JsonObject to_json() {
+        Map<String, Long> all = new TreeMap<>();
+        counters.forEach((name, value) -> all.put(name, value.get()));
+        gauges.forEach((name, value) -> all.put(name, value.getAsLong()));
+
+        JsonObject o = new JsonObject();
+        all.forEach(o::addProperty);
+        return o;
+    }
+}
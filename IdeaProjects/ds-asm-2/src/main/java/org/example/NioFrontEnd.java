@@ -0,0 +1,371 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Function: non-blocking HTTP front end, one selector thread for every connection
+ *
+ * - Accept, read and write all happen on the thread that calls run()
+ * - Each connection reads into a pooled direct ByteBuffer (grown on the heap for big bodies)
+ * - A complete request is handed to the server, which returns a CompletableFuture;
+ *   when it completes (eg. the writer acknowledged a PUT) the response is queued back
+ *   to the selector thread, so no thread is parked per in-flight request
+ * - Connections are kept alive: pipelined requests each get a slot in arrival order and
+ *   responses are written strictly in that order, even if a later GET finishes before
+ *   an earlier PUT. Idle connections are closed by a periodic sweep.
+ * - An SSE response turns the connection into a one-way stream: nothing more is read,
+ *   and the subscriber's events are moved to the socket only while it keeps up, so a slow
+ *   client fills its own bounded buffer and gets disconnected instead of growing ours.
+ * - A chunked GET body is encoded the same way, a few chunks ahead of the socket; the
+ *   responses pipelined after it wait until its last chunk is queued.
+ */
+public class NioFrontEnd {
+    private static final int READ_BUFFER_BYTES = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    private static final int MAX_PIPELINED = 64;            // unanswered requests per connection before we stop reading
+    private static final int MAX_QUEUED_EVENTS = 16;        // SSE events or body chunks moved to the out queue at a time
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final ServerConfig config;
+    private final Function<HttpRequest, CompletableFuture<HttpResponse>> handler;
+    private final LongSupplier lamport_clock;
+    private final Selector selector;
+    private volatile Thread selector_thread;
+
+    // Work handed to the selector thread from other threads (completed responses)
+    private final ConcurrentLinkedQueue<Runnable> selector_tasks = new ConcurrentLinkedQueue<>();
+    // Direct read buffers, reused across connections (selector thread only)
+    private final ArrayDeque<ByteBuffer> buffer_pool = new ArrayDeque<>();
+
+    // ---- One request waiting for its response, in pipeline order ----
+    private static class Slot {
+        final boolean keep_alive;
+        final boolean head_only;        // answering a HEAD: the response's head goes out, its body does not
+        HttpResponse response;          // null until the handler completes
+
+        Slot(boolean keep_alive, boolean head_only) {
+            this.keep_alive = keep_alive;
+            this.head_only = head_only;
+        }
+    }
+
+    // ---- Per connection state, only touched on the selector thread ----
+    private class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in;                              // write mode while reading from the socket
+        final ArrayDeque<Slot> pending = new ArrayDeque<>();
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        int served;
+        boolean closing;                            // no more requests are read, close once pending is written
+        long last_active = System.currentTimeMillis();
+        Subscriber stream;                          // set once an SSE response was sent
+        ChunkedBody body;                           // chunked response still being written, null if none
+        final AtomicBoolean pump_scheduled = new AtomicBoolean();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.in = take_buffer();
+        }
+
+        boolean idle() {
+            return pending.isEmpty() && out.isEmpty() && body == null && (stream == null || stream.closed());
+        }
+    }
+
+    public NioFrontEnd(ServerConfig config, Function<HttpRequest, CompletableFuture<HttpResponse>> handler, LongSupplier lamport_clock) throws IOException {
+        this.config = config;
+        this.handler = handler;
+        this.lamport_clock = lamport_clock;
+        this.selector = Selector.open();
+    }
+
+    // ---- Event loop (runs on the calling thread) ----
+    public void run() throws IOException {
+        selector_thread = Thread.currentThread();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(config.port), config.connect_backlog);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Aggregation Server listening on port " + config.port + " (nio)");
+
+            long last_sweep = System.currentTimeMillis();
+            while (true) {
+                selector.select(SWEEP_INTERVAL_MS);
+
+                Runnable task;
+                while ((task = selector_tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept(server);
+                        } else {
+                            Connection conn = (Connection) key.attachment();
+                            if (key.isReadable()) on_readable(conn);
+                            if (key.isValid() && key.isWritable()) flush_ready(conn);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (key.attachment() instanceof Connection conn) close(conn);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - last_sweep >= SWEEP_INTERVAL_MS) {
+                    close_idle(now);
+                    last_sweep = now;
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    // ---- Read whatever arrived, then hand over every complete request in it ----
+    private void on_readable(Connection conn) throws IOException {
+        int read = conn.channel.read(conn.in);
+        if (read < 0) {
+            // client is done sending, still answer what it already asked for
+            conn.closing = true;
+            if (conn.idle()) close(conn);
+            else update_interest(conn);
+            return;
+        }
+        conn.last_active = System.currentTimeMillis();
+        process_input(conn);
+    }
+
+    // Parse buffered requests until the buffer runs dry or the pipeline is full
+    private void process_input(Connection conn) {
+        conn.in.flip();
+        while (!conn.closing && conn.pending.size() < MAX_PIPELINED) {
+            HttpRequest request;
+            try {
+                request = HttpRequest.parse(conn.in);
+            } catch (HttpRequest.BadRequestException e) {
+                // cannot tell where the next request starts, answer 400 and close
+                Slot slot = new Slot(false, e.head());
+                slot.response = new HttpResponse(400, e.getMessage());
+                conn.pending.add(slot);
+                conn.closing = true;
+                conn.in.position(conn.in.limit());
+                break;
+            }
+            if (request == null) break;
+
+            conn.served++;
+            Slot slot = new Slot(request.keep_alive() && conn.served < config.max_requests, request.head());
+            if (!slot.keep_alive) conn.closing = true;
+            conn.pending.add(slot);
+            dispatch(conn, slot, request);
+        }
+
+        // keep unparsed bytes, a request bigger than the buffer moves to a heap buffer of twice the size
+        conn.in.compact();
+        if (!conn.in.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(conn.in.capacity() * 2);
+            conn.in.flip();
+            bigger.put(conn.in);
+            give_back(conn.in);
+            conn.in = bigger;
+        }
+
+        flush_ready(conn);
+    }
+
+    private void dispatch(Connection conn, Slot slot, HttpRequest request) {
+        CompletableFuture<HttpResponse> future;
+        try {
+            future = handler.apply(request);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.completedFuture(new HttpResponse(500, "Internal Server Error"));
+        }
+        future.whenComplete((response, err) -> {
+            HttpResponse to_send = err == null ? response : new HttpResponse(500, "Internal Server Error");
+            if (Thread.currentThread() == selector_thread) {
+                slot.response = to_send;        // written by process_input once parsing is done
+            } else {
+                selector_tasks.add(() -> {
+                    slot.response = to_send;
+                    flush_ready(conn);
+                });
+                selector.wakeup();
+            }
+        });
+    }
+
+    // ---- Queue every ready response at the head of the pipeline, then write (selector thread) ----
+    // Also run when the socket is writable: a finished chunked body lets the responses behind it go
+    private void flush_ready(Connection conn) {
+        if (!conn.channel.isOpen()) return;
+        boolean was_full = conn.pending.size() >= MAX_PIPELINED;
+        queue_ready(conn);
+        try {
+            write(conn);
+            // room in the pipeline again, parse what was left waiting in the buffer
+            if (was_full && conn.channel.isOpen() && conn.pending.size() < MAX_PIPELINED && conn.in.position() > 0) {
+                process_input(conn);
+            }
+        } catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    // Move ready responses to the out queue, up to a stream or a chunked body
+    private void queue_ready(Connection conn) {
+        while (conn.body == null && !conn.pending.isEmpty() && conn.pending.peek().response != null) {
+            Slot slot = conn.pending.poll();
+            conn.out.add(ByteBuffer.wrap(slot.response.head(lamport_clock.getAsLong(), slot.keep_alive)));
+            if (slot.head_only) continue;
+            conn.out.add(ByteBuffer.wrap(slot.response.body));
+            if (slot.response.stream != null) {
+                start_stream(conn, slot.response.stream);
+                break;
+            }
+            conn.body = slot.response.chunked;
+        }
+    }
+
+    // ---- The connection only carries this subscriber's events from now on ----
+    private void start_stream(Connection conn, Subscriber stream) {
+        conn.stream = stream;
+        conn.closing = true;
+        conn.pending.clear();           // anything pipelined after a subscription is never answered
+        stream.on_event(() -> {
+            if (conn.pump_scheduled.compareAndSet(false, true)) {
+                selector_tasks.add(() -> {
+                    conn.pump_scheduled.set(false);
+                    pump(conn);
+                });
+                selector.wakeup();
+            }
+        });
+    }
+
+    // New events (or the subscriber closed), selector thread
+    private void pump(Connection conn) {
+        if (!conn.channel.isOpen()) return;
+        if (conn.stream.closed()) {
+            close(conn);                // dropped as a slow consumer, whatever is still queued is not worth sending
+            return;
+        }
+        try {
+            write(conn);
+        } catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    private void write(Connection conn) throws IOException {
+        top_up(conn);
+        if (!conn.out.isEmpty()) {
+            // gathering write, pipelined responses usually leave in one syscall
+            conn.channel.write(conn.out.toArray(new ByteBuffer[0]));
+            while (!conn.out.isEmpty() && !conn.out.peek().hasRemaining()) {
+                conn.out.poll();
+            }
+            // drained, room for more events or chunks
+            if (conn.out.isEmpty()) top_up(conn);
+            conn.last_active = System.currentTimeMillis();
+        }
+        if (conn.closing && conn.idle()) {
+            close(conn);
+            return;
+        }
+        update_interest(conn);
+    }
+
+    // Top up with SSE events or body chunks, but only a few: the rest wait in the subscriber's
+    // bounded buffer, or are not encoded yet
+    private void top_up(Connection conn) {
+        if (conn.stream != null) {
+            byte[] event;
+            while (conn.out.size() < MAX_QUEUED_EVENTS && (event = conn.stream.poll()) != null) {
+                conn.out.add(ByteBuffer.wrap(event));
+            }
+        }
+        while (conn.body != null && conn.out.size() < MAX_QUEUED_EVENTS) {
+            byte[] chunk = conn.body.next();
+            if (chunk != null) {
+                conn.out.add(ByteBuffer.wrap(chunk));
+            } else {
+                conn.body = null;
+                queue_ready(conn);          // the responses pipelined behind it can go now
+            }
+        }
+    }
+
+    // Read while the pipeline has room, write while something is queued
+    private void update_interest(Connection conn) {
+        int ops = 0;
+        if (!conn.closing && conn.pending.size() < MAX_PIPELINED) ops |= SelectionKey.OP_READ;
+        if (!conn.out.isEmpty()) ops |= SelectionKey.OP_WRITE;
+        conn.key.interestOps(ops);
+    }
+
+    // ---- Close kept-alive connections nobody has used for idle_timeout_ms ----
+    private void close_idle(long now) {
+        List<Connection> idle = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection conn && conn.idle() && now - conn.last_active > config.idle_timeout_ms) {
+                idle.add(conn);
+            }
+        }
+        for (Connection conn : idle) {
+            close(conn);
+        }
+    }
+
+    private void close(Connection conn) {
+        if (conn.stream != null && !conn.stream.closed()) conn.stream.close();
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException ignored) {}
+        if (conn.in != null) {
+            give_back(conn.in);
+            conn.in = null;
+        }
+    }
+
+    // ---- Direct buffer pool ----
+    private ByteBuffer take_buffer() {
+        ByteBuffer buf = buffer_pool.poll();
+        return buf != null ? buf : ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+    }
+
+    private void give_back(ByteBuffer buf) {
+        if (buf.isDirect() && buffer_pool.size() < MAX_POOLED_BUFFERS) {
+            buf.clear();
+            buffer_pool.add(buf);
+        }
+    }
+}
@@ -1,122 +1,683 @@
 package org.example;
 
 // For JSON Serialisation + Deserialisation
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class PersistenceManager {
-    private final Path wal_path;        // where updates are logged
+    private final Path persis_dir;
     private final Path snapshot_path;
-    private final Gson gson = new Gson();
+
+    // ---- Group commit WAL ----
+    // One committer thread, so many PUTs share a single sync
+    private static final long COMMIT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(2);   // how long to gather a batch
+    private static final int COMMIT_BYTE_BUDGET = 256 * 1024;                           // flush early once batch is this big
+    private final LinkedBlockingQueue<WalEntry> wal_pending = new LinkedBlockingQueue<>();
+
+    // ---- Segmented WAL ----
+    // wal-<first seq>.seg files, keyed by first seq; the active one is written by the committer only
+    private static final int SEGMENT_BYTES = 8 * 1024 * 1024;
+    private static final int COMPACT_MIN_SEGMENTS = 4;         // compact once this many sealed segments pile up
+    private final TreeMap<Long, WalSegment> segments = new TreeMap<>();     // guarded by segments_lock
+    private WalSegment active;                                              // guarded by segments_lock
+    // A lock rather than synchronized: files are deleted/moved while holding it, and a
+    // virtual thread blocking on I/O inside a monitor would pin its carrier thread
+    private final ReentrantLock segments_lock = new ReentrantLock();
+
+    // ---- Checkpoint bookkeeping ----
+    // Every WAL record gets a sequence number, a snapshot remembers the last one it covers
+    private final AtomicLong next_seq = new AtomicLong(1);
+    private final AtomicLong wal_bytes_since_seal = new AtomicLong(0);     // bytes logged since the last checkpoint seal
+    // Writer shards append concurrently; taking a seq and queueing must happen together so the
+    // committer sees records in seq order (segments rely on it for first/last seq)
+    private final ReentrantLock append_lock = new ReentrantLock();
+
+    // ---- Replication: every synced batch is handed on, in seq order (see WalShipper) ----
+    private volatile long committed_seq = 0;
+    private volatile Consumer<List<WalCodec.Record>> on_commit;
+
+    // A WAL record waiting to be framed and synced, plus who to notify afterwards
+    // (a seal marker has no payload and closes the active segment)
+    private static class WalEntry {
+        final long seq;
+        final long lamport;
+        final String source_id;
+        final WalCodec.EncodedPayload payload;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        WalEntry(long seq, long lamport, String source_id, WalCodec.EncodedPayload payload) {
+            this.seq = seq;
+            this.lamport = lamport;
+            this.source_id = source_id;
+            this.payload = payload;
+        }
+
+        boolean is_seal() {
+            return payload == null;
+        }
+    }
 
     // ---- Constructor ----
     public PersistenceManager(String persis_dir) throws IOException {
         // initiate dir path for persistent manager
-        Files.createDirectories(Paths.get(persis_dir));
-        this.wal_path = Paths.get(persis_dir, "updates.wal");
+        this.persis_dir = Paths.get(persis_dir);
+        Files.createDirectories(this.persis_dir);
         this.snapshot_path = Paths.get(persis_dir, "feed.json");
 
-        // Set up paths for WAL and snapshot if the dir exists
-        if (!Files.exists(wal_path)) {
-            Files.createFile(wal_path);
-        }
+        // The active segment is created lazily by the committer, once replay has fixed next_seq
+        Thread committer = new Thread(this::run_committer, "WAL Committer");
+        committer.setDaemon(true);
+        committer.start();
+
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WAL Compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, 5, 5, TimeUnit.SECONDS);
     }
 
     // ---- Append to WAL ----
-    public synchronized void append_wal(long lamport, String source_id, JsonObject payload) throws IOException {
-        // Preparing wal_payload to write to file
-        // example: {"lamport":15,"source_id":"CS1","payload":{"id":"A1","temperature":28}}
-        JsonObject wal_payload = new JsonObject();
-        wal_payload.addProperty("lamport", lamport);
-        wal_payload.addProperty("source_id", source_id);
-        wal_payload.add("payload", payload);
+    /**
+     * Queue the records of one PUT (several for a batch) for the next group commit.
+     * They get consecutive seqs and go to the committer together.
+     * The returned future completes once all of them have been synced, so the
+     * caller must not acknowledge the PUT before then.
+     */
+    public CompletableFuture<Void> append_wal(long lamport, String source_id, List<WeatherRecord> records) {
+        // Serialise + deflate the records here so the committer only has to frame them (see WalCodec)
+        List<WalCodec.EncodedPayload> encoded = new ArrayList<>(records.size());
+        for (WeatherRecord record : records) {
+            encoded.add(WalCodec.encode_payload(record.to_json_string()));
+        }
+
+        List<CompletableFuture<Void>> durable = new ArrayList<>(encoded.size());
+        append_lock.lock();
+        try {
+            for (WalCodec.EncodedPayload payload : encoded) {
+                WalEntry entry = new WalEntry(next_seq.getAndIncrement(), lamport, source_id, payload);
+                wal_pending.add(entry);
+                durable.add(entry.durable);
+            }
+        } finally {
+            append_lock.unlock();
+        }
+        return durable.size() == 1 ? durable.get(0) : CompletableFuture.allOf(durable.toArray(CompletableFuture<?>[]::new));
+    }
+
+    // ---- Append tombstones: stations removed by expiry, so replay does not bring them back ----
+    /**
+     * One tombstone per removed record, carrying its lamport and source_id, synced like a PUT.
+     * The caller must not drop the records from the store before the returned future completes.
+     */
+    public CompletableFuture<Void> append_tombstones(Collection<WeatherRecord> removed) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>(removed.size());
+        append_lock.lock();
+        try {
+            for (WeatherRecord record : removed) {
+                WalEntry entry = new WalEntry(next_seq.getAndIncrement(), record.lamport, record.source_id,
+                        WalCodec.tombstone_payload(record.id));
+                wal_pending.add(entry);
+                durable.add(entry.durable);
+            }
+        } finally {
+            append_lock.unlock();
+        }
+        return CompletableFuture.allOf(durable.toArray(CompletableFuture<?>[]::new));
+    }
+
+    // Sequence number of the most recently appended record (0 if none yet)
+    public long last_appended_seq() {
+        return next_seq.get() - 1;
+    }
+
+    // Sequence number of the most recently synced record (0 if none yet)
+    public long committed_seq() {
+        return committed_seq;
+    }
+
+    // Called on the committer thread after each synced batch, so it must only hand the records off
+    public void on_commit(Consumer<List<WalCodec.Record>> listener) {
+        this.on_commit = listener;
+    }
+
+    // How much has been logged since the last checkpoint, used as the checkpoint size trigger
+    public long wal_bytes_since_seal() {
+        return wal_bytes_since_seal.get();
+    }
+
+    // ---- Committer thread: gather pending records, write them once, sync once ----
+    private void run_committer() {
+        List<WalEntry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                // Block until there is at least one record to commit
+                WalEntry first = wal_pending.take();
+                if (first.is_seal()) {
+                    seal(first);
+                    continue;
+                }
+                batch.add(first);
+                int batch_bytes = first.payload.size();
+
+                // Keep gathering until the window closes or the batch is big enough
+                WalEntry seal = null;
+                long deadline = System.nanoTime() + COMMIT_WINDOW_NANOS;
+                while (batch_bytes < COMMIT_BYTE_BUDGET) {
+                    long remaining = deadline - System.nanoTime();
+                    WalEntry next = remaining > 0 ? wal_pending.poll(remaining, TimeUnit.NANOSECONDS) : wal_pending.poll();
+                    if (next == null) break;
+                    // records after a seal marker belong in the next segment
+                    if (next.is_seal()) {
+                        seal = next;
+                        break;
+                    }
+                    batch.add(next);
+                    batch_bytes += next.payload.size();
+                }
+
+                commit_batch(batch);
+                if (seal != null) {
+                    seal(seal);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit_batch(List<WalEntry> batch) {
+        try {
+            long written = 0;
+            for (WalEntry entry : batch) {
+                byte[] frame = active == null ? null : active.frame(entry.seq, entry.lamport, entry.source_id, entry.payload);
+
+                // roll over to a new segment when this one is full (frames are per segment, so re-frame)
+                if (frame == null || !active.fits(frame.length)) {
+                    roll_segment(entry.seq, entry.payload.size() + 64);
+                    frame = active.frame(entry.seq, entry.lamport, entry.source_id, entry.payload);
+                }
+                active.append(frame, entry.seq);
+                written += frame.length;
+            }
+            active.force();
+            wal_bytes_since_seal.addAndGet(written);
+            committed_seq = batch.get(batch.size() - 1).seq;
 
-        // Write to file
-        try (FileOutputStream file_out = new FileOutputStream(wal_path.toFile(), true);) {
-            file_out.write((gson.toJson(wal_payload) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
-            file_out.getChannel().force(true);
+            Consumer<List<WalCodec.Record>> listener = on_commit;
+            if (listener != null) {
+                List<WalCodec.Record> committed = new ArrayList<>(batch.size());
+                for (WalEntry entry : batch) {
+                    committed.add(new WalCodec.Record(entry.seq, entry.lamport, entry.source_id, entry.payload));
+                }
+                listener.accept(committed);
+            }
+
+            // Only now is every record in this batch durable
+            for (WalEntry entry : batch) {
+                entry.durable.complete(null);
+            }
+        } catch (IOException e) {
+            System.err.println("WAL Committer: failed to sync batch " + e.getMessage());
+            for (WalEntry entry : batch) {
+                entry.durable.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Seal the full active segment and map a fresh one starting at first_seq
+    // If the new one cannot be created there is no active segment, the next commit tries to roll again
+    private void roll_segment(long first_seq, int min_capacity) throws IOException {
+        if (active != null) {
+            active.seal();
+            segments_lock.lock();
+            try {
+                active = null;
+            } finally {
+                segments_lock.unlock();
+            }
+        }
+        WalSegment next = WalSegment.create(persis_dir, first_seq, Math.max(SEGMENT_BYTES, min_capacity));
+        segments_lock.lock();
+        try {
+            segments.put(first_seq, next);
+            active = next;
+        } finally {
+            segments_lock.unlock();
+        }
+    }
+
+    // ---- Seal WAL: close the active segment so a checkpoint can cover it ----
+    /**
+     * Queue a seal behind every record appended so far.
+     * Must be called while no PUT can append (the server holds its lock), so the
+     * sealed segments hold exactly the records up to and including the returned seq.
+     */
+    public long seal_WAL(CompletableFuture<Void> sealed) {
+        long seq = last_appended_seq();
+        WalEntry marker = new WalEntry(seq, 0, null, null);
+        marker.durable.whenComplete((ignored, err) -> {
+            if (err == null) sealed.complete(null); else sealed.completeExceptionally(err);
+        });
+        wal_pending.add(marker);
+        return seq;
+    }
+
+    private void seal(WalEntry marker) {
+        try {
+            if (active != null) {
+                active.seal();
+                segments_lock.lock();
+                try {
+                    active = null;
+                } finally {
+                    segments_lock.unlock();
+                }
+            }
+            wal_bytes_since_seal.set(0);
+            marker.durable.complete(null);
+        } catch (IOException e) {
+            System.err.println("WAL Committer: failed to seal segment " + e.getMessage());
+            marker.durable.completeExceptionally(e);
+        }
+    }
+
+    // ---- Drop sealed segments once a snapshot covering them is on disk ----
+    public void delete_WAL_upto(long covered_seq) throws IOException {
+        segments_lock.lock();
+        try {
+            Iterator<WalSegment> it = segments.values().iterator();
+            while (it.hasNext()) {
+                WalSegment segment = it.next();
+                if (segment != active && segment.last_seq <= covered_seq) {
+                    Files.deleteIfExists(segment.path);
+                    it.remove();
+                }
+            }
+        } finally {
+            segments_lock.unlock();
+        }
+    }
+
+    // ---- Compactor: keep only the newest record per station across sealed segments ----
+    /**
+     * Merge every sealed segment into one, keeping what replay would end up with per id (see Replayed):
+     * the record with the highest lamport (later seq wins a tie), and the last tombstone before it if
+     * there is one, so a station removed by expiry stays removed.
+     * The merged file takes the oldest input's name, so replay order is unchanged.
+     */
+    private void compact() {
+        try {
+            List<WalSegment> inputs = new ArrayList<>();
+            segments_lock.lock();
+            try {
+                for (WalSegment segment : segments.values()) {
+                    if (segment != active) inputs.add(segment);
+                }
+            } finally {
+                segments_lock.unlock();
+            }
+            if (inputs.size() < COMPACT_MIN_SEGMENTS) return;
+
+            // Latest record (and tombstone) per station id
+            Map<String, Replayed> latest = new HashMap<>();
+            long last_seq = 0;
+            for (WalSegment segment : inputs) {
+                for (WalCodec.Record record : WalSegment.read_records(segment.path, false)) {
+                    JsonObject payload = record.payload();
+                    if (!payload.has("id")) continue;
+                    latest.merge(payload.get("id").getAsString(), new Replayed(record, payload), Replayed::then);
+                }
+                last_seq = Math.max(last_seq, segment.last_seq);
+            }
+
+            // Write the survivors in seq order into a temp file
+            List<WalCodec.Record> survivors = new ArrayList<>(latest.size());
+            for (Replayed replayed : latest.values()) {
+                if (replayed.tombstone != null) survivors.add(replayed.tombstone);
+                if (replayed.record != null) survivors.add(replayed.record);
+            }
+            survivors.sort(Comparator.comparingLong(r -> r.seq));
+            WalSegment oldest = inputs.get(0);
+            Path temp = oldest.path.resolveSibling(oldest.path.getFileName() + ".compact");
+            write_segment_file(temp, survivors);
+
+            segments_lock.lock();
+            try {
+                // a checkpoint may have dropped some inputs meanwhile, then this result is stale
+                for (WalSegment segment : inputs) {
+                    if (segments.get(segment.first_seq) != segment) {
+                        Files.deleteIfExists(temp);
+                        return;
+                    }
+                }
+                // Replace the oldest input first: if we crash before deleting the rest,
+                // replay skips their records because the merged file already reaches a higher seq
+                Files.move(temp, oldest.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                for (WalSegment segment : inputs.subList(1, inputs.size())) {
+                    Files.deleteIfExists(segment.path);
+                    segments.remove(segment.first_seq);
+                }
+                segments.put(oldest.first_seq, new WalSegment(oldest.path, oldest.first_seq, last_seq));
+            } finally {
+                segments_lock.unlock();
+            }
+        } catch (Exception e) {
+            System.err.println("WAL Compactor: failed to compact segments " + e.getMessage());
+        }
+    }
+
+    // ---- Write already-decoded records into a fresh (sealed) segment file ----
+    private void write_segment_file(Path file, List<WalCodec.Record> records) throws IOException {
+        WalCodec.Encoder encoder = new WalCodec.Encoder();
+        try (FileOutputStream file_out = new FileOutputStream(file.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file_out))) {
+            out.writeInt(WalCodec.SEGMENT_MAGIC);
+            for (WalCodec.Record record : records) {
+                out.write(encoder.frame(record.seq, record.lamport, record.source_id, record.payload));
+            }
+            out.flush();
+            file_out.getFD().sync();
+        }
+    }
+
+    // ---- Converter: rewrite a text WAL from older versions as a binary segment ----
+    /**
+     * Each line is {"seq","lamport","source_id","payload"} (seq missing in the oldest logs, read as 0).
+     * The result is written next to it as wal-<first seq>.seg and the text file is removed.
+     * Lines that cannot be parsed are reported, not silently dropped.
+     */
+    private void convert_text_wal(Path text_file) throws IOException {
+        List<WalCodec.Record> records = new ArrayList<>();
+        List<String> lines = Files.readAllLines(text_file, StandardCharsets.UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).replace("\0", "");     // text segments were zero padded
+            if (line.isBlank()) continue;
+            try {
+                JsonObject entry = JsonParser.parseString(line).getAsJsonObject();
+                JsonObject payload = entry.getAsJsonObject("payload");
+                payload.remove("lamport");
+                payload.remove("source_id");
+
+                long seq = entry.has("seq") ? entry.get("seq").getAsLong() : 0;
+                long lamport = entry.has("lamport") ? entry.get("lamport").getAsLong() : 0;
+                String source_id = entry.has("source_id") ? entry.get("source_id").getAsString() : "unknown";
+                records.add(new WalCodec.Record(seq, lamport, source_id, WalCodec.encode_payload(payload)));
+            } catch (Exception e) {
+                System.err.println("WAL: dropping unreadable line " + (i + 1) + " of " + text_file.getFileName());
+            }
+        }
+
+        if (!records.isEmpty()) {
+            Path target = WalSegment.path_for(persis_dir, records.get(0).seq);
+            if (!target.equals(text_file) && Files.exists(target)) {
+                throw new IOException("cannot convert " + text_file.getFileName() + ", " + target.getFileName() + " already exists");
+            }
+            Path temp = target.resolveSibling(target.getFileName() + ".convert");
+            write_segment_file(temp, records);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (!target.equals(text_file)) Files.deleteIfExists(text_file);
+            System.out.println("WAL: converted " + text_file.getFileName() + " (" + records.size() + " records) to binary format");
+        } else {
+            Files.deleteIfExists(text_file);
         }
     }
 
     // ---- Write snapshot ----
-    public synchronized void write_snapshot(ConcurrentMap<String, WeatherRecord> memory_store) throws IOException {
-        // example: [{"id":"A1","temperature":28,"lamport":15,"source_id":"CS1"}]
+    /**
+     * Write a checkpoint of the given records, which must reflect every WAL record up to covered_seq.
+     * Streams straight to disk, fsyncs, then atomically replaces feed.json.
+     */
+    public void write_snapshot(Collection<WeatherRecord> records, long covered_seq) throws IOException {
+        // example: {"wal_seq":42,"records":[{"id":"A1","temperature":28,"lamport":15,"source_id":"CS1"}]}
         // create a temporary snapshot file
         Path temp = snapshot_path.resolveSibling("feed.json.temp");
 
-        // Iterate over each weather record (used try block as recommended by IDE)
-        try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
-            List<JsonObject> arr = new ArrayList<>();
-            for (Map.Entry<String, WeatherRecord> it : memory_store.entrySet()){
-                // add both lamport + payload to each array object
-                JsonObject o = it.getValue().data.deepCopy();
-                o.addProperty("lamport", it.getValue().lamport);
-                o.addProperty("source_id", it.getValue().source_id);
-                arr.add(o);
+        try (FileOutputStream file_out = new FileOutputStream(temp.toFile());
+             JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(file_out, StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("wal_seq").value(covered_seq);
+            writer.name("records").beginArray();
+            for (WeatherRecord record : records) {
+                // each record writes itself, lamport + source_id included
+                record.write_json(writer);
             }
-
-            // convert arr to JSON
-            writer.write(gson.toJson(arr));
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+            file_out.getFD().sync();
         }
         // If no crash happen after writing -> replace temp as the newest snapshot
         Files.move(temp, snapshot_path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);       // replace temp with current snapshot if no crash atomically
     }
 
     // ---- Replay WAL ----
-    public synchronized List<JsonObject> replay_WAL() throws IOException {
-        // Check if WAL exits
-        List<JsonObject> result = new ArrayList<>();        // returning an array of Json object
-        if (!Files.exists(wal_path)) return result;
-
-        // Read the file (updates.wal) in the wal_path dir
-        try (BufferedReader reader = Files.newBufferedReader(wal_path)) {
-            String line;
-            // Add line from wal_path file to entry as JSON object
-            // Then append all payload (Json obj) into result
-            while((line = reader.readLine()) != null) {
+    // What the WAL says about one station id, folded record by record in seq order:
+    // record    - the surviving record: highest lamport, on a tie the later one (null if the station was removed)
+    // tombstone - the last tombstone before it (null if none). A record logged after a tombstone replaces
+    //             whatever came before regardless of lamport, as it did on the live server
+    private static class Replayed {
+        final WalCodec.Record record;
+        final JsonObject payload;
+        final WalCodec.Record tombstone;
+
+        Replayed(WalCodec.Record record, JsonObject payload, WalCodec.Record tombstone) {
+            this.record = record;
+            this.payload = payload;
+            this.tombstone = tombstone;
+        }
+
+        // One record or tombstone off the log
+        Replayed(WalCodec.Record logged, JsonObject payload) {
+            this(logged.tombstone() ? null : logged, logged.tombstone() ? null : payload, logged.tombstone() ? logged : null);
+        }
+
+        // This, then what a later part of the log (a later record, or a later segment's fold) says
+        Replayed then(Replayed later) {
+            if (later.tombstone != null || record == null) {
+                return later.tombstone != null ? later : new Replayed(later.record, later.payload, tombstone);
+            }
+            return later.record.lamport > record.lamport || (later.record.lamport == record.lamport && later.record.seq >= record.seq)
+                    ? new Replayed(later.record, later.payload, tombstone) : this;
+        }
+    }
+
+    // What one segment contributes to recovery
+    private static class SegmentScan {
+        final Path file;
+        final Map<String, Replayed> latest = new HashMap<>();
+        long last_seq;
+        int records_read;
+
+        SegmentScan(Path file) {
+            this.file = file;
+        }
+    }
+
+    // Result of replay_WAL: one payload per station plus counts for the recovery report
+    // reset - ids with a tombstone in the replayed WAL: the snapshot's record for them is gone, and a payload
+    //         in latest replaces it whatever its lamport
+    public static class Replay {
+        public final List<JsonObject> latest;
+        public final Set<String> reset;
+        public final int records_read;
+        public final int segments;
+
+        Replay(List<JsonObject> latest, Set<String> reset, int records_read, int segments) {
+            this.latest = latest;
+            this.reset = reset;
+            this.records_read = records_read;
+            this.segments = segments;
+        }
+    }
+
+    /**
+     * Read back the newest WAL record per station id among those newer than the snapshot's covered_seq.
+     * Segments are decoded in parallel (each has its own source dictionary, so they are independent)
+     * and the per-segment results are merged by lamport, then seq, with tombstones in seq order (see Replayed).
+     * Text logs from older versions (updates.wal, updates-<seq>.wal, text segments) are converted first.
+     * A torn record at the end of a segment is cut off. Every segment is registered so checkpoints can delete it.
+     */
+    public Replay replay_WAL(long covered_seq) throws IOException {
+        // Convert text logs first, oldest first so their segment names follow the same order
+        List<Path> text_files = new ArrayList<>();
+        try (Stream<Path> files = Files.list(persis_dir)) {
+            for (Path file : files.sorted().toList()) {
+                String name = file.getFileName().toString();
+                if (name.matches("updates-\\d{20}\\.wal") || (WalSegment.is_segment(file) && WalSegment.is_text(file))) {
+                    text_files.add(file);
+                }
+            }
+        }
+        // an empty updates.wal has nothing to convert, it is left where it is
+        Path legacy_wal = persis_dir.resolve("updates.wal");
+        if (Files.exists(legacy_wal) && Files.size(legacy_wal) > 0) text_files.add(legacy_wal);
+        for (Path file : text_files) {
+            convert_text_wal(file);
+        }
+
+        List<Path> segment_files;
+        try (Stream<Path> files = Files.list(persis_dir)) {
+            segment_files = files.filter(WalSegment::is_segment).sorted().toList();
+        }
+
+        // Decode every segment on its own core
+        List<SegmentScan> scans;
+        try {
+            scans = segment_files.parallelStream().map(file -> {
                 try {
-                    // Prepare payload for result
-                    JsonObject entry = new JsonParser().parse(line).getAsJsonObject();
-                    JsonObject payload = entry.getAsJsonObject("payload");
+                    return scan_segment(file, covered_seq);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toList();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
 
-                    // Embed lamport + source_id into payload for recovery
-                    if (entry.has("lamport")) {
-                        payload.addProperty("lamport", entry.get("lamport").getAsLong());
-                    }
-                    if (entry.has("source_id")) {
-                        payload.addProperty("source_id", entry.get("source_id").getAsString());
-                    }
+        // Merge in segment order, so a tie on lamport and seq (old logs without seq) goes to the later file
+        Map<String, Replayed> latest = new HashMap<>();
+        long max_seq = covered_seq;
+        int records_read = 0;
+        for (SegmentScan scan : scans) {
+            for (Map.Entry<String, Replayed> it : scan.latest.entrySet()) {
+                latest.merge(it.getKey(), it.getValue(), Replayed::then);
+            }
+            max_seq = Math.max(max_seq, scan.last_seq);
+            records_read += scan.records_read;
 
-                    // Append to result
-                    result.add(entry.getAsJsonObject("payload"));
-                } catch (Exception ignored) {}
+            long first_seq = WalSegment.first_seq_of(scan.file);
+            segments_lock.lock();
+            try {
+                segments.put(first_seq, new WalSegment(scan.file, first_seq, scan.last_seq));
+            } finally {
+                segments_lock.unlock();
             }
         }
-        return result;
+
+        // New records continue numbering after anything already on disk
+        next_seq.accumulateAndGet(max_seq + 1, Math::max);
+        committed_seq = Math.max(committed_seq, max_seq);
+
+        List<JsonObject> result = new ArrayList<>(latest.size());
+        Set<String> reset = new HashSet<>();
+        for (Map.Entry<String, Replayed> it : latest.entrySet()) {
+            Replayed replayed = it.getValue();
+            if (replayed.tombstone != null) reset.add(it.getKey());
+            if (replayed.payload != null) result.add(replayed.payload);
+        }
+        return new Replay(result, reset, records_read, scans.size());
+    }
+
+    // Newest record (and tombstone) per id in one segment, skipping what the snapshot already covers
+    private SegmentScan scan_segment(Path file, long covered_seq) throws IOException {
+        SegmentScan scan = new SegmentScan(file);
+        for (WalCodec.Record record : WalSegment.read_records(file, true)) {
+            scan.records_read++;
+            scan.last_seq = Math.max(scan.last_seq, record.seq);
+
+            // old logs without seq are always replayed
+            if (record.seq != 0 && record.seq <= covered_seq) continue;
+
+            JsonObject payload = record.payload();
+            if (!payload.has("id")) continue;
+            scan.latest.merge(payload.get("id").getAsString(), new Replayed(record, payload), Replayed::then);
+        }
+        return scan;
     }
 
     // ---- Reload the last saved snapshot when startup ----
-    public synchronized String read_snapshot() throws IOException {
+    /**
+     * Stream feed.json one record at a time instead of loading it as a whole.
+     * Accepts the checkpoint object {"wal_seq","records"} and the plain array older versions wrote.
+     * Returns the WAL seq the snapshot covers (0 if none).
+     */
+    public long read_snapshot(Consumer<JsonObject> on_record) throws IOException {
         // Check if no snapshot found
-        if (!Files.exists(snapshot_path)) return null;
-        // this result will be used for the actual reading in the Agg Sv code
-        return new String(Files.readAllBytes(snapshot_path), StandardCharsets.UTF_8);
+        if (!Files.exists(snapshot_path) || Files.size(snapshot_path) == 0) return 0;
+
+        long covered_seq = 0;
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(snapshot_path, StandardCharsets.UTF_8))) {
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                read_snapshot_records(reader, on_record);
+            } else {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("wal_seq")) {
+                        covered_seq = reader.nextLong();
+                    } else if (name.equals("records")) {
+                        read_snapshot_records(reader, on_record);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+        }
+        return covered_seq;
     }
 
-    // ---- Truncate WAL only after replaying WAL in the Aggregation Server ----
-    public synchronized void truncate_WAL() throws IOException {
-        Files.newBufferedWriter(wal_path, StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING).close();
+    private void read_snapshot_records(JsonReader reader, Consumer<JsonObject> on_record) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            on_record.accept(JsonParser.parseReader(reader).getAsJsonObject());
+        }
+        reader.endArray();
     }
 }
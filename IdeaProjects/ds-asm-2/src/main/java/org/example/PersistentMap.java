@@ -0,0 +1,295 @@
+package org.example;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+
+/**
+ * Function: immutable map from String keys, where plus/minus return a new map sharing almost all of the old one
+ *
+ * A hash array mapped trie: 32-way nodes indexed by 5 bits of the key's hash at a time, each node
+ * holding only the slots in use (bitmap + packed array). A change copies the nodes on the path to
+ * its key, O(log32 n), and leaves every other node shared, so a writer can publish a new slot per
+ * batch without copying the shard (see WriterShard.slot). Keys whose hashes are equal end up
+ * together in one collision node.
+ * Values are read by GETs from any thread: nodes are never changed after they are built.
+ */
+public final class PersistentMap<V> {
+    private static final PersistentMap<Object> EMPTY = new PersistentMap<>(new Bitmap(0, new Object[0]), 0);
+
+    private final Bitmap root;
+    private final int size;
+
+    // ---- Trie nodes: a slot holds an Entry, a Bitmap one level down, or a Collision ----
+    private static final class Entry {
+        final String key;
+        final int hash;
+        final Object value;
+
+        Entry(String key, int hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private static final class Bitmap {
+        final int bitmap;
+        final Object[] slots;
+
+        Bitmap(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+
+    private static final class Collision {
+        final int hash;
+        final Entry[] entries;
+
+        Collision(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+    }
+
+    private PersistentMap(Bitmap root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentMap<V> empty() {
+        return (PersistentMap<V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // ---- Lookup: null if the key is not there ----
+    @SuppressWarnings("unchecked")
+    public V get(String key) {
+        int hash = hash(key);
+        Object node = root;
+        for (int shift = 0; ; shift += 5) {
+            if (node instanceof Bitmap b) {
+                int bit = bit(hash, shift);
+                if ((b.bitmap & bit) == 0) return null;
+                node = b.slots[b.index(bit)];
+            } else if (node instanceof Entry e) {
+                return e.hash == hash && e.key.equals(key) ? (V) e.value : null;
+            } else {
+                for (Entry e : ((Collision) node).entries) {
+                    if (e.key.equals(key)) return (V) e.value;
+                }
+                return null;
+            }
+        }
+    }
+
+    // ---- Same map with key set to value ----
+    public PersistentMap<V> plus(String key, V value) {
+        Entry entry = new Entry(key, hash(key), value);
+        boolean[] added = new boolean[1];
+        Bitmap next = (Bitmap) plus(root, entry, 0, added);
+        if (next == root) return this;
+        return new PersistentMap<>(next, added[0] ? size + 1 : size);
+    }
+
+    // ---- Same map without key (this map if it was not there) ----
+    public PersistentMap<V> minus(String key) {
+        Object next = minus(root, hash(key), key, 0);
+        if (next == root) return this;
+        return new PersistentMap<>(next == null ? EMPTY.root : (Bitmap) next, size - 1);
+    }
+
+    // ---- Values in no particular order, a view: size() is O(1), nothing is copied ----
+    public Collection<V> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new Values<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<String, V> action) {
+        for_each(root, (BiConsumer<String, Object>) action);
+    }
+
+    private static void for_each(Object node, BiConsumer<String, Object> action) {
+        if (node instanceof Entry e) {
+            action.accept(e.key, e.value);
+        } else if (node instanceof Bitmap b) {
+            for (Object slot : b.slots) for_each(slot, action);
+        } else {
+            for (Entry e : ((Collision) node).entries) action.accept(e.key, e.value);
+        }
+    }
+
+    // String.hashCode spread, so keys that differ only at the end do not all start in one slot
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    // Returns node itself if nothing changed
+    private static Object plus(Object node, Entry entry, int shift, boolean[] added) {
+        if (node instanceof Bitmap b) {
+            int bit = bit(entry.hash, shift);
+            int index = b.index(bit);
+            if ((b.bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] slots = new Object[b.slots.length + 1];
+                System.arraycopy(b.slots, 0, slots, 0, index);
+                slots[index] = entry;
+                System.arraycopy(b.slots, index, slots, index + 1, b.slots.length - index);
+                return new Bitmap(b.bitmap | bit, slots);
+            }
+            Object child = b.slots[index];
+            Object next = plus(child, entry, shift + 5, added);
+            if (next == child) return b;
+            Object[] slots = b.slots.clone();
+            slots[index] = next;
+            return new Bitmap(b.bitmap, slots);
+        }
+        if (node instanceof Entry e) {
+            if (e.key.equals(entry.key)) return e.value == entry.value ? e : entry;
+            added[0] = true;
+            return pair(e, e.hash, entry, entry.hash, shift);
+        }
+        Collision c = (Collision) node;
+        if (c.hash != entry.hash) {
+            added[0] = true;
+            return pair(c, c.hash, entry, entry.hash, shift);
+        }
+        for (int i = 0; i < c.entries.length; i++) {
+            if (!c.entries[i].key.equals(entry.key)) continue;
+            if (c.entries[i].value == entry.value) return c;
+            Entry[] entries = c.entries.clone();
+            entries[i] = entry;
+            return new Collision(c.hash, entries);
+        }
+        added[0] = true;
+        Entry[] entries = new Entry[c.entries.length + 1];
+        System.arraycopy(c.entries, 0, entries, 0, c.entries.length);
+        entries[c.entries.length] = entry;
+        return new Collision(c.hash, entries);
+    }
+
+    // Two things that met in one slot, pushed down until their hashes part (a Collision if they never do)
+    private static Object pair(Object a, int hash_a, Entry b, int hash_b, int shift) {
+        if (hash_a == hash_b) return new Collision(hash_a, new Entry[]{(Entry) a, b});
+        int bit_a = bit(hash_a, shift);
+        int bit_b = bit(hash_b, shift);
+        if (bit_a == bit_b) return new Bitmap(bit_a, new Object[]{pair(a, hash_a, b, hash_b, shift + 5)});
+        // slots are in bit order, compared unsigned (bit 31 is the last slot, not the first)
+        return new Bitmap(bit_a | bit_b, Integer.compareUnsigned(bit_a, bit_b) < 0 ? new Object[]{a, b} : new Object[]{b, a});
+    }
+
+    // Returns node itself if key is not there, null if the node is left empty, and a lone Entry
+    // in place of a node below the root, so the parent holds it directly
+    private static Object minus(Object node, int hash, String key, int shift) {
+        if (node instanceof Entry e) {
+            return e.hash == hash && e.key.equals(key) ? null : e;
+        }
+        if (node instanceof Collision c) {
+            int at = -1;
+            for (int i = 0; i < c.entries.length; i++) {
+                if (c.entries[i].key.equals(key)) at = i;
+            }
+            if (at < 0) return c;
+            if (c.entries.length == 2) return c.entries[1 - at];
+            Entry[] entries = new Entry[c.entries.length - 1];
+            System.arraycopy(c.entries, 0, entries, 0, at);
+            System.arraycopy(c.entries, at + 1, entries, at, entries.length - at);
+            return new Collision(c.hash, entries);
+        }
+        Bitmap b = (Bitmap) node;
+        int bit = bit(hash, shift);
+        if ((b.bitmap & bit) == 0) return b;
+        int index = b.index(bit);
+        Object child = b.slots[index];
+        Object next = minus(child, hash, key, shift + 5);
+        if (next == child) return b;
+        if (next != null) {
+            if (shift > 0 && b.slots.length == 1 && next instanceof Entry) return next;
+            Object[] slots = b.slots.clone();
+            slots[index] = next;
+            return new Bitmap(b.bitmap, slots);
+        }
+        if (b.slots.length == 1) return shift > 0 ? null : new Bitmap(0, new Object[0]);
+        if (shift > 0 && b.slots.length == 2 && b.slots[1 - index] instanceof Entry lone) return lone;
+        Object[] slots = new Object[b.slots.length - 1];
+        System.arraycopy(b.slots, 0, slots, 0, index);
+        System.arraycopy(b.slots, index + 1, slots, index, slots.length - index);
+        return new Bitmap(b.bitmap & ~bit, slots);
+    }
+
+    // ---- Depth first over the trie, a stack of (slots, position) per level ----
+    private static final class Values<V> implements Iterator<V> {
+        private final Object[][] stack = new Object[8][];
+        private final int[] position = new int[8];
+        private int depth = 0;
+        private Entry next;
+
+        Values(Bitmap root) {
+            stack[0] = root.slots;
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (depth >= 0) {
+                Object[] slots = stack[depth];
+                if (position[depth] == slots.length) {
+                    depth--;
+                    continue;
+                }
+                Object slot = slots[position[depth]++];
+                if (slot instanceof Entry e) {
+                    next = e;
+                    return;
+                }
+                depth++;
+                stack[depth] = slot instanceof Bitmap b ? b.slots : ((Collision) slot).entries;
+                position[depth] = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next == null) throw new NoSuchElementException();
+            V value = (V) next.value;
+            advance();
+            return value;
+        }
+    }
+}
@@ -1,49 +1,65 @@
 package org.example;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;      // writer notify Agg Sv when request being processed
 
 /**
  * Function: order requests by Lamport Timestamp
  *           If the two requests have the same lamport
  *            -> order by arrival sequence
+ *
+ * One request is one queued unit: a plain PUT carries one record, a batch PUT
+ * carries every record of the batch that belongs to the same shard. The writer
+ * applies a unit in one go and completes result_future with a status per record.
+ * A unit still queued at its deadline is not applied: the writer answers every record
+ * with 503 and the client retries later. Once dequeued in time it is always applied.
  */
 public class PutRequest implements Comparable<PutRequest> {
-    enum Type { PUT, GET }
-
-    public final Type type;
     public final long lamport;
     public final long arrival_seq;
 
-    // For PUT request only
-    public final JsonObject payload;
+    public final List<WeatherRecord> records;    // read off the body, already carrying lamport and source_id
     public final String source_id;  // identifying source content server
-    public final CompletableFuture<Integer> result_future;   // writer send back result asynchronously
-
-    // For GET request only
-    public final CompletableFuture<JsonArray> get_future;
+    public final CompletableFuture<int[]> result_future;     // writer send back 201/200/500 per record asynchronously
+    public final long deadline_ms;      // wall clock time after which the unit is dropped, Long.MAX_VALUE for never
 
     // ---- Constructor for first PUT request ----
-    public PutRequest(long lamport, long arrival_seq, JsonObject payload, String source_id) {
-        this.type = Type.PUT;
+    public PutRequest(long lamport, long arrival_seq, List<WeatherRecord> records, String source_id) {
+        this(lamport, arrival_seq, records, source_id, Long.MAX_VALUE);
+    }
+
+    public PutRequest(long lamport, long arrival_seq, List<WeatherRecord> records, String source_id, long deadline_ms) {
         this.lamport = lamport;
         this.arrival_seq = arrival_seq;
-        this.payload = payload;
+        this.records = records;
         this.source_id = source_id;
         this.result_future = new CompletableFuture<>();
-        this.get_future = null;
+        this.deadline_ms = deadline_ms;
     }
 
-    // ---- Constructor for first GET request ----
-    public PutRequest(long lamport, long arrival_seq) {
-        this.type = Type.GET;
-        this.lamport = lamport;
-        this.arrival_seq = arrival_seq;
-        this.payload = null;
-        this.source_id = null;
-        this.result_future =null;
-        this.get_future = new CompletableFuture<>();
+    public boolean expired(long now_ms) {
+        return now_ms > deadline_ms;
+    }
+
+    // ---- Last record per station of a writer batch, the one the batch leaves standing ----
+    // Picked by (lamport, arrival), not by position: a unit that arrived while the writer drained
+    // can sit after one it sorts before
+    public static Map<String, WeatherRecord> latest_per_station(List<PutRequest> batch) {
+        Map<String, WeatherRecord> latest = new HashMap<>();
+        Map<String, PutRequest> owner = new HashMap<>();
+        for (PutRequest req : batch) {
+            for (WeatherRecord record : req.records) {
+                PutRequest current = owner.get(record.id);
+                // same unit: a later record in the body overwrites an earlier one
+                if (current == null || current == req || req.compareTo(current) > 0) {
+                    owner.put(record.id, req);
+                    latest.put(record.id, record);
+                }
+            }
+        }
+        return latest;
     }
 
     // ---- This is the other requests we're comparing to ----
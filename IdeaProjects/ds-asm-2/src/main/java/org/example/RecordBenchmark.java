@@ -0,0 +1,186 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Function: how a PUT body becomes a stored record, and what that costs, in-process
+ *
+ * Three ways, for N stations (BOM fields as the content server sends them, every value a string):
+ * - JsonObject   String of the body, JsonParser tree, two deepCopy() (how records used to be kept)
+ * - tree+typed   String of the body, JsonParser tree, then WeatherRecord.from_json
+ * - streamed     JsonReader over the body bytes straight into WeatherRecord.read_json (what PUT does now)
+ * Measured:
+ * - heap     retained bytes per stored record, measured around a forced GC
+ * - PUT      CPU time per body, and bytes allocated per body (by this thread, JVM allocation counter)
+ * - GET      encode the whole feed to JSON bytes (gson.toJson of a JsonArray, or written from the records)
+ * Each timing is the best of several rounds after a warm-up, so JIT and GC noise stay out.
+ *
+ * Usage: RecordBenchmark [stations]     eg. RecordBenchmark 100000
+ */
+public class RecordBenchmark {
+    private static final int ROUNDS = 7;
+    private static final int WARMUP_ROUNDS = 3;         // whole passes before the printed one, so every path is JIT compiled
+    private static final Gson gson = new Gson();
+
+    public static void main(String[] args) throws Exception {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        byte[][] bodies = new byte[stations][];
+        for (int i = 0; i < stations; i++) bodies[i] = body(i).getBytes(StandardCharsets.UTF_8);
+
+        System.out.printf("%-12s %10s %12s %13s %12s%n", "PUT path", "heap B/rec", "PUT us/rec", "alloc B/PUT", "GET ms/feed");
+        for (int round = 0; round < WARMUP_ROUNDS + 1; round++) {
+            boolean print = round == WARMUP_ROUNDS;
+            report(print, "JsonObject", bodies, RecordBenchmark::put_json);
+            report(print, "tree+typed", bodies, RecordBenchmark::put_tree);
+            report(print, "streamed", bodies, RecordBenchmark::put_streamed);
+        }
+    }
+
+    private static void report(boolean print, String name, byte[][] bodies, Put put) {
+        double heap = heap(bodies, put);
+        double put_us = best(() -> put.run(bodies)) * 1000 / bodies.length;
+        double alloc = allocated(() -> put.run(bodies)) / (double) bodies.length;
+        double get_ms = best_get(put.run(bodies));
+        if (print) System.out.printf("%-12s %10.0f %12.2f %13.0f %12.1f%n", name, heap, put_us, alloc, get_ms);
+    }
+
+    // ---- One BOM observation, like ContentServer.text_to_records builds it ----
+    private static String body(int i) {
+        return "{\"id\":\"IDS" + (60000 + i) + "\",\"name\":\"Station " + i + "\",\"state\":\"SA\",\"time_zone\":\"CST\","
+                + "\"lat\":\"-34." + (i % 10) + "\",\"lon\":\"138." + (i % 10) + "\",\"local_date_time\":\"15/04:00pm\","
+                + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":\"1" + (i % 10) + ".3\",\"apparent_t\":\"9.5\","
+                + "\"cloud\":\"Partly cloudy\",\"dewpt\":\"5.7\",\"press\":\"1023.9\",\"rel_hum\":\"" + (i % 100) + "\","
+                + "\"wind_dir\":\"S\",\"wind_spd_kmh\":\"15\",\"wind_spd_kt\":\"8\",\"lamport\":\"1\",\"source_id\":\"CS1\"}";
+    }
+
+    // ---- PUT: body to stored record ----
+    private interface Put {
+        Object[] run(byte[][] bodies);
+    }
+
+    private static Object[] put_json(byte[][] bodies) {
+        Object[] store = new Object[bodies.length];
+        for (int i = 0; i < bodies.length; i++) {
+            // what apply_put did before: one copy for the WAL, one for the store
+            JsonObject payload = JsonParser.parseString(new String(bodies[i], StandardCharsets.UTF_8)).getAsJsonObject();
+            JsonObject wal_payload = payload.deepCopy();
+            wal_payload.addProperty("lamport", i);
+            payload.addProperty("lamport", i);
+            store[i] = payload.deepCopy();
+        }
+        return store;
+    }
+
+    private static Object[] put_tree(byte[][] bodies) {
+        Object[] store = new Object[bodies.length];
+        for (int i = 0; i < bodies.length; i++) {
+            JsonObject payload = JsonParser.parseString(new String(bodies[i], StandardCharsets.UTF_8)).getAsJsonObject();
+            store[i] = WeatherRecord.from_json(payload, i, "CS1");
+        }
+        return store;
+    }
+
+    private static Object[] put_streamed(byte[][] bodies) {
+        Object[] store = new Object[bodies.length];
+        try {
+            for (int i = 0; i < bodies.length; i++) {
+                try (JsonReader in = new JsonReader(new Utf8Reader(ByteBuffer.wrap(bodies[i])))) {
+                    in.setStrictness(Strictness.LENIENT);
+                    store[i] = WeatherRecord.read_json(in, i, "CS1");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return store;
+    }
+
+    // ---- GET: whole feed to bytes ----
+    private static double best_get(Object[] store) {
+        if (store[0] instanceof JsonObject) {
+            return best(() -> {
+                JsonArray arr = new JsonArray();
+                for (Object o : store) arr.add((JsonObject) o);
+                return gson.toJson(arr).getBytes(StandardCharsets.UTF_8);
+            });
+        }
+        return best(() -> {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(store.length * 384);
+            try (JsonWriter out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), 1 << 16))) {
+                out.beginArray();
+                for (Object o : store) ((WeatherRecord) o).write_json(out);
+                out.endArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        });
+    }
+
+    // ---- Retained heap per record ----
+    private static double heap(byte[][] bodies, Put put) {
+        long before = used_heap();
+        Object[] store = put.run(bodies);
+        long after = used_heap();
+        keep(store);
+        return (after - before) / (double) bodies.length;
+    }
+
+    // ---- Bytes this thread allocated while running ----
+    private static long allocated(Run run) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        sink = run.run();
+        long after = threads.getCurrentThreadAllocatedBytes();
+        sink = null;
+        return after - before;
+    }
+
+    private static volatile Object sink;
+
+    private static void keep(Object o) {
+        sink = o;
+        sink = null;
+    }
+
+    private static long used_heap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {}
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // ---- Best wall time in ms over ROUNDS runs ----
+    private interface Run {
+        Object run();
+    }
+
+    private static double best(Run run) {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long t = System.nanoTime();
+            sink = run.run();
+            best = Math.min(best, (System.nanoTime() - t) / 1e6);
+        }
+        sink = null;
+        return best;
+    }
+}
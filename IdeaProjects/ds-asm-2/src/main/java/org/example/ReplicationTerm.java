@@ -0,0 +1,76 @@
+package org.example;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Function: the replication term of this server, kept in <dir>/term as {"term","primary"}
+ *
+ * Every promotion starts a new term, and the promoted backup is the primary of it. A server only
+ * learns of a term from another server: a backup from its primary's heartbeats, a primary from the
+ * fence a promoted backup keeps sending it (see WalShipper / WalFollower). A primary that hears of a
+ * term at least its own that it is not the primary of has been replaced while it was away, so it
+ * steps down instead of taking PUTs next to the new primary (split brain).
+ * Without a file the term is 0, and this server its primary unless it starts as a backup.
+ */
+public class ReplicationTerm {
+    private final Path file;
+    private long term;
+    private boolean primary;
+
+    public ReplicationTerm(Path dir, boolean primary_by_default) throws IOException {
+        this.file = dir.resolve("term");
+        if (Files.exists(file)) {
+            JsonObject o = JsonParser.parseString(Files.readString(file, StandardCharsets.UTF_8)).getAsJsonObject();
+            this.term = o.get("term").getAsLong();
+            this.primary = o.get("primary").getAsBoolean();
+        } else {
+            this.term = 0;
+            this.primary = primary_by_default;
+        }
+    }
+
+    public synchronized long get() {
+        return term;
+    }
+
+    // ---- A term heard from another server: adopt it if it is newer ----
+    // Returns true if that server replaced us: its term is at least ours and ours is not one we are the primary of
+    public synchronized boolean observe(long other) {
+        if (other < term || (other == term && primary)) return false;
+        if (other > term) {
+            term = other;
+            primary = false;
+            save();
+        }
+        return true;
+    }
+
+    // ---- Promotion: start the next term, with this server as its primary ----
+    public synchronized long next() {
+        term++;
+        primary = true;
+        save();
+        return term;
+    }
+
+    // Written next to it and moved over it, like feed.json; a term that cannot be saved still holds until restart
+    private void save() {
+        JsonObject o = new JsonObject();
+        o.addProperty("term", term);
+        o.addProperty("primary", primary);
+        try {
+            Path temp = file.resolveSibling("term.tmp");
+            Files.writeString(temp, o.toString(), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Replication: cannot save term " + term + " " + e.getMessage());
+        }
+    }
+}
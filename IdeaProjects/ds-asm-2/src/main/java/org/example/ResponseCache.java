@@ -0,0 +1,81 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Function: keep the encoded GET body for the current FeedView version
+ *
+ * Dashboards poll far more often than the feed changes, so the JSON for a view is
+ * built once and the same bytes are written to every GET until the writer or the
+ * expiry checker publishes a new version. The gzip variant is only built the first
+ * time a client asks for it.
+ */
+public class ResponseCache {
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    // One entry, replaced when a GET sees a newer view version
+    private static class Entry {
+        final long version;
+        final byte[] body;
+        volatile byte[] gzip_body;
+
+        Entry(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    private volatile Entry entry;
+
+    public ResponseCache(Metrics metrics) {
+        this.hits = metrics.counter("get_cache_hits");
+        this.misses = metrics.counter("get_cache_misses");
+    }
+
+    // ---- Plain JSON body for this view ----
+    public byte[] body(FeedView view) {
+        return entry_for(view).body;
+    }
+
+    // ---- Gzip encoded body for this view ----
+    public byte[] gzip_body(FeedView view) {
+        Entry e = entry_for(view);
+        byte[] gzip = e.gzip_body;
+        if (gzip == null) {
+            gzip = gzip(e.body);
+            e.gzip_body = gzip;
+        }
+        return gzip;
+    }
+
+    private Entry entry_for(FeedView view) {
+        Entry e = entry;
+        if (e != null && e.version == view.version) {
+            hits.incrementAndGet();
+            return e;
+        }
+        // Two GETs missing at once may both encode, either result is correct for this version
+        misses.incrementAndGet();
+        Entry fresh = new Entry(view.version, view.json_bytes());
+        // never replace a newer entry with an older one
+        if (e == null || e.version < view.version) {
+            entry = fresh;
+        }
+        return fresh;
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip_out = new GZIPOutputStream(out)) {
+            gzip_out.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);       // in-memory stream, cannot happen
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,103 @@
+package org.example;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Function: command line options for AggregationServer
+ *
+ * Usage: AggregationServer [port] [persistent dir] [--io=nio|blocking|virtual]
+ *                          [--idle-timeout-ms=N] [--max-requests=N] [--shards=N] [--stream-get-records=N]
+ *                          [--history=N] [--replication-port=N] [--backup-of=host:port] [--failover-ms=N]
+ *                          [--max-queued-puts=N] [--put-deadline-ms=N] [--expiry-ms=N]
+ * - port and directory stay positional, as before
+ * - --io picks the front end: one selector thread (nio, default), a pooled platform thread
+ *   per connection (blocking) or a virtual thread per connection (virtual)
+ * - connections are kept alive between requests until idle for --idle-timeout-ms
+ *   or until --max-requests have been served on them
+ * - --shards splits the store over N writer threads by station id (default: cores, at most 4)
+ * - a full GET of a feed with more than --stream-get-records stations is encoded chunk by chunk
+ *   as it is sent (Transfer-Encoding: chunked) instead of being kept encoded; 0 streams every GET
+ * - --history keeps the last N observations of every station for /weather/{id}/history; 0 keeps none
+ * - --replication-port streams this server's WAL to backups connecting there (WalShipper)
+ * - --backup-of makes this server a read-only backup of the primary whose replication port that is;
+ *   it takes over PUTs once the primary has been silent for --failover-ms (WalFollower)
+ * - a PUT is refused with 503 + Retry-After when its shard already has --max-queued-puts units
+ *   queued (0: no limit), or when it is still not applied after --put-deadline-ms
+ * - a content server that sent nothing for --expiry-ms loses its records
+ */
+public class ServerConfig {
+    public enum IoMode { NIO, BLOCKING, VIRTUAL }
+
+    public int port = 4567;                    // default port -> can be changed
+    public String persis_dir = "./data";       // store in data for now
+    public IoMode io_mode = IoMode.NIO;
+    public int connect_backlog = 1024;         // pending connects the OS keeps for accept()
+    public int idle_timeout_ms = 15_000;       // close a kept-alive connection after this long without a request
+    public int max_requests = 1000;            // requests served on one connection before it is closed
+    public int shards = Math.min(4, Runtime.getRuntime().availableProcessors());
+    public int stream_get_records = 10_000;    // bigger feeds are streamed to GETs, not cached whole
+    public int history_size = 32;              // observations kept per station, about 40 bytes each
+    public int replication_port = 0;           // 0: no backups
+    public InetSocketAddress backup_of = null; // null: this server is a primary
+    public int failover_ms = 3_000;            // primary silence before a backup promotes itself
+    public int max_queued_puts = 10_000;       // PUT units waiting per shard before new ones are shed
+    public int expiry_ms = 30_000;             // content server silence before its records are removed
+    public int put_deadline_ms = 10_000;       // longest a PUT may wait in its queue, the writer answers it 503 instead of applying it after that
+
+    public static ServerConfig with(int port, String persis_dir) {
+        ServerConfig config = new ServerConfig();
+        config.port = port;
+        config.persis_dir = persis_dir;
+        return config;
+    }
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        int positional = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--io=")) {
+                config.io_mode = IoMode.valueOf(arg.substring("--io=".length()).toUpperCase());
+            } else if (arg.startsWith("--idle-timeout-ms=")) {
+                config.idle_timeout_ms = Integer.parseInt(arg.substring("--idle-timeout-ms=".length()));
+            } else if (arg.startsWith("--max-requests=")) {
+                config.max_requests = Integer.parseInt(arg.substring("--max-requests=".length()));
+            } else if (arg.startsWith("--shards=")) {
+                config.shards = Integer.parseInt(arg.substring("--shards=".length()));
+                if (config.shards < 1) throw new IllegalArgumentException("--shards must be at least 1");
+            } else if (arg.startsWith("--stream-get-records=")) {
+                config.stream_get_records = Integer.parseInt(arg.substring("--stream-get-records=".length()));
+            } else if (arg.startsWith("--history=")) {
+                config.history_size = Integer.parseInt(arg.substring("--history=".length()));
+                if (config.history_size < 0) throw new IllegalArgumentException("--history must not be negative");
+            } else if (arg.startsWith("--replication-port=")) {
+                config.replication_port = Integer.parseInt(arg.substring("--replication-port=".length()));
+            } else if (arg.startsWith("--backup-of=")) {
+                String primary = arg.substring("--backup-of=".length());
+                int colon = primary.lastIndexOf(':');
+                if (colon < 0) throw new IllegalArgumentException("--backup-of must be host:port");
+                config.backup_of = new InetSocketAddress(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+            } else if (arg.startsWith("--failover-ms=")) {
+                config.failover_ms = Integer.parseInt(arg.substring("--failover-ms=".length()));
+                if (config.failover_ms <= WalShipper.HEARTBEAT_MS) throw new IllegalArgumentException("--failover-ms must be above " + WalShipper.HEARTBEAT_MS);
+            } else if (arg.startsWith("--max-queued-puts=")) {
+                config.max_queued_puts = Integer.parseInt(arg.substring("--max-queued-puts=".length()));
+                if (config.max_queued_puts < 0) throw new IllegalArgumentException("--max-queued-puts must not be negative");
+            } else if (arg.startsWith("--put-deadline-ms=")) {
+                config.put_deadline_ms = Integer.parseInt(arg.substring("--put-deadline-ms=".length()));
+                if (config.put_deadline_ms < 1) throw new IllegalArgumentException("--put-deadline-ms must be at least 1");
+            } else if (arg.startsWith("--expiry-ms=")) {
+                config.expiry_ms = Integer.parseInt(arg.substring("--expiry-ms=".length()));
+                if (config.expiry_ms < 1) throw new IllegalArgumentException("--expiry-ms must be at least 1");
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            } else if (positional == 0) {
+                config.port = Integer.parseInt(arg);
+                positional++;
+            } else if (positional == 1) {
+                config.persis_dir = arg;
+                positional++;
+            }
+        }
+        return config;
+    }
+}
@@ -0,0 +1,82 @@
+package org.example;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Function: the last N observations of one station, for GET /weather/{id}/history
+ *
+ * A ring of primitive columns, allocated once when the station is first written: lamport,
+ * local_date_time_full (kept as the number yyyyMMddHHmmss) and the numeric readings as floats.
+ * An append overwrites the oldest entry, so memory per station stays fixed and a PUT allocates
+ * nothing here. A reading that was not sent is NaN, a missing or unreadable time is 0.
+ * The shard's writer appends and GETs read; both hold the monitor for at most N entries.
+ */
+public final class StationHistory {
+    public static final String[] FIELDS = {"air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh"};
+
+    private final long[] lamport;
+    private final long[] time;
+    private final float[] values;       // FIELDS.length per entry
+    private int next = 0;               // slot the next append goes to
+    private int size = 0;
+
+    public StationHistory(int capacity) {
+        this.lamport = new long[capacity];
+        this.time = new long[capacity];
+        this.values = new float[capacity * FIELDS.length];
+    }
+
+    // ---- Writer: one observation, oldest one dropped once full ----
+    public synchronized void append(WeatherRecord record) {
+        int i = next;
+        lamport[i] = record.lamport;
+        time[i] = time_of(record.local_date_time_full);
+        int at = i * FIELDS.length;
+        values[at] = reading(record, "air_temp", record.air_temp);
+        values[at + 1] = reading(record, "apparent_t", record.apparent_t);
+        values[at + 2] = reading(record, "dewpt", record.dewpt);
+        values[at + 3] = reading(record, "press", record.press);
+        values[at + 4] = reading(record, "rel_hum", record.rel_hum);
+        values[at + 5] = reading(record, "wind_spd_kmh", record.wind_spd_kmh);
+        next = (i + 1) % lamport.length;
+        if (size < lamport.length) size++;
+    }
+
+    private static float reading(WeatherRecord record, String key, double value) {
+        return record.has(key) ? (float) value : Float.NaN;
+    }
+
+    // "20230715160000" -> 20230715160000, 0 if absent or not all digits
+    private static long time_of(String text) {
+        if (text == null || text.isEmpty() || text.length() > 18) return 0;
+        long t = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') return 0;
+            t = t * 10 + (c - '0');
+        }
+        return t;
+    }
+
+    // ---- Reader: entries with from <= time <= to, oldest first ----
+    public synchronized void write_json(JsonWriter out, long from, long to) throws IOException {
+        out.beginArray();
+        int cap = lamport.length;
+        for (int n = 0, i = (next - size + cap) % cap; n < size; n++, i = (i + 1) % cap) {
+            if (time[i] < from || time[i] > to) continue;
+            out.beginObject();
+            out.name("lamport").value(lamport[i]);
+            if (time[i] != 0) out.name("local_date_time_full").value(Long.toString(time[i]));
+            for (int f = 0; f < FIELDS.length; f++) {
+                float v = values[i * FIELDS.length + f];
+                if (Float.isNaN(v)) continue;
+                // float's own shortest form ("13.3", not the widened double), whole numbers without ".0"
+                out.name(FIELDS[f]).jsonValue(v == (long) v ? Long.toString((long) v) : Float.toString(v));
+            }
+            out.endObject();
+        }
+        out.endArray();
+    }
+}
@@ -0,0 +1,57 @@
+package org.example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Function: one Server-Sent Events subscriber of the feed
+ *
+ * The SubscriptionHub offers encoded events; the front end serving the connection takes
+ * them off and writes them. The buffer is bounded: a subscriber that falls CAPACITY events
+ * behind is closed (slow consumer) and can reconnect with Last-Event-ID to catch up.
+ */
+public class Subscriber {
+    public static final int CAPACITY = 256;
+
+    private final ArrayBlockingQueue<byte[]> events = new ArrayBlockingQueue<>(CAPACITY);
+    private volatile boolean closed = false;
+    private volatile Runnable on_event = () -> {};     // front end hook, eg. wake the selector
+
+    long since;                                         // stamp of the last view sent (hub thread only)
+
+    public Subscriber(long since) {
+        this.since = since;
+    }
+
+    // ---- Hub side: false if the buffer is full, the hub then closes us ----
+    boolean offer(byte[] event) {
+        if (closed || !events.offer(event)) return false;
+        on_event.run();
+        return true;
+    }
+
+    // ---- Front end side ----
+    public void on_event(Runnable hook) {
+        this.on_event = hook;
+    }
+
+    // Next event, or null if none is waiting
+    public byte[] poll() {
+        return events.poll();
+    }
+
+    // Next event, waiting up to timeout_ms; null on timeout or once closed
+    public byte[] take(long timeout_ms) throws InterruptedException {
+        return closed ? null : events.poll(timeout_ms, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean closed() {
+        return closed;
+    }
+
+    // Either side: the client went away, or it was too slow
+    public void close() {
+        closed = true;
+        on_event.run();
+    }
+}
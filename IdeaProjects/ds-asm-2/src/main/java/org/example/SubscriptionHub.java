@@ -0,0 +1,115 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Function: pushes every published FeedView to the SSE subscribers
+ *
+ * Writers and the expiry checker only call published(), which wakes the fan-out thread and
+ * never blocks. The fan-out thread reads the current view and sends each subscriber the
+ * delta since the last view it got (built from the ChangeLogs, once per distinct starting
+ * point, so subscribers in step share one encoded event). Several publishes between two
+ * rounds arrive as one event. A subscriber whose buffer is full is disconnected.
+ *
+ * Event format (one per view):
+ *   id: <epoch>:<watermark>
+ *   event: delta | full
+ *   data: <same JSON as GET /weather.json?since=>
+ */
+public class SubscriptionHub {
+    private static final long HEARTBEAT_MS = 10_000;    // comment line to idle subscribers, finds dead ones
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Supplier<FeedView> current_view;
+    private final String epoch;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong slow_disconnects;
+    private final AtomicLong events_sent;
+    private volatile Thread fan_out;
+
+    public SubscriptionHub(Supplier<FeedView> current_view, String epoch, Metrics metrics) {
+        this.current_view = current_view;
+        this.epoch = epoch;
+        this.slow_disconnects = metrics.counter("subscriber_slow_disconnects");
+        this.events_sent = metrics.counter("subscriber_events_sent");
+        metrics.gauge("subscribers", subscribers::size);
+    }
+
+    public void start() {
+        Thread t = new Thread(this::run, "Subscription Fan-out");
+        t.setDaemon(true);
+        fan_out = t;
+        t.start();
+    }
+
+    // ---- New subscriber, gets its first event on the next round ----
+    public void add(Subscriber subscriber) {
+        subscribers.add(subscriber);
+        published();
+    }
+
+    // ---- Called after every publish, never blocks ----
+    public void published() {
+        Thread t = fan_out;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    private void run() {
+        long last_heartbeat = System.currentTimeMillis();
+        Map<Long, byte[]> events = new HashMap<>();
+        while (true) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS));
+            FeedView view = current_view.get();
+            long now = System.currentTimeMillis();
+            boolean heartbeat = now - last_heartbeat >= HEARTBEAT_MS;
+            if (heartbeat) last_heartbeat = now;
+
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.closed()) {
+                    subscribers.remove(subscriber);
+                    continue;
+                }
+                byte[] event = null;
+                if (subscriber.since != view.stamp) {
+                    event = events.computeIfAbsent(subscriber.since, since -> encode(view, since));
+                } else if (heartbeat) {
+                    event = HEARTBEAT;
+                }
+                if (event == null) continue;
+
+                if (!subscriber.offer(event)) {
+                    // slow consumer: drop it rather than buffer without bound
+                    subscriber.close();
+                    subscribers.remove(subscriber);
+                    slow_disconnects.incrementAndGet();
+                    continue;
+                }
+                if (event != HEARTBEAT) {
+                    subscriber.since = view.stamp;
+                    events_sent.incrementAndGet();
+                }
+            }
+            events.clear();
+        }
+    }
+
+    // ---- One SSE event taking a subscriber from since to this view ----
+    private byte[] encode(FeedView view, long since) {
+        String delta = since < 0 ? null : view.delta_json(since, epoch);
+        String type = "delta";
+        if (delta == null) {
+            delta = view.resync_json(epoch);
+            type = "full";
+        }
+        return ("id: " + epoch + ":" + view.stamp + "\nevent: " + type + "\ndata: " + delta + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,92 @@
+package org.example;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Function: a Reader decoding UTF-8 straight out of a ByteBuffer
+ *
+ * Lets a JsonReader parse a request body where it lies (eg. in the NIO connection's pooled read
+ * buffer): no String, no char[] copy of the body and no InputStreamReader buffers in between.
+ * Malformed bytes become U+FFFD, as new String(bytes, UTF_8) would make them.
+ */
+public final class Utf8Reader extends Reader {
+    private static final char REPLACEMENT = '\uFFFD';
+    private static final int CHUNK_BYTES = 128;
+
+    private final ByteBuffer in;
+    private final byte[] chunk;     // bytes are copied out of the buffer in runs, a direct buffer included
+    private char pending;           // low half of a surrogate pair that did not fit the last read, 0 if none
+
+    public Utf8Reader(ByteBuffer in) {
+        this.in = in;
+        this.chunk = new byte[Math.max(1, Math.min(in.remaining(), CHUNK_BYTES))];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) return 0;
+        int n = 0;
+        if (pending != 0) {
+            cbuf[off + n++] = pending;
+            pending = 0;
+        }
+        while (n < len && in.hasRemaining()) {
+            // bulk copy a run of bytes, then widen the ASCII ones (nearly every byte of a PUT) in a plain loop
+            int start = in.position();
+            int count = Math.min(Math.min(len - n, in.remaining()), chunk.length);
+            in.get(chunk, 0, count);
+            int i = 0;
+            while (i < count && chunk[i] >= 0) cbuf[off + n++] = (char) chunk[i++];
+            if (i == count) continue;
+
+            // a multi-byte sequence: continue from just past its lead byte
+            in.position(start + i + 1);
+            int cp = decode(chunk[i] & 0xFF);
+            if (cp < 0x10000) {
+                cbuf[off + n++] = (char) cp;
+            } else {
+                cbuf[off + n++] = Character.highSurrogate(cp);
+                char low = Character.lowSurrogate(cp);
+                if (n < len) cbuf[off + n++] = low;
+                else pending = low;
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    // Code point of a multi-byte sequence whose lead byte was just read
+    // A bad sequence gives one U+FFFD for the bytes up to where it went wrong (the JDK decoder does the same)
+    private int decode(int lead) {
+        int count, cp;
+        int low = 0x80, high = 0xBF;                    // allowed range of the second byte
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            count = 1; cp = lead & 0x1F;
+        } else if (lead >= 0xE0 && lead <= 0xEF) {
+            count = 2; cp = lead & 0x0F;
+            if (lead == 0xE0) low = 0xA0;               // overlong
+        } else if (lead >= 0xF0 && lead <= 0xF4) {
+            count = 3; cp = lead & 0x07;
+            if (lead == 0xF0) low = 0x90;               // overlong
+            if (lead == 0xF4) high = 0x8F;              // above U+10FFFF
+        } else {
+            return REPLACEMENT;
+        }
+        for (int i = 0; i < count; i++) {
+            // a byte that does not continue the sequence is left for the next character
+            if (!in.hasRemaining()) return REPLACEMENT;
+            int b = in.get(in.position()) & 0xFF;
+            if (b < low || b > high) return REPLACEMENT;
+            in.get();
+            cp = (cp << 6) | (b & 0x3F);
+            low = 0x80;
+            high = 0xBF;
+        }
+        return cp >= 0xD800 && cp <= 0xDFFF ? REPLACEMENT : cp;    // a lone surrogate, dropped as one
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the buffer belongs to the caller
+    }
+}
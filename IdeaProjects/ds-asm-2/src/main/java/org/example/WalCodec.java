@@ -0,0 +1,290 @@
+package org.example;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Function: binary WAL record format
+ *
+ * Segment:  [magic "WAL2"] [frame] [frame] ... [zero padding]
+ * Frame:    [body length: int32] [CRC32C of body: int32] [body]
+ * Body:     [flags: byte] [seq: varint] [lamport: varint] [source ref: varint] ([source_id] if new) [payload]
+ *
+ * source_id is interned per segment: the first record from a source writes the
+ * string once, every later record only writes its index.
+ * Payloads above DEFLATE_MIN_BYTES are deflated against a preset dictionary of
+ * BOM keys, stored as [raw length: varint] [deflated bytes].
+ * A tombstone (FLAG_TOMBSTONE) records a station removed by expiry: its payload is {"id"},
+ * its lamport the removed record's.
+ * A length that runs past the end or a CRC mismatch marks a torn record.
+ * So does an all-zero frame header with anything but zeros after it: the segment is written in order
+ * and force()d before a PUT is acknowledged, so a zeroed page with data behind it is a write the
+ * crash cut short (pages reach the disk in any order), and nothing from that header on was acknowledged.
+ */
+public class WalCodec {
+    public static final int SEGMENT_MAGIC = 0x57414C32;    // "WAL2"
+    public static final int FRAME_HEADER_BYTES = 8;         // length + crc
+
+    private static final byte FLAG_DEFLATED = 1;
+    private static final byte FLAG_TOMBSTONE = 2;
+    private static final int DEFLATE_MIN_BYTES = 128;       // small payloads do not shrink enough to bother
+
+    // Keys that repeat in every BOM observation, deflate can refer back to these from the first record
+    private static final byte[] BOM_DICTIONARY = ("{\"id\":\"\",\"name\":\"\",\"state\":\"\",\"time_zone\":\"\",\"lat\":\"\",\"lon\":\"\","
+            + "\"local_date_time\":\"\",\"local_date_time_full\":\"\",\"air_temp\":\"\",\"apparent_t\":\"\",\"cloud\":\"\","
+            + "\"dewpt\":\"\",\"press\":\"\",\"rel_hum\":\"\",\"wind_dir\":\"\",\"wind_spd_kmh\":\"\",\"wind_spd_kt\":\"\","
+            + "\"lamport\":\"source_id\":\"IDS\",\"SA\",\"CST\",\"Partly cloudy\",\"Sunny\",\"Cloudy\"}").getBytes(StandardCharsets.UTF_8);
+
+    // Deflater/Inflater are not thread safe and costly to create, keep one per thread
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    // ---- Payload bytes ready to be framed (encoded once, on the caller's thread) ----
+    public static class EncodedPayload {
+        final byte flags;
+        final byte[] bytes;
+
+        EncodedPayload(byte flags, byte[] bytes) {
+            this.flags = flags;
+            this.bytes = bytes;
+        }
+
+        public int size() {
+            return bytes.length;
+        }
+    }
+
+    // ---- One decoded record ----
+    public static class Record {
+        public final long seq;
+        public final long lamport;
+        public final String source_id;
+        final EncodedPayload payload;
+
+        Record(long seq, long lamport, String source_id, EncodedPayload payload) {
+            this.seq = seq;
+            this.lamport = lamport;
+            this.source_id = source_id;
+            this.payload = payload;
+        }
+
+        // The station was removed here, payload() only holds its id
+        public boolean tombstone() {
+            return (payload.flags & FLAG_TOMBSTONE) != 0;
+        }
+
+        // Payload with lamport + source_id embedded, as recovery expects
+        public JsonObject payload() throws IOException {
+            JsonObject o = decode_payload(payload);
+            o.addProperty("lamport", lamport);
+            o.addProperty("source_id", source_id);
+            return o;
+        }
+    }
+
+    // ---- A record whose frame is incomplete or fails its checksum ----
+    public static class TornRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int offset;
+
+        TornRecordException(int offset, String reason) {
+            super(reason + " at offset " + offset);
+            this.offset = offset;
+        }
+    }
+
+    // ---- Payload encoding ----
+    public static EncodedPayload encode_payload(JsonObject payload) {
+        return encode_payload(payload.toString());
+    }
+
+    // Payload already serialised, eg. WeatherRecord.to_json_string()
+    public static EncodedPayload encode_payload(String json) {
+        byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+        if (raw.length < DEFLATE_MIN_BYTES) {
+            return new EncodedPayload((byte) 0, raw);
+        }
+
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(BOM_DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+        write_varint(out, raw.length);
+        byte[] chunk = new byte[512];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+
+        // keep it raw if deflate did not help
+        byte[] deflated = out.toByteArray();
+        return deflated.length < raw.length ? new EncodedPayload(FLAG_DEFLATED, deflated) : new EncodedPayload((byte) 0, raw);
+    }
+
+    // Tombstone for a removed station, never deflated
+    public static EncodedPayload tombstone_payload(String id) {
+        JsonObject o = new JsonObject();
+        o.addProperty("id", id);
+        return new EncodedPayload(FLAG_TOMBSTONE, o.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    static JsonObject decode_payload(EncodedPayload payload) throws IOException {
+        byte[] raw = payload.bytes;
+        if ((payload.flags & FLAG_DEFLATED) != 0) {
+            ByteBuffer in = ByteBuffer.wrap(payload.bytes);
+            raw = new byte[(int) read_varint(in)];
+
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(payload.bytes, in.position(), in.remaining());
+            try {
+                int n = 0;
+                while (n < raw.length) {
+                    int read = inflater.inflate(raw, n, raw.length - n);
+                    if (read == 0 && inflater.needsDictionary()) {
+                        inflater.setDictionary(BOM_DICTIONARY);
+                    } else if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("deflated payload is truncated");
+                    }
+                    n += read;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("deflated payload is corrupt", e);
+            }
+        }
+        return JsonParser.parseString(new String(raw, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+
+    // ---- Encoder: frames records for one segment, owns that segment's source dictionary ----
+    public static class Encoder {
+        private final Map<String, Integer> sources = new HashMap<>();
+
+        public byte[] frame(long seq, long lamport, String source_id, EncodedPayload payload) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(payload.bytes.length + 32);
+            body.write(payload.flags);
+            write_varint(body, seq);
+            write_varint(body, lamport);
+
+            // interned source_id: the index, and the string itself the first time
+            Integer ref = sources.get(source_id);
+            if (ref == null) {
+                ref = sources.size();
+                sources.put(source_id, ref);
+                write_varint(body, ref);
+                byte[] name = source_id.getBytes(StandardCharsets.UTF_8);
+                write_varint(body, name.length);
+                body.write(name, 0, name.length);
+            } else {
+                write_varint(body, ref);
+            }
+            body.write(payload.bytes, 0, payload.bytes.length);
+
+            byte[] body_bytes = body.toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(body_bytes);
+
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + body_bytes.length);
+            frame.putInt(body_bytes.length);
+            frame.putInt((int) crc.getValue());
+            frame.put(body_bytes);
+            return frame.array();
+        }
+    }
+
+    // ---- Decoder: reads one segment front to back, rebuilding its source dictionary ----
+    public static class Decoder {
+        private final List<String> sources = new ArrayList<>();
+
+        /**
+         * Next record, or null at the clean end of the segment (end of file, or zero padding up to the end).
+         * Throws TornRecordException if the frame at the current position is damaged, or is a zeroed
+         * header with non-zero bytes further on (see class comment).
+         */
+        public Record next(ByteBuffer in) throws TornRecordException {
+            int offset = in.position();
+            if (in.remaining() < FRAME_HEADER_BYTES) {
+                // a few stray non-zero bytes are the start of a frame that never finished
+                while (in.hasRemaining()) {
+                    if (in.get() != 0) throw new TornRecordException(offset, "incomplete frame header");
+                }
+                return null;
+            }
+
+            int length = in.getInt();
+            int expected_crc = in.getInt();
+            if (length == 0 && expected_crc == 0) {
+                while (in.hasRemaining()) {
+                    if (in.get() != 0) throw new TornRecordException(offset, "zeroed frame header before more data");
+                }
+                return null;
+            }
+            if (length < 0 || length > in.remaining()) {
+                throw new TornRecordException(offset, "frame runs past end of segment");
+            }
+
+            byte[] body = new byte[length];
+            in.get(body);
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            if ((int) crc.getValue() != expected_crc) {
+                throw new TornRecordException(offset, "CRC mismatch");
+            }
+
+            try {
+                ByteBuffer b = ByteBuffer.wrap(body);
+                byte flags = b.get();
+                long seq = read_varint(b);
+                long lamport = read_varint(b);
+                int ref = (int) read_varint(b);
+                if (ref == sources.size()) {
+                    byte[] name = new byte[(int) read_varint(b)];
+                    b.get(name);
+                    sources.add(new String(name, StandardCharsets.UTF_8));
+                }
+                String source_id = sources.get(ref);
+                byte[] payload = new byte[b.remaining()];
+                b.get(payload);
+                return new Record(seq, lamport, source_id, new EncodedPayload(flags, payload));
+            } catch (RuntimeException e) {
+                // checksum matched but the body makes no sense, still cannot trust anything after it
+                throw new TornRecordException(offset, "malformed record body");
+            }
+        }
+    }
+
+    // ---- Unsigned LEB128 varints ----
+    static void write_varint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long read_varint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+}
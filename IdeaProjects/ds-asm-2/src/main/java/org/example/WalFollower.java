@@ -0,0 +1,168 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Function: backup side of replication, tails a primary's WAL stream (see WalShipper)
+ *
+ * Every record received is handed to apply, which queues it for the writers like a PUT, so the
+ * same Lamport rules decide whether it replaces what the backup has and it lands in the backup's
+ * own WAL. Records commute under those rules, so the queues may reorder them; a tombstone does not, so it
+ * waits until every record before it has been applied. The connection is retried every RETRY_MS; once nothing (not even a heartbeat) has come
+ * from the primary for failover_ms, the backup starts the next term, calls promote and stops following.
+ * From then on it sends the old primary a fence every FENCE_MS, so if that one comes back it steps
+ * down instead of taking PUTs too (see ReplicationTerm). A primary on an older term than ours is not
+ * followed at all: it counts as silent.
+ * Lag: seqs the primary has synced that the backup has not applied yet.
+ */
+public class WalFollower {
+    private static final long RETRY_MS = 250;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long FENCE_MS = 1000;
+
+    private final InetSocketAddress primary;
+    private final int failover_ms;
+    private final Function<WalCodec.Record, CompletableFuture<?>> apply;
+    private final Runnable promote;
+    private final ReplicationTerm term;
+    private final Metrics metrics;
+
+    private final AtomicLong primary_seq = new AtomicLong(0);      // highest seq the primary told us about
+    private final AtomicLong applied_seq = new AtomicLong(0);      // highest seq the writers applied here
+    private final AtomicLong in_flight = new AtomicLong(0);        // records handed to apply, not applied yet
+    private volatile long last_contact = System.currentTimeMillis();
+
+    public WalFollower(InetSocketAddress primary, int failover_ms, Function<WalCodec.Record, CompletableFuture<?>> apply,
+                       Runnable promote, ReplicationTerm term, Metrics metrics) {
+        this.primary = primary;
+        this.failover_ms = failover_ms;
+        this.apply = apply;
+        this.promote = promote;
+        this.term = term;
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        metrics.gauge("replication_lag_records", () -> Math.max(0, primary_seq.get() - applied_seq.get()));
+        metrics.gauge("replication_last_contact_ms", () -> System.currentTimeMillis() - last_contact);
+        Thread follower = new Thread(this::run, "WAL Follower");
+        follower.setDaemon(true);
+        follower.start();
+        System.out.println("Following primary at " + primary + " (read only until it stops for " + failover_ms + " ms)");
+    }
+
+    // ---- Follow until the primary has been silent for failover_ms, then take over ----
+    private void run() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(primary, CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(failover_ms);       // heartbeats come every WalShipper.HEARTBEAT_MS
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeByte(WalShipper.HELLO);
+                out.writeLong(term.get());
+                out.flush();
+                follow(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024)));
+            } catch (SocketTimeoutException e) {
+                System.err.println("WAL Follower: no heartbeat from primary for " + failover_ms + " ms");
+            } catch (IOException e) {
+                // refused, reset or a torn frame; retry until the failover timeout runs out
+            }
+            if (System.currentTimeMillis() - last_contact >= failover_ms) break;
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+        long new_term = term.next();
+        System.out.println("WAL Follower: primary gone since " + (System.currentTimeMillis() - last_contact)
+                + " ms, promoting this server to term " + new_term + ", last applied seq " + applied_seq.get());
+        metrics.counter("replication_promotions").incrementAndGet();
+        promote.run();
+        fence(new_term);
+    }
+
+    // ---- Keep telling the old primary it has been replaced, for when it comes back ----
+    private void fence(long new_term) {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(primary, CONNECT_TIMEOUT_MS);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeByte(WalShipper.FENCE);
+                out.writeLong(new_term);
+                out.flush();
+            } catch (IOException e) {
+                // still down
+            }
+            try {
+                Thread.sleep(FENCE_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(DataInputStream in) throws IOException {
+        WalCodec.Decoder decoder = new WalCodec.Decoder();      // the source dictionary is per connection
+        while (true) {
+            int type = in.read();
+            if (type < 0) throw new EOFException("primary closed the stream");
+            if (type == WalShipper.HEARTBEAT) {
+                long seq = in.readLong();
+                long primary_term = in.readLong();
+                // a primary replaced in a later term we know of is not followed, nor does it keep us from failing over
+                if (primary_term < term.get()) {
+                    throw new IOException("primary is on term " + primary_term + ", this server on " + term.get());
+                }
+                term.observe(primary_term);
+                primary_seq.accumulateAndGet(seq, Math::max);
+            } else if (type == WalShipper.RECORD) {
+                WalCodec.Record record = decoder.next(read_frame(in));
+                long seq = record.seq;
+                primary_seq.accumulateAndGet(seq, Math::max);
+                metrics.counter("replication_records_received").incrementAndGet();
+                if (record.tombstone()) await_applied();
+                in_flight.incrementAndGet();
+                apply.apply(record).whenComplete((ignored, err) -> {
+                    applied_seq.accumulateAndGet(seq, Math::max);
+                    in_flight.decrementAndGet();
+                });
+            } else {
+                throw new IOException("unknown replication message " + type);
+            }
+            last_contact = System.currentTimeMillis();
+        }
+    }
+
+    // Tombstones are rare (expiry), so a short poll is fine
+    private void await_applied() throws IOException {
+        try {
+            while (in_flight.get() > 0) Thread.sleep(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+    }
+
+    // One WAL frame off the stream, header included, as the Decoder reads it from a segment
+    private static ByteBuffer read_frame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        int crc = in.readInt();
+        if (length <= 0 || length > 64 * 1024 * 1024) throw new IOException("bad frame length " + length);
+        ByteBuffer frame = ByteBuffer.allocate(WalCodec.FRAME_HEADER_BYTES + length);
+        frame.putInt(length).putInt(crc);
+        in.readFully(frame.array(), WalCodec.FRAME_HEADER_BYTES, length);
+        return frame.rewind();
+    }
+}
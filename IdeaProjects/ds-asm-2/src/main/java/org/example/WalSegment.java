@@ -0,0 +1,132 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Function: one fixed-size piece of the WAL (wal-<first seq>.seg)
+ *
+ * The active segment is preallocated and written through a MappedByteBuffer,
+ * so an append is a memory copy and a sync is a single force().
+ * Records use the binary frames from WalCodec; unused space stays zero,
+ * which is how readers find the end of a segment.
+ * Sealed segments are never written again, only compacted or deleted.
+ */
+public class WalSegment {
+    public final Path path;
+    public final long first_seq;
+    public volatile long last_seq;      // highest seq stored in this segment
+
+    // Only set while this is the active segment
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private WalCodec.Encoder encoder;
+
+    public WalSegment(Path path, long first_seq, long last_seq) {
+        this.path = path;
+        this.first_seq = first_seq;
+        this.last_seq = last_seq;
+    }
+
+    public static Path path_for(Path dir, long first_seq) {
+        return dir.resolve(String.format("wal-%020d.seg", first_seq));
+    }
+
+    // First seq of a segment file, taken from its name
+    public static long first_seq_of(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring("wal-".length(), name.length() - ".seg".length()));
+    }
+
+    public static boolean is_segment(Path file) {
+        return file.getFileName().toString().matches("wal-\\d{20}\\.seg");
+    }
+
+    // ---- Create and map a new active segment of the given capacity ----
+    public static WalSegment create(Path dir, long first_seq, int capacity) throws IOException {
+        WalSegment segment = new WalSegment(path_for(dir, first_seq), first_seq, first_seq - 1);
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment.mapped = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity + 4L);
+        segment.mapped.putInt(WalCodec.SEGMENT_MAGIC);
+        segment.encoder = new WalCodec.Encoder();
+        return segment;
+    }
+
+    // Frame a record against this segment's source dictionary
+    public byte[] frame(long seq, long lamport, String source_id, WalCodec.EncodedPayload payload) {
+        return encoder.frame(seq, lamport, source_id, payload);
+    }
+
+    public boolean fits(int length) {
+        return mapped.remaining() >= length;
+    }
+
+    public void append(byte[] frame, long seq) {
+        mapped.put(frame);
+        last_seq = seq;
+    }
+
+    public void force() {
+        mapped.force();
+    }
+
+    // ---- Stop writing: sync what we have and release the channel ----
+    public void seal() throws IOException {
+        mapped.force();
+        channel.close();
+        mapped = null;
+        channel = null;
+        encoder = null;
+    }
+
+    // ---- Does this file still hold the text format from older versions? ----
+    public static boolean is_text(Path file) throws IOException {
+        if (Files.size(file) == 0) return false;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer first = ByteBuffer.allocate(1);
+            in.read(first);
+            return first.get(0) == '{';
+        }
+    }
+
+    // ---- Decode every record in a segment file ----
+    /**
+     * Reads frames until the zero padding. If a torn record is found, everything
+     * from its offset on is reported and, when repair is set, cut off the file.
+     */
+    public static List<WalCodec.Record> read_records(Path file, boolean repair) throws IOException {
+        List<WalCodec.Record> records = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (in.remaining() < 4) return records;         // created but never written
+        int magic = in.getInt();
+        if (magic == 0) return records;
+        if (magic != WalCodec.SEGMENT_MAGIC) {
+            throw new IOException("not a WAL segment: " + file);
+        }
+
+        WalCodec.Decoder decoder = new WalCodec.Decoder();
+        try {
+            WalCodec.Record record;
+            while ((record = decoder.next(in)) != null) {
+                records.add(record);
+            }
+        } catch (WalCodec.TornRecordException e) {
+            System.err.println("WAL: torn record in " + file.getFileName() + " " + e.getMessage()
+                    + ", dropping " + (in.limit() - e.offset) + " trailing bytes");
+            if (repair) {
+                try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    out.truncate(e.offset);
+                    out.force(true);
+                }
+            }
+        }
+        return records;
+    }
+}
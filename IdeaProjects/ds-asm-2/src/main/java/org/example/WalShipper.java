@@ -0,0 +1,193 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Function: primary side of replication, streams the WAL to backup servers (see WalFollower)
+ *
+ * A backup connects to --replication-port, says hello with its term, and gets:
+ *  1. A heartbeat, so it knows this primary's term before any record
+ *  2. Every record the store holds, cut under the write lock at WAL seq N (like a checkpoint)
+ *  3. Every record with seq > N, as soon as the WAL committer has synced it
+ *  4. A heartbeat with the last synced seq and the term whenever there was nothing to send for HEARTBEAT_MS
+ * Records go out as WAL frames (WalCodec, CRC checked, source_id interned per connection).
+ * Shipping is asynchronous: a PUT is acknowledged once the primary's WAL is synced, not the backup's.
+ * A backup that falls MAX_QUEUED records behind is dropped; it reconnects and starts again from step 1.
+ * A promoted backup connects with a fence instead: if its term replaced ours (see ReplicationTerm),
+ * this server steps down to read only and ships nothing more.
+ *
+ * To the primary:   ['B'][term: int64] (backup hello) | ['F'][term: int64] (fence)
+ * From the primary: ['R'][WAL frame] | ['H'][last synced seq: int64][term: int64]
+ */
+public class WalShipper {
+    static final byte RECORD = 'R';
+    static final byte HEARTBEAT = 'H';
+    static final byte HELLO = 'B';
+    static final byte FENCE = 'F';
+    static final long HEARTBEAT_MS = 500;
+    private static final int MAX_QUEUED = 100_000;
+    private static final int HELLO_TIMEOUT_MS = 5_000;
+
+    private final int port;
+    private final PersistenceManager persis_manager;
+    private final ReentrantReadWriteLock reentrant_lock;
+    private final Supplier<List<WeatherRecord>> all_records;
+    private final ReplicationTerm term;
+    private final Runnable step_down;
+    private final Metrics metrics;
+    private final List<Backup> backups = new CopyOnWriteArrayList<>();
+    private volatile boolean stepped_down = false;
+
+    // ---- One connected backup: synced records waiting to be sent to it ----
+    private static final class Backup {
+        final LinkedBlockingQueue<WalCodec.Record> queue = new LinkedBlockingQueue<>();
+        final long cut_seq;                 // records up to here were in its initial copy
+        volatile boolean overflowed = false;
+
+        Backup(long cut_seq) {
+            this.cut_seq = cut_seq;
+        }
+    }
+
+    public WalShipper(int port, PersistenceManager persis_manager, ReentrantReadWriteLock reentrant_lock,
+                      Supplier<List<WeatherRecord>> all_records, ReplicationTerm term, Runnable step_down, Metrics metrics) {
+        this.port = port;
+        this.persis_manager = persis_manager;
+        this.reentrant_lock = reentrant_lock;
+        this.all_records = all_records;
+        this.term = term;
+        this.step_down = step_down;
+        this.metrics = metrics;
+    }
+
+    // ---- Listen for backups, one sender thread each ----
+    public void start() throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        persis_manager.on_commit(this::committed);
+        metrics.gauge("replication_backups", backups::size);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    Thread sender = new Thread(() -> ship(socket), "WAL Shipper-" + socket.getPort());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    System.err.println("WAL Shipper: accept failed " + e.getMessage());
+                }
+            }
+        }, "WAL Shipper");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Shipping WAL to backups on port " + port);
+    }
+
+    // Committer thread: queue the batch for every backup whose initial copy does not hold it yet
+    private void committed(List<WalCodec.Record> records) {
+        for (Backup backup : backups) {
+            for (WalCodec.Record record : records) {
+                if (record.seq > backup.cut_seq) backup.queue.add(record);
+            }
+            if (backup.queue.size() > MAX_QUEUED) backup.overflowed = true;
+        }
+    }
+
+    private void ship(Socket s) {
+        Backup backup = null;
+        try (Socket socket = s;
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024))) {
+            socket.setTcpNoDelay(true);
+            if (!hello(socket)) return;
+            WalCodec.Encoder encoder = new WalCodec.Encoder();
+
+            // Step 1: our term first, a backup that knows a newer one does not take anything from us
+            heartbeat(out);
+            out.flush();
+
+            // Step 2: a consistent cut, no writer is between its WAL append and its store update
+            List<WeatherRecord> records;
+            reentrant_lock.writeLock().lock();
+            try {
+                records = all_records.get();
+                backup = new Backup(persis_manager.last_appended_seq());
+                backups.add(backup);
+            } finally {
+                reentrant_lock.writeLock().unlock();
+            }
+            System.out.println("WAL Shipper: backup " + socket.getRemoteSocketAddress() + " connected, sending "
+                    + records.size() + " records up to seq " + backup.cut_seq);
+            for (WeatherRecord record : records) {
+                send(out, encoder, new WalCodec.Record(backup.cut_seq, record.lamport, record.source_id,
+                        WalCodec.encode_payload(record.to_json_string())));
+            }
+            out.flush();
+
+            // Step 3 + 4: synced records as they come, a heartbeat when there are none
+            while (!backup.overflowed && !stepped_down) {
+                WalCodec.Record record = backup.queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    heartbeat(out);
+                } else {
+                    do {
+                        send(out, encoder, record);
+                    } while ((record = backup.queue.poll()) != null);
+                }
+                out.flush();
+            }
+            if (backup.overflowed) {
+                System.err.println("WAL Shipper: backup " + socket.getRemoteSocketAddress() + " fell " + MAX_QUEUED
+                        + " records behind, dropping it");
+            }
+        } catch (IOException e) {
+            System.err.println("WAL Shipper: backup disconnected " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (backup != null) backups.remove(backup);
+        }
+    }
+
+    // ---- What the other side is: a backup to ship to (true), or a fence, which may make us step down ----
+    private boolean hello(Socket socket) throws IOException {
+        socket.setSoTimeout(HELLO_TIMEOUT_MS);
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        int type = in.read();
+        long other = in.readLong();
+        socket.setSoTimeout(0);
+        if (type == FENCE) {
+            if (!stepped_down && term.observe(other)) {
+                stepped_down = true;
+                System.err.println("WAL Shipper: " + socket.getRemoteSocketAddress() + " is the primary of term " + other
+                        + ", stepping down");
+                step_down.run();
+            }
+            return false;
+        }
+        if (type != HELLO) throw new IOException("unknown replication hello " + type);
+        // a server that stepped down has been replaced, its backups should follow the new primary
+        return !stepped_down;
+    }
+
+    private void heartbeat(DataOutputStream out) throws IOException {
+        out.writeByte(HEARTBEAT);
+        out.writeLong(persis_manager.committed_seq());
+        out.writeLong(term.get());
+    }
+
+    private void send(DataOutputStream out, WalCodec.Encoder encoder, WalCodec.Record record) throws IOException {
+        out.writeByte(RECORD);
+        out.write(encoder.frame(record.seq, record.lamport, record.source_id, record.payload));
+        metrics.counter("replication_records_shipped").incrementAndGet();
+    }
+}
@@ -1,17 +1,331 @@
 package org.example;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Function: one station's latest observation, typed
+ *
+ * The BOM attributes are plain fields (numbers as double/int) and anything else a content
+ * server sends goes to a small overflow map, so no JsonObject tree is kept per record.
+ * Records are immutable: a PUT reads a new one straight off its body (read_json), which the
+ * store, WAL, snapshot and views then share.
+ * A number is only stored typed when it prints back exactly as it arrived ("13.3", 20.0, "60"):
+ * its count of decimals and whether it came quoted are remembered, so the JSON written out
+ * matches what was sent, and printing it is a long-to-text, not a Double.toString.
+ * Anything else (eg. "-" for a missing reading) is kept as is in the overflow map.
+ */
+public final class WeatherRecord {
+    // Numeric BOM fields, their index is their bit in present / quoted (and 3 bits in scales)
+    private static final String[] NUMBER_KEYS = {"lat", "lon", "air_temp", "apparent_t", "dewpt", "press",
+            "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+    private static final int FIRST_INT = 6;             // rel_hum onwards are ints
+    private static final int MAX_SCALE = 7;             // decimals kept typed, more goes to extra
+    private static final int MAX_DIGITS = 15;           // so value * 10^scale is exact in a double
+    private static final long[] POW10 = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000};
+    private static final String[] TEXT_KEYS = {"name", "state", "time_zone", "local_date_time",
+            "local_date_time_full", "cloud", "wind_dir"};
+    private static final Gson gson = new Gson();
 
-public class WeatherRecord {
     public final String id;
-    public volatile JsonObject data;
-    public volatile long lamport;
+    public final long lamport;
     public final String source_id;  // identifying source content server
 
-    public WeatherRecord(String id, JsonObject data, long lamport, String source_id) {
-        this.id = id;
-        this.data = data;
+    // ---- BOM text fields, null if not sent ----
+    public final String name, state, time_zone, local_date_time, local_date_time_full, cloud, wind_dir;
+
+    // ---- BOM numeric fields, only meaningful if has(key) ----
+    public final double lat, lon, air_temp, apparent_t, dewpt, press;
+    public final int rel_hum, wind_spd_kmh, wind_spd_kt;
+
+    private final short present;        // numeric field was sent (and is typed)
+    private final short quoted;         // ... as a JSON string
+    private final int scales;           // ... with this many decimals, 3 bits per field
+    private final Map<String, JsonElement> extra;   // every other key, in arrival order; null if none
+
+    // ---- Build from a WAL / snapshot object; "lamport" and "source_id" keys are ignored ----
+    public static WeatherRecord from_json(JsonObject o, long lamport, String source_id) {
+        Fields fields = new Fields();
+        for (Map.Entry<String, JsonElement> entry : o.entrySet()) {
+            String key = entry.getKey();
+            JsonElement e = entry.getValue();
+            JsonPrimitive p = e.isJsonPrimitive() ? e.getAsJsonPrimitive() : null;
+            if (key.equals("id")) {
+                fields.id = p != null ? p.getAsString() : null;
+            } else if (!key.equals("lamport") && !key.equals("source_id")) {
+                boolean typed = p != null && (p.isString() ? fields.text_or_number(key, p.getAsString(), true)
+                        : p.isNumber() && fields.number(key, p.getAsString(), false));
+                if (!typed) fields.extra(key, e);
+            }
+        }
+        return new WeatherRecord(fields, lamport, source_id);
+    }
+
+    // ---- Build from a PUT payload in one streaming pass, no JsonObject in between ----
+    // The reader is on the payload object; a record without a usable id comes back with id == null
+    public static WeatherRecord read_json(JsonReader in, long lamport, String source_id) throws IOException {
+        Fields fields = new Fields();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            JsonToken token = in.peek();
+            if (key.equals("id")) {
+                // as from_json reads it: a string, a number's literal or "true" / "false", anything else is no id
+                if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    fields.id = in.nextString();
+                } else if (token == JsonToken.BOOLEAN) {
+                    fields.id = String.valueOf(in.nextBoolean());
+                } else {
+                    fields.id = null;
+                    in.skipValue();
+                }
+            } else if (key.equals("lamport") || key.equals("source_id")) {
+                in.skipValue();
+            } else if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                boolean quoted = token == JsonToken.STRING;
+                String literal = in.nextString();         // a number's literal exactly as written
+                if (!fields.text_or_number(key, literal, quoted)) {
+                    fields.extra(key, quoted ? new JsonPrimitive(literal) : JsonParser.parseString(literal));
+                }
+            } else {
+                fields.extra(key, JsonParser.parseReader(in));
+            }
+        }
+        in.endObject();
+        return new WeatherRecord(fields, lamport, source_id);
+    }
+
+    // ---- Values of one payload while it is read, typed where they print back exactly ----
+    private static final class Fields {
+        String id;
+        final String[] text = new String[TEXT_KEYS.length];
+        final double[] values = new double[NUMBER_KEYS.length];
+        int present, quoted, scales;
+        Map<String, JsonElement> extra;     // null if none
+
+        // A string for a text field, or a string / number literal for a numeric field; false if it is neither
+        boolean text_or_number(String key, String literal, boolean quoted) {
+            int index = text_index(key);
+            if (index < 0) return number(key, literal, quoted);
+            if (!quoted) return false;
+            text[index] = literal;
+            if (extra != null) extra.remove(key);     // a repeated key: the last one wins
+            return true;
+        }
+
+        boolean number(String key, String literal, boolean was_quoted) {
+            int i = number_index(key);
+            if (i < 0) return false;
+            int scale = decimal_scale(literal, i >= FIRST_INT ? 9 : MAX_DIGITS);
+            if (scale < 0 || (i >= FIRST_INT && scale > 0)) return false;
+            double value = Double.parseDouble(literal);
+            if (!format(value, scale).equals(literal)) return false;    // eg. "-0", "007": keep as sent
+            int bit = 1 << i;
+            values[i] = value;
+            present |= bit;
+            quoted = was_quoted ? quoted | bit : quoted & ~bit;
+            scales = (scales & ~(7 << (3 * i))) | scale << (3 * i);
+            if (extra != null) extra.remove(key);
+            return true;
+        }
+
+        // Whatever did not fit a typed field, in arrival order
+        void extra(String key, JsonElement value) {
+            int text = text_index(key), number = number_index(key);
+            if (text >= 0) this.text[text] = null;
+            if (number >= 0) present &= ~(1 << number);
+            if (extra == null) extra = new LinkedHashMap<>(4);
+            extra.put(key, value);
+        }
+    }
+
+    private WeatherRecord(Fields fields, long lamport, String source_id) {
+        this.id = fields.id == null || fields.id.isEmpty() ? null : fields.id;
         this.lamport = lamport;
         this.source_id = source_id;
+
+        this.name = fields.text[0];
+        this.state = fields.text[1];
+        this.time_zone = fields.text[2];
+        this.local_date_time = fields.text[3];
+        this.local_date_time_full = fields.text[4];
+        this.cloud = fields.text[5];
+        this.wind_dir = fields.text[6];
+
+        double[] values = fields.values;
+        this.lat = values[0];
+        this.lon = values[1];
+        this.air_temp = values[2];
+        this.apparent_t = values[3];
+        this.dewpt = values[4];
+        this.press = values[5];
+        this.rel_hum = (int) values[6];
+        this.wind_spd_kmh = (int) values[7];
+        this.wind_spd_kt = (int) values[8];
+        this.present = (short) fields.present;
+        this.quoted = (short) (fields.quoted & fields.present);
+        this.scales = fields.scales;
+        this.extra = fields.extra;
+    }
+
+    // Decimals in a plain "-12" / "13.3" literal, -1 if it is anything else (exponent, too many digits...)
+    private static int decimal_scale(String s, int max_digits) {
+        int start = s.startsWith("-") ? 1 : 0;
+        int point = -1;
+        for (int i = start; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '.' && point < 0) point = i;
+            else if (c < '0' || c > '9') return -1;
+        }
+        int digits = s.length() - start - (point < 0 ? 0 : 1);
+        int scale = point < 0 ? 0 : s.length() - point - 1;
+        if (digits < 1 || digits > max_digits || point == start || scale > MAX_SCALE) return -1;
+        return point < 0 || scale > 0 ? scale : -1;
+    }
+
+    // value with exactly scale decimals, eg. (13.3, 1) -> "13.3", (60, 0) -> "60"
+    private static String format(double value, int scale) {
+        long unscaled = Math.round(value * POW10[scale]);
+        if (scale == 0) return Long.toString(unscaled);
+        String digits = Long.toString(Math.abs(unscaled));
+        StringBuilder text = new StringBuilder(digits.length() + 3);
+        if (unscaled < 0) text.append('-');
+        if (digits.length() <= scale) {
+            text.append("0.");
+            for (int i = digits.length(); i < scale; i++) text.append('0');
+            return text.append(digits).toString();
+        }
+        int point = digits.length() - scale;
+        return text.append(digits, 0, point).append('.').append(digits, point, digits.length()).toString();
+    }
+
+    private static int text_index(String key) {
+        for (int i = 0; i < TEXT_KEYS.length; i++) {
+            if (TEXT_KEYS[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    private static int number_index(String key) {
+        for (int i = 0; i < NUMBER_KEYS.length; i++) {
+            if (NUMBER_KEYS[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    // ---- Was this numeric BOM field sent? ----
+    public boolean has(String key) {
+        int index = number_index(key);
+        return index >= 0 && (present & (1 << index)) != 0;
+    }
+
+    // ---- Numeric BOM fields by index, 0 .. NUMBER_FIELDS - 1 (eg. for the aggregates) ----
+    public static final int NUMBER_FIELDS = NUMBER_KEYS.length;
+
+    public static String number_key(int index) {
+        return NUMBER_KEYS[index];
+    }
+
+    public boolean has(int index) {
+        return (present & (1 << index)) != 0;
+    }
+
+    public double number(int index) {
+        switch (index) {
+            case 0: return lat;
+            case 1: return lon;
+            case 2: return air_temp;
+            case 3: return apparent_t;
+            case 4: return dewpt;
+            case 5: return press;
+            case 6: return rel_hum;
+            case 7: return wind_spd_kmh;
+            case 8: return wind_spd_kt;
+            default: throw new IndexOutOfBoundsException(index);
+        }
+    }
+
+    // ---- JSON ----
+    // Field order: id, BOM fields in BOM order, unknown keys, lamport, source_id
+    public void write_json(JsonWriter out) throws IOException {
+        write_json(out, null);
+    }
+
+    // Only the keys in fields (a ?fields= projection), every key if null; the rest is never formatted
+    public void write_json(JsonWriter out, Set<String> fields) throws IOException {
+        out.beginObject();
+        if (wanted(fields, "id")) out.name("id").value(id);
+        write_text(out, fields, "name", name);
+        write_text(out, fields, "state", state);
+        write_text(out, fields, "time_zone", time_zone);
+        write_number(out, fields, 0, lat);
+        write_number(out, fields, 1, lon);
+        write_text(out, fields, "local_date_time", local_date_time);
+        write_text(out, fields, "local_date_time_full", local_date_time_full);
+        write_number(out, fields, 2, air_temp);
+        write_number(out, fields, 3, apparent_t);
+        write_text(out, fields, "cloud", cloud);
+        write_number(out, fields, 4, dewpt);
+        write_number(out, fields, 5, press);
+        write_number(out, fields, 6, rel_hum);
+        write_text(out, fields, "wind_dir", wind_dir);
+        write_number(out, fields, 7, wind_spd_kmh);
+        write_number(out, fields, 8, wind_spd_kt);
+        if (extra != null) {
+            for (Map.Entry<String, JsonElement> entry : extra.entrySet()) {
+                if (!wanted(fields, entry.getKey())) continue;
+                out.name(entry.getKey());
+                gson.toJson(entry.getValue(), out);
+            }
+        }
+        if (wanted(fields, "lamport")) out.name("lamport").value(lamport);
+        if (wanted(fields, "source_id")) out.name("source_id").value(source_id);
+        out.endObject();
+    }
+
+    private static boolean wanted(Set<String> fields, String key) {
+        return fields == null || fields.contains(key);
+    }
+
+    private static void write_text(JsonWriter out, Set<String> fields, String key, String value) throws IOException {
+        if (value != null && wanted(fields, key)) out.name(key).value(value);
+    }
+
+    private void write_number(JsonWriter out, Set<String> fields, int index, double value) throws IOException {
+        int bit = 1 << index;
+        if ((present & bit) == 0 || !wanted(fields, NUMBER_KEYS[index])) return;
+        String literal = format(value, (scales >>> (3 * index)) & 7);
+        out.name(NUMBER_KEYS[index]);
+        if ((quoted & bit) != 0) out.value(literal);
+        else out.jsonValue(literal);
+    }
+
+    // One record as a JSON string, eg. for the WAL
+    public String to_json_string() {
+        return to_json_string(null);
+    }
+
+    // Only the keys in fields, every key if null
+    public String to_json_string(Set<String> fields) {
+        StringWriter text = new StringWriter(256);
+        try (JsonWriter out = new JsonWriter(text)) {
+            write_json(out, fields);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);       // in-memory writer, cannot happen
+        }
+        return text.toString();
     }
 }
@@ -0,0 +1,111 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Function: PUT throughput of the writer for different shard counts
+ *
+ * For each shard count an AggregationServer is started (BenchmarkServer), then C clients
+ * each send P PUTs over one kept-alive connection, spread over S station ids, and wait for
+ * every acknowledgement (so each PUT includes its WAL group commit).
+ *
+ * Usage: WriterBenchmark [clients] [puts per client] [stations] [shard counts...]
+ *        eg. WriterBenchmark 64 500 400 1 2 4 8
+ */
+public class WriterBenchmark {
+    private static final int PORT = 4691;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int puts = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int stations = args.length > 2 ? Integer.parseInt(args[2]) : 400;
+        List<Integer> shard_counts = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) shard_counts.add(Integer.parseInt(args[i]));
+        if (shard_counts.isEmpty()) shard_counts = List.of(1, 2, 4, 8);
+
+        System.out.printf("%-7s %8s %10s %12s %10s %10s %8s%n", "shards", "clients", "PUTs", "PUTs/s", "p50 ms", "p99 ms", "failed");
+        for (int shard_count : shard_counts) {
+            run(shard_count, clients, puts, stations);
+        }
+    }
+
+    private static void run(int shard_count, int clients, int puts, int stations) throws Exception {
+        try (BenchmarkServer server = new BenchmarkServer(PORT, "--shards=" + shard_count)) {
+            long[] latencies = new long[clients * puts];
+            AtomicInteger failed = new AtomicInteger();
+            AtomicInteger lamport = new AtomicInteger();
+
+            long started = System.nanoTime();
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int c = 0; c < clients; c++) {
+                    int client = c;
+                    pool.submit(() -> {
+                        try (Socket s = new Socket("localhost", server.port)) {
+                            s.setTcpNoDelay(true);
+                            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                            InputStream in = new BufferedInputStream(s.getInputStream());
+                            for (int i = 0; i < puts; i++) {
+                                String id = "IDS" + ((client * puts + i) % stations);
+                                byte[] body = ("{\"id\":\"" + id + "\",\"name\":\"Bench\",\"state\":\"SA\",\"air_temp\":" + (i % 40)
+                                        + ",\"rel_hum\":" + (i % 100) + "}").getBytes(StandardCharsets.UTF_8);
+                                String head = "PUT /weather.json HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                                        + "Content-Length: " + body.length + "\r\nX-Lamport-Clock: " + lamport.incrementAndGet()
+                                        + "\r\nX-Source-ID: bench-" + client + "\r\n\r\n";
+
+                                long t = System.nanoTime();
+                                out.write(head.getBytes(StandardCharsets.UTF_8));
+                                out.write(body);
+                                out.flush();
+                                int status = read_status(in);
+                                latencies[client * puts + i] = System.nanoTime() - t;
+                                if (status != 200 && status != 201) failed.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                    });
+                }
+                pool.shutdown();
+                pool.awaitTermination(10, TimeUnit.MINUTES);
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+
+            long[] sorted = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+            System.out.printf("%-7d %8d %10d %12.0f %10.2f %10.2f %8d%n", shard_count, clients, sorted.length, sorted.length / seconds,
+                    BenchmarkServer.percentile(sorted, 0.50), BenchmarkServer.percentile(sorted, 0.99), failed.get());
+        }
+    }
+
+    // Status code of the next response, its body is read and dropped
+    private static int read_status(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int n;
+        do {
+            int b = in.read();
+            if (b < 0) throw new IOException("connection closed");
+            head.append((char) b);
+            n = head.length();
+        } while (n < 4 || head.charAt(n - 1) != '\n' || head.charAt(n - 3) != '\n');
+        int length = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        in.readNBytes(length);
+        return Integer.parseInt(head.substring(9, 12));
+    }
+}
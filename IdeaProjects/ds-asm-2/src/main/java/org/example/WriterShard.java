@@ -0,0 +1,194 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Function: one partition of the store plus the queue of PUTs waiting for it
+ *
+ * Station ids are spread over the shards by hash, so every PUT for an id lands on
+ * the same shard and is applied by that shard's writer thread in (lamport, arrival) order.
+ * Shards never touch each other's ids, so their writers run side by side.
+ * Records are indexed by the content server that sent them and by state: expiring a source
+ * only touches that source's records. The slot GETs read (see FeedView.Slot) is made of persistent
+ * maps, so each publish applies just the ids and groups that changed since the last one on top of
+ * the previous slot, O(changes) rather than O(stations). Each group also keeps running stats of its
+ * numeric fields, updated record by record (GroupStats).
+ * Every station also keeps its last history_size observations (StationHistory).
+ */
+public class WriterShard {
+    public final int index;
+    public final PriorityBlockingQueue<PutRequest> request_queue = new PriorityBlockingQueue<>();
+    // Held while a unit takes its arrival seq and joins the queue, so units enter in arrival order (see AggregationServer.enqueue)
+    public final ReentrantLock enqueue_lock = new ReentrantLock();
+    public final ConcurrentMap<String, WeatherRecord> records = new ConcurrentHashMap<>();
+    public volatile long applied_watermark = 0; // highest lamport applied here, only written by this shard's writer
+    // Records written since the shard's last publish, handed to its ChangeLog (writer thread, or under the write lock)
+    public final List<WeatherRecord> unpublished = new ArrayList<>();
+    // ---- The records of one source_id or one state: their ids and running stats ----
+    private static final class Group {
+        final Set<String> ids = new HashSet<>();
+        final GroupStats.Running stats = new GroupStats.Running();
+    }
+
+    // Groups per source_id and per state (writer thread, or under the write lock)
+    private final Map<String, Group> by_source = new HashMap<>();
+    private final Map<String, Group> by_state = new HashMap<>();
+    // Station ids and index groups written since the last slot, and that slot
+    private final Set<String> dirty_ids = new HashSet<>();
+    private final Set<String> dirty_sources = new HashSet<>();
+    private final Set<String> dirty_states = new HashSet<>();
+    private FeedView.Slot published = FeedView.Slot.EMPTY;
+    // Recent observations per station id, appended by the writer and read by GETs; none if history_size is 0
+    private final int history_size;
+    private final ConcurrentMap<String, StationHistory> histories = new ConcurrentHashMap<>();
+
+    public WriterShard(int index, int history_size) {
+        this.index = index;
+        this.history_size = history_size;
+    }
+
+    // ---- Which shard owns a station id ----
+    public static int shard_of(String id, int shard_count) {
+        return Math.floorMod(id.hashCode(), shard_count);
+    }
+
+    // ---- Store a record, moving its id to the new source / state if they changed ----
+    public void put(WeatherRecord record) {
+        WeatherRecord replaced = records.put(record.id, record);
+        dirty_ids.add(record.id);
+        if (replaced != null) {
+            unindex(by_source, dirty_sources, replaced.source_id, replaced);
+            unindex(by_state, dirty_states, replaced.state, replaced);
+        }
+        index(by_source, dirty_sources, record.source_id, record);
+        index(by_state, dirty_states, record.state, record);
+    }
+
+    // ---- Drop one station (a replicated tombstone or a recovered one), returns the removed record or null ----
+    public WeatherRecord remove(String id) {
+        WeatherRecord removed = records.remove(id);
+        if (removed == null) return null;
+        dirty_ids.add(id);
+        unindex(by_source, dirty_sources, removed.source_id, removed);
+        unindex(by_state, dirty_states, removed.state, removed);
+        histories.remove(id);
+        return removed;
+    }
+
+    // ---- The records a source sent (empty if none), what expiring it removes ----
+    public List<WeatherRecord> records_of(String source_id) {
+        Group group = by_source.get(source_id);
+        if (group == null) return List.of();
+        List<WeatherRecord> sent = new ArrayList<>(group.ids.size());
+        for (String id : group.ids) sent.add(records.get(id));
+        return sent;
+    }
+
+    // Every source_id with records here
+    public Set<String> sources() {
+        return new HashSet<>(by_source.keySet());
+    }
+
+    // ---- Add an observation to its station's history (the ring is only allocated the first time) ----
+    public void append_history(WeatherRecord record) {
+        if (history_size == 0) return;
+        StationHistory history = histories.get(record.id);
+        if (history == null) {
+            history = new StationHistory(history_size);
+            histories.put(record.id, history);
+        }
+        history.append(record);
+    }
+
+    // Null if the station has none
+    public StationHistory history(String id) {
+        return histories.get(id);
+    }
+
+    // A record without a state is in no state group
+    private static void index(Map<String, Group> groups, Set<String> dirty, String key, WeatherRecord record) {
+        if (key == null) return;
+        Group group = groups.computeIfAbsent(key, k -> new Group());
+        group.ids.add(record.id);
+        group.stats.add(record);
+        dirty.add(key);
+    }
+
+    private static void unindex(Map<String, Group> groups, Set<String> dirty, String key, WeatherRecord record) {
+        if (key == null) return;
+        Group group = groups.get(key);
+        if (group == null) return;
+        group.ids.remove(record.id);
+        group.stats.remove(record);
+        if (group.ids.isEmpty()) groups.remove(key);
+        dirty.add(key);
+    }
+
+    // ---- Slot for the next publish: the ids and groups changed since the last one applied on top of it ----
+    public FeedView.Slot slot() {
+        PersistentMap<WeatherRecord> by_id = published.by_id;
+        PersistentMap<PersistentMap<WeatherRecord>> by_state_ids = published.by_state;
+        PersistentMap<PersistentMap<WeatherRecord>> by_source_ids = published.by_source;
+        for (String id : dirty_ids) {
+            WeatherRecord before = by_id.get(id);
+            WeatherRecord after = records.get(id);
+            if (before == after) continue;
+            if (before != null) {
+                by_state_ids = without(by_state_ids, before.state, id);
+                by_source_ids = without(by_source_ids, before.source_id, id);
+            }
+            if (after != null) {
+                by_id = by_id.plus(id, after);
+                by_state_ids = with(by_state_ids, after.state, after);
+                by_source_ids = with(by_source_ids, after.source_id, after);
+            } else {
+                by_id = by_id.minus(id);
+            }
+        }
+        FeedView.Slot slot = new FeedView.Slot(by_id, by_state_ids, by_source_ids,
+                stats(published.stats_by_state, by_state, dirty_states),
+                stats(published.stats_by_source, by_source, dirty_sources));
+        dirty_ids.clear();
+        dirty_states.clear();
+        dirty_sources.clear();
+        published = slot;
+        return slot;
+    }
+
+    // A record without a state is in no state group
+    private static PersistentMap<PersistentMap<WeatherRecord>> with(PersistentMap<PersistentMap<WeatherRecord>> groups,
+                                                                    String key, WeatherRecord record) {
+        if (key == null) return groups;
+        PersistentMap<WeatherRecord> group = groups.get(key);
+        if (group == null) group = PersistentMap.empty();
+        return groups.plus(key, group.plus(record.id, record));
+    }
+
+    private static PersistentMap<PersistentMap<WeatherRecord>> without(PersistentMap<PersistentMap<WeatherRecord>> groups,
+                                                                       String key, String id) {
+        if (key == null) return groups;
+        PersistentMap<WeatherRecord> group = groups.get(key);
+        if (group == null) return groups;
+        group = group.minus(id);
+        return group.isEmpty() ? groups.minus(key) : groups.plus(key, group);
+    }
+
+    // Summaries of the changed groups only, O(fields) each
+    private static PersistentMap<GroupStats> stats(PersistentMap<GroupStats> previous, Map<String, Group> groups, Set<String> dirty) {
+        PersistentMap<GroupStats> next = previous;
+        for (String key : dirty) {
+            Group group = groups.get(key);
+            next = group == null ? next.minus(key) : next.plus(key, group.stats.summary());
+        }
+        return next;
+    }
+}
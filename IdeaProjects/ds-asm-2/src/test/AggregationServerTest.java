@@ -1,6 +1,8 @@
 import org.example.AggregationServer;
 import org.example.ContentServer;
 import org.example.GETClient;
+import org.example.PutRequest;
+import org.example.WeatherRecord;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -9,10 +11,14 @@ import org.junit.jupiter.api.*;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
 import java.nio.file.*;
 import java.util.concurrent.*;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -43,6 +49,11 @@ public class AggregationServerTest {
             Files.delete(walFile);
         }
 
+        // Delete WAL segments (and files sealed by older versions)
+        try (DirectoryStream<Path> sealed = Files.newDirectoryStream(DATA_DIR, "{updates-*.wal,wal-*.seg}")) {
+            for (Path p : sealed) Files.delete(p);
+        }
+
         // Reset feed.json to []
         Path feedFile = DATA_DIR.resolve("feed.json");
         Files.writeString(feedFile, "[]", StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
@@ -156,8 +167,164 @@ public class AggregationServerTest {
     }
 
 
+    /** Start another AggregationServer with its own port, data dir and options (on the classpath the tests run with) */
+    private static Process startServer(int port, Path dir, String... options) throws Exception {
+        List<String> command = new ArrayList<>(List.of("java", "-cp", System.getProperty("java.class.path"),
+                "org.example.AggregationServer", String.valueOf(port), dir.toString()));
+        command.addAll(List.of(options));
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dir.resolveSibling(dir.getFileName() + ".log").toFile()))
+                .start();
+
+        // wait until it accepts connections (recovery first)
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                new java.net.Socket("localhost", port).close();
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        process.destroyForcibly();
+        throw new IllegalStateException("server on port " + port + " did not start");
+    }
+
+    /**
+     * A server of the test's own: its port, a fresh temp data dir and options, stopped by close()
+     * try (TestServer server = new TestServer(port, "agg_test_x", options...)) { ... }
+     */
+    private static final class TestServer implements AutoCloseable {
+        final int port;
+        final Path dir;
+        private final String[] options;
+        private Process process;
+
+        TestServer(int port, String name, String... options) throws Exception {
+            this.port = port;
+            this.dir = Files.createTempDirectory(name);
+            this.options = options;
+            this.process = startServer(port, dir, options);
+        }
+
+        /** kill -9 and wait until it is gone, the data dir stays as it was */
+        void kill() {
+            process.destroyForcibly();
+            try {
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /** kill -9 (if still running) and start again on the same data dir and options */
+        void restart() throws Exception {
+            kill();
+            process = startServer(port, dir, options);
+        }
+
+        Reply get(String path, String... headers) throws Exception {
+            return request(port, "GET", path, null, headers);
+        }
+
+        Reply put(JsonObject record, long lamport, String source_id) throws Exception {
+            return AggregationServerTest.put(port, record, lamport, source_id);
+        }
+
+        /** A batch PUT (JSON array) of these stations from one source */
+        Reply putBatch(long lamport, String source_id, JsonObject... records) throws Exception {
+            JsonArray body = new JsonArray();
+            for (JsonObject record : records) body.add(record);
+            return request(port, "PUT", "/weather.json", body.toString(),
+                    "Content-Type", "application/json", "X-Lamport-Clock", String.valueOf(lamport), "X-Source-ID", source_id);
+        }
+
+        @Override
+        public void close() {
+            kill();
+        }
+    }
+
+    /** A response: status, headers and body (error bodies too) */
+    private static final class Reply {
+        final int status;
+        final String body;
+        final Map<String, List<String>> headers;
+
+        Reply(int status, String body, Map<String, List<String>> headers) {
+            this.status = status;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        String header(String name) {
+            for (Map.Entry<String, List<String>> h : headers.entrySet()) {
+                if (name.equalsIgnoreCase(h.getKey())) return h.getValue().get(0);
+            }
+            return null;
+        }
+
+        JsonArray array() {
+            return JsonParser.parseString(body).getAsJsonArray();
+        }
+
+        JsonObject object() {
+            return JsonParser.parseString(body).getAsJsonObject();
+        }
+    }
+
+    /** Send any request to any server, headers as name, value pairs */
+    private static Reply request(int port, String method, String path, String body, String... headers) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) URI.create("http://localhost:" + port + path).toURL().openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(5_000);
+        conn.setReadTimeout(20_000);
+        for (int i = 0; i + 1 < headers.length; i += 2) conn.setRequestProperty(headers[i], headers[i + 1]);
+        if (body != null) {
+            conn.setDoOutput(true);
+            byte[] bytes = body.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            conn.setRequestProperty("Content-Length", String.valueOf(bytes.length));
+            try (OutputStream os = conn.getOutputStream()) {
+                os.write(bytes);
+            }
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        String text = in == null ? "" : new String(in.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+        return new Reply(status, text, conn.getHeaderFields());
+    }
+
+    /** PUT one record to any server */
+    private static Reply put(int port, JsonObject record, long lamport, String source_id) throws Exception {
+        return request(port, "PUT", "/weather.json", record.toString(),
+                "Content-Type", "application/json", "X-Lamport-Clock", String.valueOf(lamport), "X-Source-ID", source_id);
+    }
+
+    /** The station with this id in a GET body, null if absent */
+    private static JsonObject find(JsonArray records, String id) {
+        for (int i = 0; i < records.size(); i++) {
+            JsonObject obj = records.get(i).getAsJsonObject();
+            if (obj.has("id") && id.equals(obj.get("id").getAsString())) return obj;
+        }
+        return null;
+    }
+
+    /** An NDJSON body of n stations named prefix0..prefix(n-1) */
+    private static String ndjson(String prefix, int n) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            body.append("{\"id\":\"").append(prefix).append(i).append("\",\"state\":\"SA\",\"air_temp\":\"").append(i % 40).append(".5\"}\n");
+        }
+        return body.toString();
+    }
+
     /** build simple sample weather JSON */
     private JsonObject sampleRecord(String id, double temp) {
+        return sampleRecordStatic(id, temp);
+    }
+
+    private static JsonObject sampleRecordStatic(String id, double temp) {
         JsonObject obj = new JsonObject();
         obj.addProperty("id", id);
         obj.addProperty("air_temp", temp);
@@ -637,4 +804,848 @@ public class AggregationServerTest {
         }
         assertTrue(found10, "Expected to find record from PUT1");
     }
-}
\ No newline at end of file
+
+    // ----------------------------
+    // WRITER BATCHES
+    // ----------------------------
+
+    /**
+     * TEST 15
+     *
+     * One writer drain holding two PUTs for the same station with inverted lamports
+     * PUT-1 (Lamport 9) drained first, PUT-2 (Lamport 8) queued while the writer drained, so it comes out after
+     * The batch is collapsed to one record per station, that must be the one that sorts last by (lamport, arrival)
+     *
+     * Expected: Lamport 9 left standing, in either drain order, and the later arrival wins a lamport tie
+     */
+    @Test
+    @Order(15)
+    public void testCollapseKeepsHighestLamport() {
+        System.out.println("TEST: batch collapse keeps the highest lamport");
+        PutRequest high = unit(9, 1, "IDS_INV", 9.0);
+        PutRequest low = unit(8, 2, "IDS_INV", 8.0);
+
+        assertEquals(9, PutRequest.latest_per_station(List.of(high, low)).get("IDS_INV").lamport,
+                "Lamport 9 must win although Lamport 8 came out of the queue after it");
+        assertEquals(9, PutRequest.latest_per_station(List.of(low, high)).get("IDS_INV").lamport);
+
+        PutRequest tie = unit(9, 3, "IDS_INV", 7.0);
+        assertEquals(7.0, PutRequest.latest_per_station(List.of(tie, high, low)).get("IDS_INV").air_temp,
+                "Same lamport, the later arrival wins");
+    }
+
+    private static PutRequest unit(long lamport, long arrival_seq, String id, double temp) {
+        WeatherRecord record = WeatherRecord.from_json(sampleRecordStatic(id, temp), lamport, "CS1");
+        return new PutRequest(lamport, arrival_seq, List.of(record), "CS1");
+    }
+
+    // ----------------------------
+    // OVERLOAD
+    // ----------------------------
+
+    /**
+     * Many single PUTs, one station each, sent at once behind a big batch that keeps the only writer busy
+     * Returns the reply to each, by station id
+     */
+    private static Map<String, Reply> putsBehindBusyWriter(int port, String prefix, int count) throws Exception {
+        ExecutorService ex = Executors.newFixedThreadPool(count + 1);
+        try {
+            String busy = ndjson(prefix + "BUSY", 5000);
+            ex.submit(() -> request(port, "PUT", "/weather.json", busy,
+                    "Content-Type", "application/x-ndjson", "X-Lamport-Clock", "1", "X-Source-ID", "CSB"));
+            Thread.sleep(20);
+            Map<String, Future<Reply>> pending = new java.util.LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String id = prefix + i;
+                pending.put(id, ex.submit(() -> put(port, sampleRecordStatic(id, 20.0), 2, "CS1")));
+            }
+            Map<String, Reply> replies = new java.util.LinkedHashMap<>();
+            for (Map.Entry<String, Future<Reply>> p : pending.entrySet()) replies.put(p.getKey(), p.getValue().get());
+            return replies;
+        } finally {
+            ex.shutdown();
+        }
+    }
+
+    /**
+     * TEST 16
+     *
+     * A server that queues at most 1 unit per shard, one shard, its writer busy with a big batch
+     * 32 single PUTs at once, most of them find the queue full
+     *
+     * Expected: some PUTs 503 with Retry-After: 1, a 503 PUT is not stored, every other one is 200/201 and stored
+     */
+    @Test
+    @Order(16)
+    public void testOverloadedPutGets503WithRetryAfter() throws Exception {
+        System.out.println("TEST: full queue answers 503 + Retry-After");
+        try (TestServer server = new TestServer(4602, "agg_test_shed", "--shards=1", "--max-queued-puts=1")) {
+            Map<String, Reply> replies = putsBehindBusyWriter(server.port, "IDS_SHED", 32);
+            int shed = 0;
+            for (Map.Entry<String, Reply> r : replies.entrySet()) {
+                Reply reply = r.getValue();
+                int stored = server.get("/weather/" + r.getKey()).status;
+                if (reply.status == 503) {
+                    shed++;
+                    assertEquals("1", reply.header("Retry-After"), "503 should say when to retry");
+                    assertEquals(404, stored, "A PUT answered 503 must not be applied");
+                } else {
+                    assertTrue(reply.status == 200 || reply.status == 201, "PUT should succeed, got " + reply.status);
+                    assertEquals(200, stored, "An acknowledged PUT must be stored");
+                }
+            }
+            assertTrue(shed > 0, "With room for 1 unit some of 32 PUTs should be shed");
+
+            // GETs are never shed
+            assertEquals(200, server.get("/weather.json").status);
+        }
+    }
+
+    /**
+     * TEST 17
+     *
+     * A server whose PUTs may wait 1ms in the queue, one shard, its writer busy with a big batch
+     * 64 single PUTs at once, the writer drops the ones that waited too long when it dequeues them
+     *
+     * Expected: a PUT is either 503 (with Retry-After) and not stored, or 200/201 and stored, never 503 once applied
+     */
+    @Test
+    @Order(17)
+    public void testAppliedPutIsNever503() throws Exception {
+        System.out.println("TEST: only the writer drops expired PUTs");
+        try (TestServer server = new TestServer(4603, "agg_test_deadline", "--shards=1", "--put-deadline-ms=1")) {
+            int shed = 0;
+            for (int round = 0; round < 3; round++) {
+                Map<String, Reply> replies = putsBehindBusyWriter(server.port, "IDS_LATE" + round + "_", 64);
+                for (Map.Entry<String, Reply> r : replies.entrySet()) {
+                    Reply reply = r.getValue();
+                    int stored = server.get("/weather/" + r.getKey()).status;
+                    if (reply.status == 503) {
+                        shed++;
+                        assertEquals("1", reply.header("Retry-After"));
+                        assertEquals(404, stored, "A PUT answered 503 must not be applied");
+                    } else {
+                        assertTrue(reply.status == 200 || reply.status == 201, "PUT should succeed, got " + reply.status);
+                        assertEquals(200, stored, "An acknowledged PUT must be stored");
+                    }
+                }
+            }
+            assertTrue(shed > 0, "PUTs queued behind a busy writer for more than 1ms should be dropped");
+
+            JsonObject metrics = server.get("/metrics").object();
+            assertTrue(metrics.toString().contains("puts_shed_expired"), "Drops are counted");
+        }
+    }
+
+    // ----------------------------
+    // EXPIRY + RECOVERY
+    // ----------------------------
+
+    /**
+     * TEST 18
+     *
+     * Expiry across restarts, on a server expiring sources after 2s
+     * PUT-1 (Lamport 5) for IDS_EXP from CS_EXP, then the server is killed and restarted at once
+     * The recovered source must still expire, and the removal must survive another kill + restart (WAL tombstone)
+     * PUT-2 (Lamport 1) for IDS_EXP after it expired is a new record, it must also survive a restart
+     *
+     * Expected: IDS_EXP recovered, gone ~2s later, still gone after a restart, back with Lamport 1 after PUT-2 and a restart
+     */
+    @Test
+    @Order(18)
+    public void testExpiryIsLoggedAndRecoveredSourcesExpire() throws Exception {
+        System.out.println("TEST: expiry survives restarts");
+        try (TestServer server = new TestServer(4604, "agg_test_expiry", "--expiry-ms=2000")) {
+            assertEquals(201, server.put(sampleRecordStatic("IDS_EXP", 12.5), 5, "CS_EXP").status);
+
+            // kill -9 and restart: the record comes back from the WAL, its source gets a fresh deadline
+            server.restart();
+            assertEquals(200, server.get("/weather/IDS_EXP").status, "Record should be recovered");
+
+            Thread.sleep(4_500);
+            assertEquals(404, server.get("/weather/IDS_EXP").status, "Recovered source should expire");
+
+            server.restart();
+            assertEquals(404, server.get("/weather/IDS_EXP").status, "Expired record must not come back on replay");
+
+            // a lower lamport after the removal is a new record, also after replay
+            assertEquals(201, server.put(sampleRecordStatic("IDS_EXP", 3.0), 1, "CS_EXP").status);
+            server.restart();
+            Reply back = server.get("/weather/IDS_EXP");
+            assertEquals(200, back.status);
+            assertEquals(1, back.object().get("lamport").getAsLong());
+        }
+    }
+
+    /**
+     * TEST 19
+     *
+     * PUT-1 with a boolean id {"id": true}, read the same way a WAL/snapshot record is: the id is "true"
+     *
+     * Expected: 201 --------- Get: /weather/true is the station
+     */
+    @Test
+    @Order(19)
+    public void testBooleanIdIsReadAsString() throws Exception {
+        System.out.println("TEST: boolean id");
+        try (TestServer server = new TestServer(4618, "agg_test_boolean_id")) {
+            Reply created = request(server.port, "PUT", "/weather.json", "{\"id\":true,\"air_temp\":4.5}",
+                    "Content-Type", "application/json", "X-Lamport-Clock", "1", "X-Source-ID", "CS_BOOL");
+            assertEquals(201, created.status, "A boolean id should be accepted, not fail the parse");
+
+            Reply station = server.get("/weather/true");
+            assertEquals(200, station.status);
+            assertEquals("true", station.object().get("id").getAsString());
+            assertEquals(4.5, station.object().get("air_temp").getAsDouble());
+
+            // and read back the same way from the WAL
+            server.restart();
+            assertEquals("true", server.get("/weather/true").object().get("id").getAsString());
+        }
+    }
+
+    // ----------------------------
+    // BATCHES, CACHING, DELTAS, SUBSCRIPTIONS, QUERIES, AGGREGATES
+    // ----------------------------
+
+    /** A station with a state and an air temperature */
+    private static JsonObject stateRecord(String id, String state, double temp) {
+        JsonObject obj = sampleRecordStatic(id, temp);
+        obj.addProperty("state", state);
+        return obj;
+    }
+
+    /** The ids in a GET body, sorted */
+    private static List<String> ids(JsonArray records) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) ids.add(records.get(i).getAsJsonObject().get("id").getAsString());
+        ids.sort(Comparator.naturalOrder());
+        return ids;
+    }
+
+    /**
+     * TEST 20
+     *
+     * NDJSON batch PUT: two new stations and a line without an id, then the same batch again
+     *
+     * Expected: 200 with results in request order: 201, 201, 500, then 200, 200, 500 --------- Get: both stations
+     */
+    @Test
+    @Order(20)
+    public void testNdjsonBatchStatuses() throws Exception {
+        System.out.println("TEST: NDJSON batch statuses");
+        try (TestServer server = new TestServer(4605, "agg_test_batch")) {
+            String body = "{\"id\":\"IDS_B1\",\"air_temp\":1.5}\n{\"id\":\"IDS_B2\",\"air_temp\":2.5}\n{\"air_temp\":3.5}\n";
+            int[][] expected = {{201, 201, 500}, {200, 200, 500}};
+            for (int round = 0; round < 2; round++) {
+                Reply reply = request(server.port, "PUT", "/weather.json", body,
+                        "Content-Type", "application/x-ndjson", "X-Lamport-Clock", String.valueOf(round + 1), "X-Source-ID", "CS1");
+                assertEquals(200, reply.status, "A batch is answered 200 with a status per record");
+                JsonArray results = reply.object().getAsJsonArray("results");
+                assertEquals(3, results.size());
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(expected[round][i], results.get(i).getAsJsonObject().get("status").getAsInt(), "record " + i);
+                }
+                assertEquals("IDS_B1", results.get(0).getAsJsonObject().get("id").getAsString());
+            }
+            assertEquals(List.of("IDS_B1", "IDS_B2"), ids(server.get("/weather.json").array()));
+        }
+    }
+
+    /**
+     * TEST 21
+     *
+     * GET twice, the second time with If-None-Match: the first ETag, then PUT and GET again with it
+     *
+     * Expected: 200 + ETag, then 304 with no body, then 200 with a new ETag; gzip has its own ETag;
+     *           plain, gzip and 304 answers all carry Vary: Accept-Encoding
+     */
+    @Test
+    @Order(21)
+    public void testEtagNotModified() throws Exception {
+        System.out.println("TEST: ETag / 304");
+        try (TestServer server = new TestServer(4606, "agg_test_etag")) {
+            server.put(sampleRecordStatic("IDS_E1", 10.0), 1, "CS1");
+            Reply first = server.get("/weather.json");
+            assertEquals(200, first.status);
+            String etag = first.header("ETag");
+            assertNotNull(etag, "GET should carry an ETag");
+            assertEquals("Accept-Encoding", first.header("Vary"));
+
+            Reply same = server.get("/weather.json", "If-None-Match", etag);
+            assertEquals(304, same.status, "Unchanged feed should be 304");
+            assertEquals("", same.body);
+            assertEquals(etag, same.header("ETag"));
+            assertEquals("Accept-Encoding", same.header("Vary"));
+
+            // lookups of the same view share the tag
+            assertEquals(304, server.get("/weather/IDS_E1", "If-None-Match", etag).status);
+
+            Reply gzip = server.get("/weather.json", "Accept-Encoding", "gzip");
+            assertNotEquals(etag, gzip.header("ETag"), "gzip variant has its own ETag");
+            assertEquals("gzip", gzip.header("Content-Encoding"));
+            assertEquals("Accept-Encoding", gzip.header("Vary"), "Caches must not hand the gzip body to other clients");
+
+            server.put(sampleRecordStatic("IDS_E1", 11.0), 2, "CS1");
+            Reply changed = server.get("/weather.json", "If-None-Match", etag);
+            assertEquals(200, changed.status, "A PUT changes the ETag");
+            assertNotEquals(etag, changed.header("ETag"));
+            assertEquals(11.0, find(changed.array(), "IDS_E1").get("air_temp").getAsDouble());
+        }
+    }
+
+    /**
+     * TEST 22
+     *
+     * Delta GET: ?since=0 for everything, then ?since=<watermark> after one station changed and one expired
+     * CS_LIVE keeps sending, CS_GONE goes quiet and expires (server expires after 1.5s)
+     *
+     * Expected: the delta has IDS_LIVE in records and IDS_GONE in deleted; another epoch gets a full resync
+     */
+    @Test
+    @Order(22)
+    public void testDeltaGetWithTombstones() throws Exception {
+        System.out.println("TEST: ?since= delta and tombstones");
+        try (TestServer server = new TestServer(4607, "agg_test_delta", "--expiry-ms=1500")) {
+            server.put(sampleRecordStatic("IDS_LIVE", 1.0), 1, "CS_LIVE");
+            server.put(sampleRecordStatic("IDS_GONE", 2.0), 1, "CS_GONE");
+
+            JsonObject all = server.get("/weather.json?since=0").object();
+            assertFalse(all.get("full").getAsBoolean());
+            assertEquals(2, all.getAsJsonArray("records").size());
+            long watermark = all.get("watermark").getAsLong();
+            String epoch = all.get("epoch").getAsString();
+
+            for (int i = 0; i < 8; i++) {
+                server.put(sampleRecordStatic("IDS_LIVE", 10.0 + i), 2 + i, "CS_LIVE");
+                Thread.sleep(500);
+            }
+
+            JsonObject delta = server.get("/weather.json?since=" + watermark + "&epoch=" + epoch).object();
+            assertFalse(delta.get("full").getAsBoolean(), "Change logs still reach back, no resync");
+            assertEquals(List.of("IDS_LIVE"), ids(delta.getAsJsonArray("records")));
+            assertEquals(17.0, delta.getAsJsonArray("records").get(0).getAsJsonObject().get("air_temp").getAsDouble());
+            assertEquals("IDS_GONE", delta.getAsJsonArray("deleted").get(0).getAsString(), "Expired station is a tombstone");
+            assertTrue(delta.get("watermark").getAsLong() > watermark);
+
+            // nothing changed since the latest watermark
+            JsonObject none = server.get("/weather.json?since=" + delta.get("watermark").getAsLong() + "&epoch=" + epoch).object();
+            assertEquals(0, none.getAsJsonArray("records").size());
+            assertEquals(0, none.getAsJsonArray("deleted").size());
+
+            JsonObject resync = server.get("/weather.json?since=" + watermark + "&epoch=other").object();
+            assertTrue(resync.get("full").getAsBoolean(), "A watermark from another run gets a full resync");
+            assertEquals(List.of("IDS_LIVE"), ids(resync.getAsJsonArray("records")));
+        }
+    }
+
+    /**
+     * TEST 23
+     *
+     * SSE subscription: the first event holds the feed, a PUT afterwards arrives as a delta event
+     *
+     * Expected: text/event-stream, event 1 has IDS_S1, a later event has IDS_S2 and an id of "<epoch>:<watermark>"
+     */
+    @Test
+    @Order(23)
+    public void testServerSentEvents() throws Exception {
+        System.out.println("TEST: SSE subscription");
+        try (TestServer server = new TestServer(4608, "agg_test_sse");
+             java.net.Socket socket = new java.net.Socket("localhost", server.port)) {
+            server.put(sampleRecordStatic("IDS_S1", 1.0), 1, "CS1");
+            socket.setSoTimeout(10_000);
+            socket.getOutputStream().write(("GET /weather.json HTTP/1.1\r\nHost: localhost\r\nAccept: text/event-stream\r\n\r\n")
+                    .getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), java.nio.charset.StandardCharsets.UTF_8));
+
+            assertTrue(in.readLine().startsWith("HTTP/1.1 200"));
+            boolean event_stream = false;
+            for (String line; !(line = in.readLine()).isEmpty(); ) {
+                if (line.toLowerCase().startsWith("content-type: text/event-stream")) event_stream = true;
+            }
+            assertTrue(event_stream, "Subscription should be text/event-stream");
+
+            JsonObject first = nextEvent(in);
+            assertEquals(List.of("IDS_S1"), ids(first.getAsJsonArray("records")));
+
+            server.put(sampleRecordStatic("IDS_S2", 2.0), 2, "CS1");
+            JsonObject next = nextEvent(in);
+            while (next.getAsJsonArray("records").size() == 0) next = nextEvent(in);
+            assertEquals(List.of("IDS_S2"), ids(next.getAsJsonArray("records")), "Only the change is pushed");
+            assertFalse(next.get("full").getAsBoolean());
+        }
+    }
+
+    /** data: of the next SSE event (heartbeat comments skipped), checking its id: line */
+    private static JsonObject nextEvent(BufferedReader in) throws IOException {
+        String id = null;
+        for (String line; (line = in.readLine()) != null; ) {
+            if (line.startsWith("id:")) id = line.substring(3).trim();
+            if (line.startsWith("data:")) {
+                assertNotNull(id, "Every event has an id");
+                assertTrue(id.matches(".+:\\d+"), "Event id is <epoch>:<watermark>");
+                return JsonParser.parseString(line.substring(5).trim()).getAsJsonObject();
+            }
+        }
+        throw new EOFException("stream ended");
+    }
+
+    /**
+     * TEST 24
+     *
+     * Point lookup, ?state= / ?source_id= filters and ?fields= projection
+     * CS1 sends IDS_Q1 (SA) and IDS_Q2 (VIC), CS2 sends IDS_Q3 (SA)
+     *
+     * Expected: /weather/IDS_Q1 is the station, unknown id 404, filters return only the matching stations,
+     *           fields keeps only the keys asked for
+     */
+    @Test
+    @Order(24)
+    public void testLookupFiltersAndFields() throws Exception {
+        System.out.println("TEST: lookup, filters and fields");
+        try (TestServer server = new TestServer(4609, "agg_test_query")) {
+            server.putBatch(1, "CS1", stateRecord("IDS_Q1", "SA", 1.0), stateRecord("IDS_Q2", "VIC", 2.0));
+            server.putBatch(1, "CS2", stateRecord("IDS_Q3", "SA", 3.0));
+
+            Reply one = server.get("/weather/IDS_Q1");
+            assertEquals(200, one.status);
+            assertEquals("SA", one.object().get("state").getAsString());
+            assertEquals("CS1", one.object().get("source_id").getAsString());
+            assertEquals(404, server.get("/weather/IDS_NONE").status);
+
+            assertEquals(List.of("IDS_Q1", "IDS_Q3"), ids(server.get("/weather.json?state=SA").array()));
+            assertEquals(List.of("IDS_Q3"), ids(server.get("/weather.json?source_id=CS2").array()));
+            assertEquals(List.of("IDS_Q1"), ids(server.get("/weather.json?state=SA&source_id=CS1").array()));
+            assertEquals(0, server.get("/weather.json?state=NT").array().size());
+
+            JsonArray projected = server.get("/weather.json?state=VIC&fields=id,air_temp").array();
+            assertEquals(1, projected.size());
+            JsonObject q2 = projected.get(0).getAsJsonObject();
+            assertEquals(java.util.Set.of("id", "air_temp"), q2.keySet(), "Only the requested fields");
+            assertEquals(2.0, q2.get("air_temp").getAsDouble());
+
+            assertEquals(java.util.Set.of("id"), server.get("/weather/IDS_Q3?fields=id").object().keySet());
+        }
+    }
+
+    /**
+     * TEST 25
+     *
+     * GET /aggregates: per state and per source stats, kept up to date as stations change
+     * SA: 10 and 20, VIC: 30; then the SA station at 10 moves to 40
+     *
+     * Expected: SA count 2 sum 30 min 10 max 20 avg 15, then min 20 max 40; VIC count 1; by_source_id CS1 count 3
+     */
+    @Test
+    @Order(25)
+    public void testAggregates() throws Exception {
+        System.out.println("TEST: aggregates");
+        try (TestServer server = new TestServer(4610, "agg_test_aggregates")) {
+            server.putBatch(1, "CS1", stateRecord("IDS_A1", "SA", 10.0), stateRecord("IDS_A2", "SA", 20.0),
+                    stateRecord("IDS_A3", "VIC", 30.0));
+
+            JsonObject aggregates = server.get("/aggregates").object();
+            JsonObject sa = aggregates.getAsJsonObject("by_state").getAsJsonObject("SA").getAsJsonObject("air_temp");
+            assertEquals(2, sa.get("count").getAsInt());
+            assertEquals(30.0, sa.get("sum").getAsDouble(), 1e-9);
+            assertEquals(10.0, sa.get("min").getAsDouble());
+            assertEquals(20.0, sa.get("max").getAsDouble());
+            assertEquals(15.0, sa.get("avg").getAsDouble(), 1e-9);
+            assertEquals(1, aggregates.getAsJsonObject("by_state").getAsJsonObject("VIC").getAsJsonObject("air_temp").get("count").getAsInt());
+            assertEquals(3, aggregates.getAsJsonObject("by_source_id").getAsJsonObject("CS1").getAsJsonObject("air_temp").get("count").getAsInt());
+            assertEquals(3, aggregates.get("stations").getAsInt());
+
+            // replacing the minimum takes it out of the stats
+            server.put(stateRecord("IDS_A1", "SA", 40.0), 2, "CS1");
+            sa = server.get("/aggregates").object()
+                    .getAsJsonObject("by_state").getAsJsonObject("SA").getAsJsonObject("air_temp");
+            assertEquals(2, sa.get("count").getAsInt());
+            assertEquals(20.0, sa.get("min").getAsDouble());
+            assertEquals(40.0, sa.get("max").getAsDouble());
+            assertEquals(30.0, sa.get("avg").getAsDouble(), 1e-9);
+        }
+    }
+
+    // ----------------------------
+    // HISTORY
+    // ----------------------------
+
+    /** A station observed at time (yyyyMMddHHmmss) */
+    private static JsonObject observation(String id, String time, double temp) {
+        JsonObject obj = sampleRecordStatic(id, temp);
+        obj.addProperty("local_date_time_full", time);
+        return obj;
+    }
+
+    /** air_temp of each history entry, oldest first */
+    private static List<Double> historyTemps(int port, String query) throws Exception {
+        JsonArray history = request(port, "GET", "/weather/IDS_H/history" + query, null).object().getAsJsonArray("history");
+        List<Double> temps = new ArrayList<>();
+        for (int i = 0; i < history.size(); i++) temps.add(history.get(i).getAsJsonObject().get("air_temp").getAsDouble());
+        return temps;
+    }
+
+    /**
+     * TEST 26
+     *
+     * Five PUTs for IDS_H: CS1 Lamport 1 (16:00), CS1 Lamport 2 (16:30), CS2 Lamport 2 (17:00, same lamport, later),
+     * CS1 Lamport 1 again (17:30, stale), CS1 Lamport 3 (18:00)
+     *
+     * Expected: history in (lamport, arrival) order without the stale PUT: 10, 11, 12, 13
+     *           ?from=&to= keeps the entries whose local_date_time_full is in range (both inclusive)
+     *           Unknown station 404, non-numeric bound 400
+     */
+    @Test
+    @Order(26)
+    public void testHistoryOrderAndRange() throws Exception {
+        System.out.println("TEST: station history");
+        try (TestServer server = new TestServer(4611, "agg_test_history")) {
+            assertEquals(201, server.put(observation("IDS_H", "20230715160000", 10.0), 1, "CS1").status);
+            assertEquals(200, server.put(observation("IDS_H", "20230715163000", 11.0), 2, "CS1").status);
+            assertEquals(200, server.put(observation("IDS_H", "20230715170000", 12.0), 2, "CS2").status);
+            assertEquals(200, server.put(observation("IDS_H", "20230715173000", 99.0), 1, "CS1").status);
+            assertEquals(200, server.put(observation("IDS_H", "20230715180000", 13.0), 3, "CS1").status);
+
+            Reply all = server.get("/weather/IDS_H/history");
+            assertEquals(200, all.status);
+            assertEquals("IDS_H", all.object().get("id").getAsString());
+            JsonArray history = all.object().getAsJsonArray("history");
+            List<Long> lamports = new ArrayList<>();
+            for (int i = 0; i < history.size(); i++) lamports.add(history.get(i).getAsJsonObject().get("lamport").getAsLong());
+            assertEquals(List.of(1L, 2L, 2L, 3L), lamports, "Oldest first, by lamport then arrival");
+            assertEquals(List.of(10.0, 11.0, 12.0, 13.0), historyTemps(server.port, ""), "The stale PUT is not an observation");
+            assertEquals("20230715180000", history.get(3).getAsJsonObject().get("local_date_time_full").getAsString());
+
+            assertEquals(List.of(11.0, 12.0), historyTemps(server.port, "?from=20230715163000&to=20230715170000"));
+            assertEquals(List.of(13.0), historyTemps(server.port, "?from=20230715175000"));
+            assertEquals(List.of(10.0), historyTemps(server.port, "?to=20230715160000"));
+            assertEquals(List.of(), historyTemps(server.port, "?from=20240101000000"));
+
+            assertEquals(404, server.get("/weather/IDS_NONE/history").status);
+            assertEquals(400, server.get("/weather/IDS_H/history?from=yesterday").status);
+        }
+    }
+
+    // ----------------------------
+    // REPLICATION
+    // ----------------------------
+
+    /** Poll until the check holds, false if it still does not after timeoutMs */
+    private static boolean eventually(long timeoutMs, Callable<Boolean> check) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            if (check.call()) return true;
+            Thread.sleep(100);
+        }
+        return check.call();
+    }
+
+    /**
+     * TEST 27
+     *
+     * Primary (--replication-port) and a backup following it (--failover-ms=1500), both with --expiry-ms=3000
+     * 1. PUT IDS_REP1 to the primary                  -> shipped to the backup, which refuses PUTs (503)
+     * 2. Primary killed 2.5s after that PUT           -> backup promotes itself and takes PUTs
+     *    By then IDS_REP1 was replicated more than --expiry-ms ago, but its content server could not send to anyone
+     *    meanwhile, so the promoted backup gives it a whole expiry period from promotion instead of dropping it at once
+     * 3. Old primary restarted on its old data and ports -> fenced by the new primary's term, steps down (503 to PUTs)
+     *
+     * Expected: as above, and IDS_REP1 does expire on the new primary once that period is over
+     */
+    @Test
+    @Order(27)
+    public void testReplicationShipFailoverAndFence() throws Exception {
+        System.out.println("TEST: replication, failover and fencing");
+        try (TestServer primary = new TestServer(4612, "agg_test_primary", "--replication-port=5612", "--expiry-ms=3000");
+             TestServer backup = new TestServer(4613, "agg_test_backup",
+                     "--backup-of=localhost:5612", "--failover-ms=1500", "--expiry-ms=3000")) {
+            // 1. ship
+            assertEquals(201, primary.put(sampleRecordStatic("IDS_REP1", 21.0), 1, "CS_OLD").status);
+            assertTrue(eventually(5_000, () -> find(backup.get("/weather.json").array(), "IDS_REP1") != null),
+                    "Backup should receive the primary's records");
+            assertEquals(503, backup.put(sampleRecordStatic("IDS_REP2", 22.0), 2, "CS_NEW").status, "Backup is read only");
+
+            // 2. failover
+            Thread.sleep(2_500);
+            primary.kill();
+            assertTrue(eventually(10_000, () -> backup.put(sampleRecordStatic("IDS_REP2", 22.0), 2, "CS_NEW").status == 201),
+                    "Backup should take PUTs once promoted");
+            long promoted = System.currentTimeMillis();
+            while (System.currentTimeMillis() - promoted < 1_500) {
+                assertNotNull(find(backup.get("/weather.json").array(), "IDS_REP1"),
+                        "Sources get a whole expiry period from promotion");
+                Thread.sleep(250);
+            }
+
+            // 3. fence
+            primary.restart();
+            assertTrue(eventually(10_000, () -> primary.put(sampleRecordStatic("IDS_REP3", 23.0), 3, "CS_OLD").status == 503),
+                    "Old primary should step down once it hears of the new term");
+
+            assertTrue(eventually(6_000, () -> find(backup.get("/weather.json").array(), "IDS_REP1") == null),
+                    "The quiet source expires on the new primary");
+        }
+    }
+
+    /**
+     * TEST 28
+     *
+     * HEAD on a keep-alive connection, on both front ends (NIO and --io=blocking), pipelined in one write:
+     * HEAD /weather.json, GET of a known id, then a HEAD with a malformed Content-Length
+     *
+     * Expected: a 400 head with a Content-Length but no body, the GET after it read intact,
+     *           then a 400 head with no body either and the connection closed
+     */
+    @Test
+    @Order(28)
+    public void testHeadHasNoBody() throws Exception {
+        System.out.println("TEST: answers to HEAD carry no body");
+        int[] ports = {4614, 4615};
+        String[][] options = {{}, {"--io=blocking"}};
+        for (int i = 0; i < ports.length; i++) {
+            try (TestServer server = new TestServer(ports[i], "agg_test_head", options[i]);
+                 java.net.Socket socket = new java.net.Socket("localhost", server.port)) {
+                server.put(sampleRecordStatic("IDS_H1", 1.0), 1, "CS1");
+                socket.setSoTimeout(10_000);
+                socket.getOutputStream().write(("HEAD /weather.json HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        + "GET /weather/IDS_H1 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        + "HEAD /weather.json HTTP/1.1\r\nHost: localhost\r\nContent-Length: lots\r\n\r\n")
+                        .getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+
+                List<String> head = rawHead(in);
+                assertTrue(head.get(0).startsWith("HTTP/1.1 400"), head.get(0));
+                assertTrue(contentLength(head) > 0, "The head still describes the body it leaves out");
+
+                head = rawHead(in);
+                assertTrue(head.get(0).startsWith("HTTP/1.1 200"), "Next head follows with no body between: " + head.get(0));
+                JsonObject record = JsonParser.parseString(new String(in.readNBytes(contentLength(head)),
+                        java.nio.charset.StandardCharsets.UTF_8)).getAsJsonObject();
+                assertEquals("IDS_H1", record.get("id").getAsString());
+
+                head = rawHead(in);
+                assertTrue(head.get(0).startsWith("HTTP/1.1 400"), "Malformed HEAD: " + head.get(0));
+                assertEquals(-1, in.read(), "The 400 to a malformed HEAD has no body either");
+            }
+        }
+    }
+
+    /** Status line and header lines of the next response on a raw socket, up to the blank line */
+    private static List<String> rawHead(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        for (int b; (b = in.read()) >= 0; ) {
+            if (b == '\r') continue;
+            if (b != '\n') {
+                line.append((char) b);
+            } else if (line.length() == 0) {
+                return lines;
+            } else {
+                lines.add(line.toString());
+                line.setLength(0);
+            }
+        }
+        throw new EOFException("connection closed inside a head: " + lines);
+    }
+
+    private static int contentLength(List<String> head) {
+        for (String line : head) {
+            if (line.toLowerCase().startsWith("content-length:")) return Integer.parseInt(line.substring(15).trim());
+        }
+        return fail("No Content-Length in " + head);
+    }
+
+    /**
+     * TEST 29
+     *
+     * A feed bigger than --stream-get-records=50, on both front ends: 300 stations in one NDJSON batch
+     * Full GET, GET with Accept-Encoding: gzip and GET ?fields=id, then the same GET as HTTP/1.0
+     *
+     * Expected: HTTP/1.1 bodies are Transfer-Encoding: chunked with no Content-Length, Vary: Accept-Encoding, and hold all 300 stations
+     *           (gzip decodes to the same, fields keeps only id); HTTP/1.0 gets the whole body with a Content-Length
+     */
+    @Test
+    @Order(29)
+    public void testBigFeedIsChunked() throws Exception {
+        System.out.println("TEST: big feeds are sent chunked");
+        int[] ports = {4616, 4617};
+        String[][] options = {{"--stream-get-records=50"}, {"--stream-get-records=50", "--io=blocking"}};
+        for (int i = 0; i < ports.length; i++) {
+            try (TestServer server = new TestServer(ports[i], "agg_test_chunked", options[i])) {
+                assertEquals(200, request(server.port, "PUT", "/weather.json", ndjson("IDS_C", 300),
+                        "Content-Type", "application/x-ndjson", "X-Lamport-Clock", "1", "X-Source-ID", "CS1").status);
+
+                Reply full = server.get("/weather.json");
+                assertEquals("chunked", full.header("Transfer-Encoding"));
+                assertNull(full.header("Content-Length"), "A chunked body has no length up front");
+                assertEquals("Accept-Encoding", full.header("Vary"));
+                assertEquals(300, full.array().size());
+                assertEquals(7.5, find(full.array(), "IDS_C7").get("air_temp").getAsDouble());
+
+                HttpURLConnection conn = (HttpURLConnection) URI.create("http://localhost:" + server.port + "/weather.json")
+                        .toURL().openConnection();
+                conn.setRequestProperty("Accept-Encoding", "gzip");
+                assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+                assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+                assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+                try (InputStream in = new java.util.zip.GZIPInputStream(conn.getInputStream())) {
+                    JsonArray unzipped = JsonParser.parseString(new String(in.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8)).getAsJsonArray();
+                    assertEquals(ids(full.array()), ids(unzipped), "gzip chunks decode to the same feed");
+                }
+
+                JsonArray projected = server.get("/weather.json?fields=id").array();
+                assertEquals(300, projected.size());
+                assertEquals(java.util.Set.of("id"), projected.get(0).getAsJsonObject().keySet());
+
+                try (java.net.Socket socket = new java.net.Socket("localhost", server.port)) {
+                    socket.setSoTimeout(10_000);
+                    socket.getOutputStream().write("GET /weather.json HTTP/1.0\r\n\r\n".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    List<String> head = rawHead(in);
+                    assertTrue(head.get(0).endsWith(" 200 OK"), head.get(0));
+                    JsonArray whole = JsonParser.parseString(new String(in.readNBytes(contentLength(head)),
+                            java.nio.charset.StandardCharsets.UTF_8)).getAsJsonArray();
+                    assertEquals(300, whole.size(), "HTTP/1.0 cannot take chunks, it gets the whole body");
+                }
+            }
+        }
+    }
+
+    /** One counter or gauge from GET /metrics, 0 for a counter not counted yet */
+    private static long metric(TestServer server, String name) throws Exception {
+        JsonObject metrics = server.get("/metrics").object();
+        return metrics.has(name) ? metrics.get(name).getAsLong() : 0;
+    }
+
+    /**
+     * TEST 30
+     *
+     * A large expiry sweep on a server expiring sources after 3s: 100000 stations from CS_QUIET (NDJSON batches),
+     * then only CS_LIVE keeps sending, one new station per PUT (IDS_LIVE0, IDS_LIVE1 ..., all over the shards)
+     * The PUTs go on while the sweep logs its tombstones and waits for them to sync (GET /metrics: stations_expiring > 0)
+     *
+     * Expected: a PUT from CS_LIVE completes (201) with stations_expiring still > 0 before and after it,
+     *           then every CS_QUIET station is gone and every IDS_LIVE station is still there
+     */
+    @Test
+    @Order(30)
+    public void testPutsCompleteDuringExpirySweep() throws Exception {
+        System.out.println("TEST: PUTs complete during a large expiry sweep");
+        int stations = 100_000;
+        try (TestServer server = new TestServer(4619, "agg_test_sweep", "--expiry-ms=3000")) {
+            for (int i = 0; i < stations; i += 25_000) {
+                assertEquals(200, request(server.port, "PUT", "/weather.json", ndjson("IDS_S" + i + "_", 25_000),
+                        "Content-Type", "application/x-ndjson", "X-Lamport-Clock", "1", "X-Source-ID", "CS_QUIET").status);
+            }
+
+            // keep CS_LIVE alive, and catch a PUT answered inside the sweep
+            List<String> live = new ArrayList<>();
+            boolean during = false;
+            long deadline = System.currentTimeMillis() + 20_000;
+            while (!during && System.currentTimeMillis() < deadline && metric(server, "stations_expired") == 0) {
+                boolean before = metric(server, "stations_expiring") > 0;
+                String id = "IDS_LIVE" + live.size();
+                assertEquals(201, server.put(sampleRecordStatic(id, 1.5), 1, "CS_LIVE").status);
+                live.add(id);
+                during = before && metric(server, "stations_expiring") > 0;
+            }
+            assertTrue(during, "A PUT should complete while the sweep's tombstones are logged and synced");
+
+            assertTrue(eventually(20_000, () -> metric(server, "stations_expired") == stations));
+            assertEquals(0, metric(server, "stations_expiring"));
+            live.sort(Comparator.naturalOrder());
+            assertEquals(live, ids(server.get("/weather.json").array()));
+        }
+    }
+
+    /**
+     * TEST 31
+     *
+     * A WAL that cannot be written: a directory squats on the name of the first segment (wal-...01.seg)
+     * PUT-1 for IDS_WAL, then the directory is removed and PUT-2 for IDS_WAL is sent, then a restart
+     *
+     * Expected: PUT-1 is answered 500 (not left hanging) and not stored, PUT-2 is 201 and survives the restart
+     */
+    @Test
+    @Order(31)
+    public void testWalFailureAnswers500() throws Exception {
+        System.out.println("TEST: a PUT the WAL cannot hold is a 500");
+        try (TestServer server = new TestServer(4620, "agg_test_wal_fail")) {
+            Path squatter = Files.createDirectory(server.dir.resolve("wal-00000000000000000001.seg"));
+            assertEquals(500, server.put(sampleRecordStatic("IDS_WAL", 1.0), 1, "CS_WAL").status);
+            assertEquals(404, server.get("/weather/IDS_WAL").status, "A PUT that was not logged must not be stored");
+
+            // the WAL can be written again, the next PUT goes through as usual
+            Files.delete(squatter);
+            assertEquals(201, server.put(sampleRecordStatic("IDS_WAL", 2.0), 2, "CS_WAL").status);
+            server.restart();
+            assertEquals(2.0, server.get("/weather/IDS_WAL").object().get("air_temp").getAsDouble());
+        }
+    }
+
+    /**
+     * TEST 32
+     *
+     * A data dir holding an empty updates.wal (as the old text WAL left it), then a restart on it
+     *
+     * Expected: the empty file is not converted or deleted and no conversion is logged, PUTs still work
+     */
+    @Test
+    @Order(32)
+    public void testEmptyLegacyWalIsLeftAlone() throws Exception {
+        System.out.println("TEST: an empty updates.wal is not converted");
+        try (TestServer server = new TestServer(4621, "agg_test_legacy_wal")) {
+            Path legacy = Files.createFile(server.dir.resolve("updates.wal"));
+            server.restart();
+            assertTrue(Files.exists(legacy), "An empty updates.wal must not be deleted");
+            String log = Files.readString(server.dir.resolveSibling(server.dir.getFileName() + ".log"));
+            assertFalse(log.contains("converted"), "Nothing was converted, so nothing is logged: " + log);
+            assertEquals(201, server.put(sampleRecordStatic("IDS_LEGACY", 1.0), 1, "CS1").status);
+        }
+    }
+
+    /**
+     * TEST 33
+     *
+     * GET /aggregates with readings at the edge of what the stats hold
+     * NT: IDS_BIG1 at 999999999999999 (too big to sum in 1e-7 units) and IDS_BIG2 at 12.5, then IDS_BIG1 moves to 5.5
+     * WA: 20 stations at 900000000000 each, a sum no 64 bit count of 1e-7 units can hold
+     *
+     * Expected: NT count 1 sum 12.5 (the huge reading is left out), then count 2 sum 18;
+     *           WA count 20, sum exactly 18000000000000, avg 900000000000
+     */
+    @Test
+    @Order(33)
+    public void testAggregatesOfLargeReadings() throws Exception {
+        System.out.println("TEST: aggregates of large readings");
+        try (TestServer server = new TestServer(4622, "agg_test_large_readings")) {
+            StringBuilder body = new StringBuilder();
+            body.append("{\"id\":\"IDS_BIG1\",\"state\":\"NT\",\"air_temp\":999999999999999}\n");
+            body.append("{\"id\":\"IDS_BIG2\",\"state\":\"NT\",\"air_temp\":12.5}\n");
+            for (int i = 0; i < 20; i++) {
+                body.append("{\"id\":\"IDS_WA").append(i).append("\",\"state\":\"WA\",\"air_temp\":900000000000}\n");
+            }
+            assertEquals(200, request(server.port, "PUT", "/weather.json", body.toString(),
+                    "Content-Type", "application/x-ndjson", "X-Lamport-Clock", "1", "X-Source-ID", "CS1").status);
+            assertEquals(999999999999999L, server.get("/weather/IDS_BIG1").object().get("air_temp").getAsLong(),
+                    "The reading itself is stored as sent");
+
+            JsonObject by_state = server.get("/aggregates").object().getAsJsonObject("by_state");
+            JsonObject nt = by_state.getAsJsonObject("NT").getAsJsonObject("air_temp");
+            assertEquals(1, nt.get("count").getAsInt(), "A reading too big for the stats is left out");
+            assertEquals("12.5", nt.get("sum").getAsString());
+            assertEquals("12.5", nt.get("max").getAsString());
+            JsonObject wa = by_state.getAsJsonObject("WA").getAsJsonObject("air_temp");
+            assertEquals(20, wa.get("count").getAsInt());
+            assertEquals("18000000000000", wa.get("sum").getAsString());
+            assertEquals(9e11, wa.get("avg").getAsDouble(), 1e-3);
+
+            // the left out reading is replaced by one that counts
+            server.put(stateRecord("IDS_BIG1", "NT", 5.5), 2, "CS1");
+            nt = server.get("/aggregates").object().getAsJsonObject("by_state").getAsJsonObject("NT").getAsJsonObject("air_temp");
+            assertEquals(2, nt.get("count").getAsInt());
+            assertEquals("18", nt.get("sum").getAsString());
+            assertEquals("5.5", nt.get("min").getAsString());
+        }
+    }
+}
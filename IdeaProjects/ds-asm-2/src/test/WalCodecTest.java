@@ -0,0 +1,459 @@
+import org.example.PersistenceManager;
+import org.example.WalCodec;
+import org.example.WalSegment;
+import org.example.WeatherRecord;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the binary WAL: frame codec, torn records, crash recovery, segments and compaction
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class WalCodecTest {
+
+    // ----------------------------
+    // Ultility Setup
+    // ----------------------------
+
+    private static JsonObject payload(String id, double temp) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("id", id);
+        obj.addProperty("name", "Adelaide (West Terrace /  ngayirdapira)");
+        obj.addProperty("state", "SA");
+        obj.addProperty("air_temp", temp);
+        return obj;
+    }
+
+    private static WeatherRecord record(String id, double temp, long lamport, String source_id) {
+        return WeatherRecord.from_json(payload(id, temp), lamport, source_id);
+    }
+
+    /** A segment file as the committer leaves it: magic, the given bytes, then zero padding */
+    private static Path writeSegment(Path dir, long first_seq, byte[] body, int padding) throws IOException {
+        Path file = WalSegment.path_for(dir, first_seq);
+        ByteBuffer out = ByteBuffer.allocate(4 + body.length + padding);
+        out.putInt(WalCodec.SEGMENT_MAGIC).put(body);
+        Files.write(file, out.array());
+        return file;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    /** A fresh manager over dir, recovered the way the server starts up */
+    private static PersistenceManager.Replay recover(Path dir) throws IOException {
+        return new PersistenceManager(dir.toString()).replay_WAL(0);
+    }
+
+    private static Map<String, JsonObject> byId(PersistenceManager.Replay replay) {
+        Map<String, JsonObject> ids = new HashMap<>();
+        for (JsonObject o : replay.latest) ids.put(o.get("id").getAsString(), o);
+        return ids;
+    }
+
+    private static List<Path> segmentFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(WalSegment::is_segment).sorted().toList();
+        }
+    }
+
+    private static void seal(PersistenceManager manager) {
+        CompletableFuture<Void> sealed = new CompletableFuture<>();
+        manager.seal_WAL(sealed);
+        sealed.join();
+    }
+
+    // ----------------------------
+    // FRAME CODEC
+    // ----------------------------
+
+    /**
+     * TEST 1
+     *
+     * Frame records with seq/lamport on every varint boundary, a small (raw) and a large (deflated) payload
+     *
+     * Expected: each decodes to the same seq, lamport, source_id and payload; a deflated frame is smaller than its JSON
+     */
+    @Test
+    @Order(1)
+    public void testFrameRoundTrip() throws Exception {
+        System.out.println("TEST: WAL frame round trip");
+        long[] values = {0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, Long.MAX_VALUE};
+
+        JsonObject large = payload("IDS60901", 13.3);
+        large.addProperty("local_date_time_full", "20230715160000");
+        large.addProperty("cloud", "Partly cloudy");
+        large.addProperty("time_zone", "CST");
+        large.addProperty("wind_dir", "S");
+
+        WalCodec.Encoder encoder = new WalCodec.Encoder();
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        for (long value : values) {
+            segment.writeBytes(encoder.frame(value, value, "CS1", WalCodec.encode_payload(payload("IDS_R", 1.5))));
+        }
+        byte[] deflated = encoder.frame(9, 9, "CS1", WalCodec.encode_payload(large));
+        assertTrue(deflated.length < large.toString().length(), "Large payloads are deflated");
+        segment.writeBytes(deflated);
+
+        ByteBuffer in = ByteBuffer.wrap(segment.toByteArray());
+        WalCodec.Decoder decoder = new WalCodec.Decoder();
+        for (long value : values) {
+            WalCodec.Record record = decoder.next(in);
+            assertEquals(value, record.seq);
+            assertEquals(value, record.lamport);
+            assertEquals("CS1", record.source_id);
+            assertFalse(record.tombstone());
+            assertEquals(1.5, record.payload().get("air_temp").getAsDouble());
+            assertEquals(value, record.payload().get("lamport").getAsLong(), "payload() embeds the lamport");
+        }
+        JsonObject decoded = decoder.next(in).payload();
+        for (String key : large.keySet()) assertEquals(large.get(key), decoded.get(key), key);
+        assertNull(decoder.next(in), "End of the buffer is the end of the segment");
+    }
+
+    /**
+     * TEST 2
+     *
+     * Three frames from one encoder: CS_LONG_SOURCE_NAME, CS_LONG_SOURCE_NAME again, then CS2
+     *
+     * Expected: the repeat leaves the name out (shorter by its bytes + length), every frame decodes to its source,
+     *           and the repeat cannot be decoded without the dictionary built from the frames before it
+     */
+    @Test
+    @Order(2)
+    public void testSourceIdIsInterned() throws Exception {
+        System.out.println("TEST: WAL source_id interning");
+        String source = "CS_LONG_SOURCE_NAME";
+        WalCodec.Encoder encoder = new WalCodec.Encoder();
+        WalCodec.EncodedPayload p = WalCodec.encode_payload(payload("IDS_I", 2.0));
+        byte[] first = encoder.frame(1, 1, source, p);
+        byte[] repeat = encoder.frame(2, 1, source, p);
+        byte[] other = encoder.frame(3, 1, "CS2", p);
+        assertEquals(first.length - source.length() - 1, repeat.length, "A known source is only its index");
+
+        ByteBuffer in = ByteBuffer.wrap(concat(first, repeat, other));
+        WalCodec.Decoder decoder = new WalCodec.Decoder();
+        assertEquals(source, decoder.next(in).source_id);
+        assertEquals(source, decoder.next(in).source_id);
+        assertEquals("CS2", decoder.next(in).source_id);
+
+        assertThrows(WalCodec.TornRecordException.class, () -> new WalCodec.Decoder().next(ByteBuffer.wrap(repeat)),
+                "A reference to a source the decoder never saw is not trusted");
+    }
+
+    /**
+     * TEST 3
+     *
+     * Tombstone frame for a station removed by expiry
+     *
+     * Expected: decodes as a tombstone carrying only the id, with the removed record's lamport and source
+     */
+    @Test
+    @Order(3)
+    public void testTombstoneFrame() throws Exception {
+        System.out.println("TEST: WAL tombstone frame");
+        byte[] frame = new WalCodec.Encoder().frame(7, 42, "CS1", WalCodec.tombstone_payload("IDS_T"));
+        WalCodec.Record record = new WalCodec.Decoder().next(ByteBuffer.wrap(frame));
+        assertTrue(record.tombstone());
+        assertEquals(42, record.lamport);
+        assertEquals("IDS_T", record.payload().get("id").getAsString());
+        assertFalse(record.payload().has("air_temp"));
+    }
+
+    // ----------------------------
+    // TORN RECORDS
+    // ----------------------------
+
+    /**
+     * TEST 4
+     *
+     * Segment with three whole frames and the first half of a fourth (crash mid-write), read with repair
+     *
+     * Expected: three records, file cut back to where the fourth frame started
+     */
+    @Test
+    @Order(4)
+    public void testTornTailIsCutOff() throws Exception {
+        System.out.println("TEST: WAL torn tail");
+        Path dir = Files.createTempDirectory("wal_test_torn");
+        WalCodec.Encoder encoder = new WalCodec.Encoder();
+        byte[] whole = concat(
+                encoder.frame(1, 1, "CS1", WalCodec.encode_payload(payload("IDS_1", 1.0))),
+                encoder.frame(2, 1, "CS1", WalCodec.encode_payload(payload("IDS_2", 2.0))),
+                encoder.frame(3, 1, "CS1", WalCodec.encode_payload(payload("IDS_3", 3.0))));
+        byte[] fourth = encoder.frame(4, 1, "CS1", WalCodec.encode_payload(payload("IDS_4", 4.0)));
+        Path file = writeSegment(dir, 1, concat(whole, java.util.Arrays.copyOf(fourth, fourth.length / 2)), 0);
+
+        List<WalCodec.Record> records = WalSegment.read_records(file, true);
+        assertEquals(3, records.size());
+        assertEquals(3, records.get(2).seq);
+        assertEquals(4 + whole.length, Files.size(file), "Torn frame is cut off the segment");
+
+        // a torn frame inside the zero padding, header only, is caught too
+        file = writeSegment(dir, 10, concat(whole, java.util.Arrays.copyOf(fourth, 6)), 4096);
+        assertEquals(3, WalSegment.read_records(file, true).size());
+        assertEquals(4 + whole.length, Files.size(file));
+    }
+
+    /**
+     * TEST 5
+     *
+     * Segment with one frame, a zeroed frame header (a page that never reached the disk), then another frame
+     * Second segment with one frame and nothing but zero padding after it
+     *
+     * Expected: the zeroed header is a torn record, not the end: reported and everything from it on cut off;
+     *           plain zero padding is a clean end and the file is left alone
+     */
+    @Test
+    @Order(5)
+    public void testZeroedHeaderBeforeDataIsTorn() throws Exception {
+        System.out.println("TEST: WAL zeroed header mid-segment");
+        Path dir = Files.createTempDirectory("wal_test_zeroed");
+        WalCodec.Encoder encoder = new WalCodec.Encoder();
+        byte[] first = encoder.frame(1, 1, "CS1", WalCodec.encode_payload(payload("IDS_1", 1.0)));
+        byte[] second = encoder.frame(2, 1, "CS1", WalCodec.encode_payload(payload("IDS_2", 2.0)));
+
+        Path holed = writeSegment(dir, 1, concat(first, new byte[512], second), 1024);
+        List<WalCodec.Record> records = WalSegment.read_records(holed, true);
+        assertEquals(1, records.size());
+        assertEquals(4 + first.length, Files.size(holed), "Nothing after the zeroed header is trusted");
+
+        Path padded = writeSegment(dir, 5, first, 4096);
+        assertEquals(1, WalSegment.read_records(padded, true).size());
+        assertEquals(4 + first.length + 4096, Files.size(padded), "Zero padding is not a torn record");
+    }
+
+    // ----------------------------
+    // RECOVERY
+    // ----------------------------
+
+    /**
+     * TEST 6
+     *
+     * Three PUTs logged and synced, then the segment file truncated in the middle of the last frame (crash)
+     * Restart, log a fourth PUT, restart again
+     *
+     * Expected: first restart recovers the two whole records; the fourth PUT is logged after them with a
+     *           higher seq and survives the second restart next to them
+     */
+    @Test
+    @Order(6)
+    public void testRecoveryAfterMidFrameTruncation() throws Exception {
+        System.out.println("TEST: WAL recovery after a truncated segment");
+        Path dir = Files.createTempDirectory("wal_test_crash");
+        PersistenceManager before = new PersistenceManager(dir.toString());
+        before.replay_WAL(0);
+        for (int i = 1; i <= 3; i++) {
+            before.append_wal(i, "CS1", List.of(record("IDS_C" + i, i, i, "CS1"))).join();
+        }
+
+        Path segment = segmentFiles(dir).get(0);
+        byte[] bytes = Files.readAllBytes(segment);
+        int end = bytes.length;
+        while (bytes[end - 1] == 0) end--;
+        try (FileChannel out = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            out.truncate(end - 3);
+        }
+
+        PersistenceManager after = new PersistenceManager(dir.toString());
+        PersistenceManager.Replay replay = after.replay_WAL(0);
+        assertEquals(Set.of("IDS_C1", "IDS_C2"), byId(replay).keySet());
+        assertEquals(2, replay.records_read);
+        assertEquals(2, after.last_appended_seq(), "New records continue after the last whole one");
+
+        after.append_wal(4, "CS1", List.of(record("IDS_C4", 4, 4, "CS1"))).join();
+        replay = recover(dir);
+        assertEquals(Set.of("IDS_C1", "IDS_C2", "IDS_C4"), byId(replay).keySet());
+        assertEquals(4, byId(replay).get("IDS_C4").get("lamport").getAsLong());
+    }
+
+    /**
+     * TEST 7
+     *
+     * Tombstones in the log: IDS_GONE logged then removed; IDS_BACK logged (Lamport 5), removed, then sent
+     * again at Lamport 2 (a restarted content server); IDS_KEPT logged once; the re-send is in a later segment
+     *
+     * Expected: IDS_GONE not recovered, IDS_BACK recovered at Lamport 2 although 5 was logged before it,
+     *           both reported in reset so a snapshot's copy of them is dropped; IDS_KEPT as logged
+     */
+    @Test
+    @Order(7)
+    public void testTombstoneReplay() throws Exception {
+        System.out.println("TEST: WAL tombstone replay");
+        Path dir = Files.createTempDirectory("wal_test_tombstone");
+        PersistenceManager manager = new PersistenceManager(dir.toString());
+        manager.replay_WAL(0);
+        WeatherRecord gone = record("IDS_GONE", 1.0, 5, "CS1");
+        WeatherRecord back = record("IDS_BACK", 2.0, 5, "CS1");
+        manager.append_wal(5, "CS1", List.of(gone, back, record("IDS_KEPT", 3.0, 5, "CS1"))).join();
+        manager.append_tombstones(List.of(gone, back)).join();
+        seal(manager);
+        manager.append_wal(2, "CS1", List.of(record("IDS_BACK", 9.0, 2, "CS1"))).join();
+
+        PersistenceManager.Replay replay = recover(dir);
+        Map<String, JsonObject> ids = byId(replay);
+        assertEquals(Set.of("IDS_BACK", "IDS_KEPT"), ids.keySet());
+        assertEquals(2, ids.get("IDS_BACK").get("lamport").getAsLong());
+        assertEquals(9.0, ids.get("IDS_BACK").get("air_temp").getAsDouble());
+        assertEquals(Set.of("IDS_GONE", "IDS_BACK"), replay.reset);
+        assertEquals(2, replay.segments);
+    }
+
+    /**
+     * TEST 8
+     *
+     * Eight segment files written by hand, 40 stations each, lamports going up and down between segments,
+     * a tombstone for some stations half way; recovered by the parallel replay
+     *
+     * Expected: the same result as folding every record one at a time in seq order
+     */
+    @Test
+    @Order(8)
+    public void testParallelReplayMatchesSequentialFold() throws Exception {
+        System.out.println("TEST: WAL parallel replay");
+        Path dir = Files.createTempDirectory("wal_test_parallel");
+        Random random = new Random(7);
+        Map<String, Long> expected = new HashMap<>();      // id -> lamport of the survivor
+        Map<String, Double> temps = new HashMap<>();
+        Set<String> reset = new HashSet<>();
+
+        long seq = 1;
+        for (int s = 0; s < 8; s++) {
+            WalCodec.Encoder encoder = new WalCodec.Encoder();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            long first_seq = seq;
+            for (int i = 0; i < 40; i++) {
+                String id = "IDS_P" + i;
+                long lamport = random.nextInt(5);
+                if (s == 4 && i % 5 == 0) {
+                    body.writeBytes(encoder.frame(seq++, lamport, "CS" + (i % 3), WalCodec.tombstone_payload(id)));
+                    expected.remove(id);
+                    temps.remove(id);
+                    reset.add(id);
+                    continue;
+                }
+                double temp = s * 100 + i;
+                body.writeBytes(encoder.frame(seq++, lamport, "CS" + (i % 3), WalCodec.encode_payload(payload(id, temp))));
+                if (!expected.containsKey(id) || lamport >= expected.get(id)) {
+                    expected.put(id, lamport);
+                    temps.put(id, temp);
+                }
+            }
+            writeSegment(dir, first_seq, body.toByteArray(), 64);
+        }
+
+        PersistenceManager manager = new PersistenceManager(dir.toString());
+        PersistenceManager.Replay replay = manager.replay_WAL(0);
+        assertEquals(8, replay.segments);
+        assertEquals(320, replay.records_read);
+        assertEquals(reset, replay.reset);
+        Map<String, JsonObject> ids = byId(replay);
+        assertEquals(expected.keySet(), ids.keySet());
+        for (String id : expected.keySet()) {
+            assertEquals(expected.get(id), ids.get(id).get("lamport").getAsLong(), id);
+            assertEquals(temps.get(id), ids.get(id).get("air_temp").getAsDouble(), id);
+        }
+        assertEquals(seq - 1, manager.last_appended_seq());
+    }
+
+    // ----------------------------
+    // SEGMENTS
+    // ----------------------------
+
+    /**
+     * TEST 9
+     *
+     * 4000 stations with 4 KB of hard to deflate text each, more than one segment holds
+     *
+     * Expected: the WAL rolls to a new segment file, and every station is recovered across them
+     */
+    @Test
+    @Order(9)
+    public void testSegmentRollsWhenFull() throws Exception {
+        System.out.println("TEST: WAL segment roll");
+        Path dir = Files.createTempDirectory("wal_test_roll");
+        PersistenceManager manager = new PersistenceManager(dir.toString());
+        manager.replay_WAL(0);
+        Random random = new Random(11);
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        for (int batch = 0; batch < 40; batch++) {
+            List<WeatherRecord> records = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                JsonObject obj = payload("IDS_L" + (batch * 100 + i), i);
+                StringBuilder name = new StringBuilder();
+                for (int c = 0; c < 4096; c++) name.append((char) ('!' + random.nextInt(90)));
+                obj.addProperty("name", name.toString());
+                records.add(WeatherRecord.from_json(obj, 1, "CS1"));
+            }
+            durable.add(manager.append_wal(1, "CS1", records));
+        }
+        CompletableFuture.allOf(durable.toArray(CompletableFuture<?>[]::new)).join();
+
+        assertTrue(segmentFiles(dir).size() >= 2, "4000 x 4 KB does not fit one segment");
+        PersistenceManager.Replay replay = recover(dir);
+        assertEquals(4000, replay.latest.size());
+        assertEquals(segmentFiles(dir).size(), replay.segments);
+    }
+
+    /**
+     * TEST 10
+     *
+     * Four sealed segments: IDS_A (Lamport 5) then IDS_A (Lamport 3), IDS_B twice, IDS_C logged then removed
+     *
+     * Expected: the compactor merges them into one segment holding IDS_A at Lamport 5, the newer IDS_B and
+     *           IDS_C's tombstone; recovery from it gives the same stations as before compaction
+     */
+    @Test
+    @Order(10)
+    public void testCompactionKeepsNewestAndTombstones() throws Exception {
+        System.out.println("TEST: WAL compaction");
+        Path dir = Files.createTempDirectory("wal_test_compact");
+        PersistenceManager manager = new PersistenceManager(dir.toString());
+        manager.replay_WAL(0);
+        WeatherRecord c = record("IDS_C", 4.0, 1, "CS2");
+        manager.append_wal(5, "CS1", List.of(record("IDS_A", 1.0, 5, "CS1"))).join();
+        manager.append_wal(1, "CS1", List.of(record("IDS_B", 2.0, 1, "CS1"))).join();
+        seal(manager);
+        manager.append_wal(3, "CS1", List.of(record("IDS_A", 3.0, 3, "CS1"))).join();
+        manager.append_wal(1, "CS2", List.of(c)).join();
+        seal(manager);
+        manager.append_tombstones(List.of(c)).join();
+        seal(manager);
+        manager.append_wal(2, "CS1", List.of(record("IDS_B", 9.0, 2, "CS1"))).join();
+        seal(manager);
+        assertEquals(4, segmentFiles(dir).size());
+
+        // the compactor runs every 5 s
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (segmentFiles(dir).size() > 1 && System.currentTimeMillis() < deadline) Thread.sleep(200);
+        assertEquals(1, segmentFiles(dir).size(), "Sealed segments should be compacted into one");
+
+        PersistenceManager.Replay replay = recover(dir);
+        assertEquals(3, replay.records_read, "IDS_A, IDS_B and IDS_C's tombstone");
+        Map<String, JsonObject> ids = byId(replay);
+        assertEquals(Set.of("IDS_A", "IDS_B"), ids.keySet());
+        assertEquals(5, ids.get("IDS_A").get("lamport").getAsLong());
+        assertEquals(9.0, ids.get("IDS_B").get("air_temp").getAsDouble());
+        assertEquals(Set.of("IDS_C"), replay.reset, "A removed station stays removed after compaction");
+    }
+}